@@ -16,6 +16,9 @@
 
 package com.evvsoft.treeview.demo;
 
+import java.io.IOException;
+import java.io.StringWriter;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 
@@ -88,8 +91,13 @@ public class DemoActivity extends Activity {
 		if (mIndicator != 0)
 			outState.putInt(IDENT_INDICATOR, mIndicator);
 		if (mAdapter != null) {
-			String json = mAdapter.toString();
-			outState.putString(IDENT_JSON, json);
+			StringWriter json = new StringWriter();
+			try {
+				mAdapter.writeTo(json, SimpleJsonTreeViewAdapter.Format.FLAT);
+				outState.putString(IDENT_JSON, json.toString());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 	}
 
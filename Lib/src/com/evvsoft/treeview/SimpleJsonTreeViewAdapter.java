@@ -16,24 +16,56 @@
 
 package com.evvsoft.treeview;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.net.Uri;
+import android.os.Build;
+import android.util.SparseArray;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
+import android.view.ViewParent;
 import android.view.ViewGroup;
-import android.widget.BaseAdapter;
 import android.widget.Checkable;
 import android.widget.ImageView;
-import android.widget.LinearLayout;
+import android.widget.SectionIndexer;
 import android.widget.TextView;
 
-public class SimpleJsonTreeViewAdapter extends BaseAdapter {
+public class SimpleJsonTreeViewAdapter extends TreeViewBaseAdapter implements SectionIndexer {
+
+	/** The node and all its descendants are not checked. */
+	public final static int CHECK_STATE_UNCHECKED = 0;
+	/** Some of the descendants of the node are checked. */
+	public final static int CHECK_STATE_PARTIAL   = 1;
+	/** The node is checked, and so are all its descendants. */
+	public final static int CHECK_STATE_CHECKED   = 2;
+
+	/** The number of descendants, or of those having the field. */
+	public final static int AGGREGATE_COUNT = 0;
+	/** The sum of the numeric field over the descendants. */
+	public final static int AGGREGATE_SUM   = 1;
+	/** The least value of the numeric field among the descendants. */
+	public final static int AGGREGATE_MIN   = 2;
+	/** The greatest value of the numeric field among the descendants. */
+	public final static int AGGREGATE_MAX   = 3;
 
 	private final static String[] KEYS_DEFAULT  = {TreeViewNode.DEFAULT_ID_NAME, TreeViewNode.DEFAULT_ID_PARENT_NAME};
 	private final static int[]    TO_DEFAULT    = {android.R.id.text1};
@@ -41,13 +73,127 @@ public class SimpleJsonTreeViewAdapter extends BaseAdapter {
 	private final static int     STATE_NONE     = 0;
 	private final static int     STATE_LAST     = 1;
 	private final static int     STATE_EXPANDED = 2;
+	private final static int     VIEW_TYPE_EXPANDED_GROUP  = 0;
+	private final static int     VIEW_TYPE_COLLAPSED_GROUP = 1;
+	private final static int     VIEW_TYPE_CHILD           = 2;
+	private final static int     VIEW_TYPE_LAST_CHILD      = 3;
+	private final static int     VIEW_TYPE_COUNT           = 4;
+	private final static int     MAX_PREFETCHED            = 64;
+	private final static int     DEFAULT_CHILDREN_PAGE_SIZE = 50;
 	private final static int[][] STATE =
 		{{}, {android.R.attr.state_last}, {android.R.attr.state_expanded}};
+	/** The groups collapsed the longest ago come first. */
+	private final static Comparator<TreeViewNode> COLLAPSE_ORDER = new Comparator<TreeViewNode>() {
+		@Override
+		public int compare(TreeViewNode lhs, TreeViewNode rhs) {
+			long l = lhs.getCollapseStamp();
+			long r = rhs.getCollapseStamp();
+			return l < r ? -1 : l == r ? 0 : 1;
+		}
+	};
+
+	/**
+	 * The shape of the JSON produced by {@link SimpleJsonTreeViewAdapter#writeTo(Writer, Format)}.
+	 */
+	public static enum Format {
+		/**
+		 * The array of the root level nodes, children of each node are
+		 * nested into its children array. The same shape gives {@link #toString()}.
+		 */
+		NESTED,
+		/**
+		 * The single-level array of all the nodes in the tree order, each node
+		 * refers to its parent by the parent ID field and carries the group
+		 * and expanded flags. This shape is accepted by the constructors.
+		 */
+		FLAT
+	}
 
 	private TreeViewNodeArray mNodes;
+	private final BuildOptions mBuildOptions;
+	/** The nodes of the tree by their IDs. */
+	private final HashMap<Long, TreeViewNode> mIndex = new HashMap<Long, TreeViewNode>();
+	/** Guards the changes of the tree against the background readers. */
+	private final Object mLock = new Object();
+	/** The last snapshot taken, null if the tree has changed since. */
+	private volatile TreeViewSnapshot mSnapshot;
+	/** Incremented by every setData() to drop the outdated patches. */
+	private volatile int mDataGeneration;
+	/** Incremented by every change applied besides setData(), which computes its patch again then. */
+	private volatile int mSourceVersion;
+	/** True while setData() compares the data, the data source is not drained meanwhile. */
+	private boolean mDataPending;
+	private TreeDataSource mDataSource;
+	/** Drains the data source at the next frame, null before API 16. */
+	private FrameDrain mFrameDrain;
+	private final Runnable mDrain = new Runnable() {
+		@Override
+		public void run() {
+			drainDataSource();
+		}
+	};
+	private final TreeDataSource.OnChangesPostedListener mOnChangesPosted =
+			new TreeDataSource.OnChangesPostedListener() {
+		@Override
+		public void onChangesPosted() {
+			FrameDrain frameDrain = mFrameDrain;
+			if (frameDrain != null)
+				frameDrain.post();
+			else
+				TreeViewExecutor.postToMain(mDrain);
+		}
+	};
+	/** The appended nodes waiting for their parents, by the IDs of the parents. */
+	private final HashMap<Long, ArrayList<TreeViewNode>> mOrphans = new HashMap<Long, ArrayList<TreeViewNode>>();
+	/** The waiting nodes and the nodes appended to them by their IDs. */
+	private final HashMap<Long, TreeViewNode> mOrphanIndex = new HashMap<Long, TreeViewNode>();
+	/** The field of the root nodes the sections are made of, null for a section per root node. */
+	private String mSectionField;
+	/** The labels of the sections, null when out of date. */
+	private Object[] mSections;
+	/** The index of the first root node of each section. */
+	private int[] mSectionStarts;
+	/** The node whose children are the top level of the list, null for the whole tree. */
+	private TreeViewNode mFocus;
+	/** The IDs of the previous focus nodes, null for the whole tree. */
+	private final ArrayList<Long> mFocusStack = new ArrayList<Long>();
+	private final Context mContext;
+	/** The file the collapsed subtrees are evicted to, made by the first eviction. */
+	private TreeViewSpill mSpill;
+	/** The most nodes kept in memory, 0 for no limit. */
+	private int mMemoryBudget;
+	/** The number of the nodes evicted to the spill file. */
+	private int mEvictedNodeCount;
+	/** The segments holding the evicted nodes, by the IDs of the nodes. */
+	private final HashMap<Long, TreeViewSpill.Segment> mEvictedIds = new HashMap<Long, TreeViewSpill.Segment>();
+	/** Stamps the collapses of the groups in their order. */
+	private long mCollapseClock;
+	private ChildrenLoader mChildrenLoader;
+	private int mChildrenPageSize = DEFAULT_CHILDREN_PAGE_SIZE;
+	/** The pages of the declared children asked for, by the IDs of the groups. */
+	private final HashMap<Long, BitSet> mRequestedPages = new HashMap<Long, BitSet>();
+	/** Receives the slot of the placeholder row looked up. */
+	private final int[] mPlaceholderSlot = new int[2];
+	/** The time per frame the groups may take to expand, 0 to expand them at once. */
+	private long mExpandBudgetNanos;
+	/** The groups expanding in steps, in the order they were expanded. */
+	private final ArrayList<ExpandSteps> mExpanding = new ArrayList<ExpandSteps>();
+	/** Runs the steps of the expanding groups at the next frame, null before API 16. */
+	private FrameDrain mExpandFrame;
+	private boolean mExpandStepPosted;
+	private final Runnable mExpandStep = new Runnable() {
+		@Override
+		public void run() {
+			mExpandStepPosted = false;
+			stepExpanding();
+		}
+	};
+	private OnTreeChangeListener mOnTreeChangeListener;
 	private String[] mKeys;
 	private String mIdField;
 	private String mIdParentField;
+	/** The name of the children arrays, which the items cannot have. */
+	private String mChildrenField;
 	private int mExpandedGroupLayout;
 	private int mCollapsedGroupLayout;
 	private String[] mGroupFrom;
@@ -59,8 +205,49 @@ public class SimpleJsonTreeViewAdapter extends BaseAdapter {
     private int mGroupIndicatorRes;
     private int mChildIndicatorRes;
     private int mIndent;
+    /** Changed with the look of the rows, so the older rows are not reused. */
+    private volatile Object mRowStamp = new Object();
 	private LayoutInflater mInflater;
+	/** Used by the background worker only. */
+	private LayoutInflater mPoolInflater;
+	private final TreeRowPool mRowPool = new TreeRowPool(VIEW_TYPE_COUNT);
+	/** The rows prepared by prefetch(), by position. */
+	private final SparseArray<RowPayload> mPrefetched = new SparseArray<RowPayload>();
+	private int mRowPoolSize;
+	private boolean mRowPoolFilling;
     private ViewBinder mViewBinder;
+    private final TreeViewSelection mSelection = new TreeViewSelection();
+    /** The fields kept by the nodes, null to keep all of them. */
+    private TreeViewProjection mProjection;
+    /** True to share the repeated values among the nodes made together. */
+    private boolean mInterning;
+    /** The number of the values replaced by the pooled ones so far. */
+    private int mInternedCount;
+    /** The estimated memory saved by the pooled values so far. */
+    private long mInternedBytes;
+    /** The subtree aggregates, null if none are declared. */
+    private TreeViewAggregates mAggregates;
+    private TreeViewFieldBinding mGroupBinding;
+    private TreeViewFieldBinding mChildBinding;
+    /** Filled for each row that was not prefetched. */
+    private final RowPayload mRowPayload = new RowPayload();
+    /** The view of the rows bound to the check state of the node. */
+    private int mCheckViewId;
+    private final View.OnClickListener mCheckClickListener = new View.OnClickListener() {
+    	@Override
+    	public void onClick(View v) {
+    		ViewParent parent = v.getParent();
+    		while (parent != null && !(parent instanceof TreeRowLayout))
+    			parent = parent.getParent();
+    		if (parent != null) {
+    			long id = ((TreeRowLayout) parent).getNodeId();
+    			setChecked(id, getCheckState(id) != CHECK_STATE_CHECKED);
+    		}
+    	}
+    };
+    private TreeViewMetrics mMetrics;
+    private long mBuildNanos;
+    private int mBuildNodeCount;
 	
     /**
      * Constructor
@@ -101,6 +288,8 @@ public class SimpleJsonTreeViewAdapter extends BaseAdapter {
      *            3-d item is the name of internal flag of group.
      *            4-th item is the name of internal flag of expanded group.
      *            5-th item is the name of internal array of children nodes.
+     *            6-th item is the name of the count of children declared
+     *            ahead of loading them, see {@link ChildrenLoader}.
      * @param groupLayout resource identifier of a view layout that
      *            defines the views for a group. The layout file
      *            should include at least those named views defined in "groupTo"
@@ -145,6 +334,8 @@ public class SimpleJsonTreeViewAdapter extends BaseAdapter {
      *            3-d item is the name of internal flag of group.
      *            4-th item is the name of internal flag of expanded group.
      *            5-th item is the name of internal array of children nodes.
+     *            6-th item is the name of the count of children declared
+     *            ahead of loading them, see {@link ChildrenLoader}.
      * @param expandedGroupLayout resource identifier of a view layout that
      *            defines the views for an expanded group. The layout file
      *            should include at least those named views defined in "groupTo"
@@ -194,6 +385,8 @@ public class SimpleJsonTreeViewAdapter extends BaseAdapter {
      *            3-d item is the name of internal flag of group.
      *            4-th item is the name of internal flag of expanded group.
      *            5-th item is the name of internal array of children nodes.
+     *            6-th item is the name of the count of children declared
+     *            ahead of loading them, see {@link ChildrenLoader}.
      * @param expandedGroupLayout resource identifier of a view layout that
      *            defines the views for an expanded group. The layout file
      *            should include at least those named views defined in "groupTo"
@@ -228,11 +421,73 @@ public class SimpleJsonTreeViewAdapter extends BaseAdapter {
     		String[] groupFrom, int[] groupTo,
             int childLayout, int lastChildLayout,
             String[] childFrom, int[] childTo) throws JSONException {
+    	this(context, data, keys, expandedGroupLayout, collapsedGroupLayout,
+    			groupFrom, groupTo, childLayout, lastChildLayout,
+    			childFrom, childTo, null);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param context The context where the {@link TreeView} associated
+     *            with this SimpleJsonTreeViewAdapter is running
+     * @param data The JSON single-level array of JSON objects. Each JSON object
+     *            should include ID field, optional reference to the parent ID,
+     *            optional isGroup flag and all the entries specified in
+     *            "groupFrom" or "childFrom" depending on whether the group item
+     * @param keys An array of names of key fields and for internal use.
+     *            The first item at index 0 is the name of ID field.
+     *            The second item at index 1 is the name of parent ID field.
+     *            3-d item is the name of internal flag of group.
+     *            4-th item is the name of internal flag of expanded group.
+     *            5-th item is the name of internal array of children nodes.
+     *            6-th item is the name of the count of children declared
+     *            ahead of loading them, see {@link ChildrenLoader}.
+     * @param expandedGroupLayout resource identifier of a view layout that
+     *            defines the views for an expanded group. The layout file
+     *            should include at least those named views defined in "groupTo"
+     * @param collapsedGroupLayout resource identifier of a view layout that
+     *            defines the views for a collapsed group. The layout file
+     *            should include at least those named views defined in "groupTo"
+     * @param groupFrom A list of keys that will be fetched from the JSON object
+     *            associated with each group.
+     * @param groupTo The group views that should display column in the
+     *            "groupFrom" parameter. These should all be TextViews. The
+     *            first N views in this list are given the values of the first N
+     *            columns in the groupFrom parameter.
+     * @param childLayout resource identifier of a view layout that defines the
+     *            views for a child (unless it is the last child within a group,
+     *            in which case the lastChildLayout is used). The layout file
+     *            should include at least those named views defined in "childTo"
+     * @param lastChildLayout resource identifier of a view layout that defines
+     *            the views for the last child within each group. The layout
+     *            file should include at least those named views defined in
+     *            "childTo"
+     * @param childFrom A list of keys that will be fetched from the JSON object
+     *            associated with each child.
+     * @param childTo The child views that should display column in the
+     *            "childFrom" parameter. These should all be TextViews. The
+     *            first N views in this list are given the values of the first N
+     *            columns in the childFrom parameter.
+     * @param options How to build the tree from the data, null for the defaults
+     * @throws JSONException
+     */
+    public SimpleJsonTreeViewAdapter(Context context,
+    		JSONArray data, String[] keys,
+    		int expandedGroupLayout, int collapsedGroupLayout,
+    		String[] groupFrom, int[] groupTo,
+            int childLayout, int lastChildLayout,
+            String[] childFrom, int[] childTo, BuildOptions options) throws JSONException {
+    	Context application = context.getApplicationContext();
+    	this.mContext = application == null ? context : application;
+    	this.mBuildOptions = options == null ? new BuildOptions() : options;
     	this.mKeys = keys;
     	if (keys.length >= 1)
     		this.mIdField = keys[0];
     	if (keys.length >= 2)
     		this.mIdParentField = keys[1];
+    	this.mChildrenField = keys.length >= 5 && keys[4] != null && !keys[4].isEmpty() ?
+    			keys[4] : TreeViewNode.DEFAULT_CHILDREN_ARRAY_NAME;
     	this.mExpandedGroupLayout  = expandedGroupLayout;
     	this.mCollapsedGroupLayout = collapsedGroupLayout;
     	this.mGroupFrom       = groupFrom;
@@ -241,48 +496,37 @@ public class SimpleJsonTreeViewAdapter extends BaseAdapter {
     	this.mLastChildLayout = lastChildLayout;
     	this.mChildFrom       = childFrom;
     	this.mChildTo         = childTo;
+    	this.mProjection = mBuildOptions.createProjection(keys, groupFrom, childFrom);
+    	this.mInterning = mBuildOptions.isInterning();
     	this.mNodes    = convertToTreeJSONArray(data);
+    	this.mAggregates = mBuildOptions.createAggregates();
+    	if (mAggregates != null)
+    		mAggregates.computeAll(mNodes);
+    	this.mGroupBinding = new TreeViewFieldBinding(groupFrom, groupTo, mAggregates);
+    	this.mChildBinding = new TreeViewFieldBinding(childFrom, childTo, mAggregates);
     	this.mInflater = (LayoutInflater)context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
     }
 
-    private Boolean putChild(TreeViewNodeArray toArray, JSONObject obj) throws JSONException {
-    	long id_parent = obj.optLong(this.mIdParentField, TreeViewNode.BAD_ID);
-    	if (id_parent == TreeViewNode.BAD_ID) {
-    		toArray.put(new TreeViewNode(obj, mKeys));
-    		return true;
-    	}
-    	TreeViewNode node = toArray.getNodeById(id_parent);
-    	if (node != null) {
-    		node.putChild(new TreeViewNode(obj, mKeys));
-    		return true;
-    	}
-		return false;
-    }
-
     private TreeViewNodeArray convertToTreeJSONArray(JSONArray data) throws JSONException {
-    	TreeViewNodeArray result = new TreeViewNodeArray();
-    	ArrayList<Integer> notHandled = new ArrayList<Integer>();
-
-    	for (int i=0; i<data.length(); i++) {
-    		JSONObject obj = data.getJSONObject(i);
-    		if (!(putChild(result, obj)))
-    			// Parent node not found, may be, it has not yet added
-    			notHandled.add(i);
-    	}
-    	// Now try again to add more items
-    	Boolean prevAdded = true;
-    	while (prevAdded && (notHandled.size() > 0)) {
-    		prevAdded = false;
-    		for (int i=0; i<notHandled.size();) {
-    			JSONObject obj = data.getJSONObject(notHandled.get(i));
-    			if (putChild(result, obj)) {
-    				prevAdded = true;
-    				notHandled.remove(i);
-    			} else
-    				i++;
-    		}
+    	final TreeViewMetrics metrics = mMetrics;
+    	if (metrics != null)
+    		TreeViewTrace.beginSection(TreeViewTrace.BUILD);
+    	long start = System.nanoTime();
+    	final OnBuildReportListener reportListener = mBuildOptions.getOnBuildReportListener();
+    	TreeViewInterner interner = newInterner();
+    	TreeViewBuilder builder = new TreeViewBuilder(mKeys, mIdParentField, reportListener != null,
+    			interner, mProjection);
+    	mIndex.clear();
+    	TreeViewNodeArray result = builder.build(data, mBuildOptions.getThreadCount(), mIndex);
+    	countInterned(interner);
+    	mBuildNanos = System.nanoTime() - start;
+    	mBuildNodeCount = builder.getNodeCount();
+    	if (metrics != null) {
+    		TreeViewTrace.endSection();
+    		metrics.onBuild(mBuildNanos, mBuildNodeCount);
     	}
-    	// Forget items with id_parent pointing to nonexistent parents
+    	if (reportListener != null)
+    		reportListener.onBuildReport(builder.getReport());
     	return result;
     }
 
@@ -293,7 +537,7 @@ public class SimpleJsonTreeViewAdapter extends BaseAdapter {
     
 	@Override
 	public int getCount() {
-		return mNodes.getVisibleCount();
+		return getTopLevel().getVisibleCount();
 	}
 
 	@Override
@@ -302,12 +546,12 @@ public class SimpleJsonTreeViewAdapter extends BaseAdapter {
 	}
 
 	public TreeViewNode getTreeViewNode(int position) {
-		return mNodes.getVisibleNode(position);
+		return getTopLevel().getVisibleNode(position);
 	}
 
 	@Override
 	public long getItemId(int position) {
-		return mNodes.getVisibleNodeId(position);
+		return getTopLevel().getVisibleNodeId(position);
 	}
 
 	public void collapse(int position) {
@@ -318,107 +562,1964 @@ public class SimpleJsonTreeViewAdapter extends BaseAdapter {
 		setExpanded(position, true);
 	}
 
+	@Override
 	public void setExpanded(int position, boolean expanded) {
 		TreeViewNode node = getTreeViewNode(position);
 		setExpanded(node, expanded);
 	}
 
 	public void setExpanded(TreeViewNode node, boolean expanded) {
-		if (node != null && node.setExpanded(expanded))
+		if (node == null)
+			return;
+		if (expanded && node.getEvicted() != null) {
+			// The group expands once its children are read back
+			restoreEvicted(node, true);
+			return;
+		}
+		final TreeViewMetrics metrics = mMetrics;
+		boolean changed;
+		if (metrics == null) {
+			changed = changeExpanded(node, expanded);
+			if (changed)
+				notifyDataSetChanged();
+		} else {
+			TreeViewTrace.beginSection(expanded ? TreeViewTrace.EXPAND : TreeViewTrace.COLLAPSE);
+			long start = System.nanoTime();
+			changed = changeExpanded(node, expanded);
+			if (changed)
+				notifyDataSetChanged();
+			long duration = System.nanoTime() - start;
+			TreeViewTrace.endSection();
+			if (changed)
+				metrics.onExpandedChanged(node.getId(), expanded, duration);
+		}
+		if (changed && !expanded) {
+			node.setCollapseStamp(++mCollapseClock);
+			trimToBudget();
+		}
+	}
+
+	/**
+	 * Changes the expanded state of the node. If an expand budget is set,
+	 * the group shows the children whose rows could be counted within the
+	 * budget, and the others are shown at the next frames.
+	 */
+	private boolean changeExpanded(TreeViewNode node, boolean expanded) {
+		ExpandSteps steps = null;
+		if (!expanded)
+			stopExpanding(node);
+		else if (mExpandBudgetNanos > 0 && !node.isExpanded()) {
+			TreeViewNodeArray children = node.getChildren();
+			if (children != null && !children.hasVisibleOffsets()) {
+				steps = new ExpandSteps(node, children);
+				if (steps.step(System.nanoTime() + mExpandBudgetNanos))
+					steps = null;
+			}
+		}
+		boolean changed;
+		synchronized (mLock) {
+			if (steps != null)
+				node.setShownChildren(steps.shown);
+			changed = node.setExpanded(expanded);
+			if (changed)
+				mSnapshot = null;
+		}
+		if (steps != null) {
+			mExpanding.add(steps);
+			postExpandStep();
+		}
+		return changed;
+	}
+
+	public long getExpandBudget() {
+		return mExpandBudgetNanos;
+	}
+
+	/**
+	 * Sets the time per frame a group may take to expand. Counting the rows
+	 * of a group with a huge expanded subtree for the first time can take
+	 * longer than a frame. With a budget set, such a group shows at once
+	 * only the children whose rows could be counted within the budget; the
+	 * rest are counted and shown at the next frames, each frame within the
+	 * budget. The first visible node keeps its place on the screen while
+	 * the rows are added. Collapsing the group stops the steps at once.
+	 *
+	 * @param nanos the time in nanoseconds, 0 to expand the groups at once
+	 *            (the default), which finishes the groups expanding now
+	 */
+	public void setExpandBudget(long nanos) {
+		if (nanos < 0)
+			throw new IllegalArgumentException("nanos < 0");
+		mExpandBudgetNanos = nanos;
+		if (nanos == 0)
+			finishExpanding();
+	}
+
+	private void postExpandStep() {
+		if (mExpandStepPosted)
+			return;
+		mExpandStepPosted = true;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			if (mExpandFrame == null)
+				mExpandFrame = new FrameDrain(mExpandStep);
+			mExpandFrame.post();
+		} else
+			TreeViewExecutor.postToMain(mExpandStep);
+	}
+
+	/**
+	 * Counts the rows of the next children of the expanding groups within
+	 * the budget and shows them, notifying the observers once.
+	 */
+	private void stepExpanding() {
+		if (mExpanding.isEmpty())
+			return;
+		long deadline = mExpandBudgetNanos == 0 ? Long.MAX_VALUE :
+			System.nanoTime() + mExpandBudgetNanos;
+		ArrayList<ExpandSteps> shown = new ArrayList<ExpandSteps>();
+		for (int i = 0; i < mExpanding.size(); ) {
+			ExpandSteps steps = mExpanding.get(i);
+			if (!isExpanding(steps)) {
+				// Collapsed, removed or given other children meanwhile
+				mExpanding.remove(i);
+				steps.done = true;
+				shown.add(steps);
+				continue;
+			}
+			int count = steps.shown;
+			steps.done = steps.step(deadline);
+			if (steps.done)
+				mExpanding.remove(i);
+			else
+				i++;
+			if (steps.done || steps.shown != count)
+				shown.add(steps);
+			if (System.nanoTime() > deadline)
+				break;
+		}
+		if (!shown.isEmpty()) {
+			if (mOnTreeChangeListener != null)
+				mOnTreeChangeListener.onTreeChanging();
+			synchronized (mLock) {
+				for (ExpandSteps steps : shown)
+					if (steps.children.getVisibleLimit() >= 0)
+						steps.show();
+			}
+			notifyDataSetChanged();
+			if (mOnTreeChangeListener != null)
+				mOnTreeChangeListener.onTreeChanged();
+		}
+		if (!mExpanding.isEmpty())
+			postExpandStep();
+	}
+
+	private boolean isExpanding(ExpandSteps steps) {
+		TreeViewNode group = steps.group;
+		return group.isExpanded() && group.getChildren() == steps.children &&
+				mIndex.get(group.getId()) == group;
+	}
+
+	/**
+	 * Stops the steps of the group and shows all its children.
+	 */
+	private void stopExpanding(TreeViewNode group) {
+		for (int i = 0; i < mExpanding.size(); i++)
+			if (mExpanding.get(i).group == group) {
+				ExpandSteps steps = mExpanding.remove(i);
+				synchronized (mLock) {
+					steps.children.setVisibleLimit(-1);
+				}
+				return;
+			}
+	}
+
+	/**
+	 * Shows all the children of the expanding groups now.
+	 */
+	private void finishExpanding() {
+		if (mExpanding.isEmpty())
+			return;
+		long budget = mExpandBudgetNanos;
+		mExpandBudgetNanos = 0;
+		stepExpanding();
+		mExpandBudgetNanos = budget;
+	}
+
+	@Override
+	boolean isGroupNode(int position) {
+		TreeViewNode node = getTreeViewNode(position);
+		return node != null && node.isGroupNode();
+	}
+
+	@Override
+	boolean isExpanded(int position) {
+		TreeViewNode node = getTreeViewNode(position);
+		return node != null && node.isExpanded();
+	}
+
+	@Override
+	int getLevel(int position) {
+		TreeViewNode node = getTreeViewNode(position);
+		if (node != null)
+			return getLevel(node);
+		TreeViewNode group = getTopLevel().getVisiblePlaceholder(position, mPlaceholderSlot);
+		return group == null ? 0 : getLevel(group) + 1;
+	}
+
+	/**
+	 * Returns the level of the node shown in the list, relative to the
+	 * focus node if there is one.
+	 */
+	private int getLevel(TreeViewNode node) {
+		return mFocus == null ? node.getLevel() : node.getLevel() - mFocus.getLevel() - 1;
+	}
+
+	/**
+	 * Checks whether the node is the last child of its parent and no
+	 * placeholder rows of the children not loaded yet follow it.
+	 */
+	private static boolean isLastRow(TreeViewNode node) {
+		TreeViewNodeArray array = node.getArray();
+		return node.isLast() && (array == null || array.isLastSlot(node));
+	}
+
+	@Override
+	Object getAnchor(int position) {
+		return getTreeViewNode(position);
+	}
+
+	@Override
+	int getAnchorPosition(Object anchor) {
+		return getVisiblePosition((TreeViewNode) anchor);
+	}
+
+	/**
+	 * Returns the node with the given ID.
+	 * @param id the ID of the node
+	 * @return the node or null if there is no such node in the tree
+	 */
+	public TreeViewNode getTreeViewNodeById(long id) {
+		return findNode(id);
+	}
+
+	/**
+	 * Returns the node with the given ID, reading the evicted subtree
+	 * holding it back if the node is not in memory.
+	 */
+	private TreeViewNode findNode(long id) {
+		TreeViewNode node = mIndex.get(id);
+		if (node == null && mEvictedIds.containsKey(id)) {
+			restoreEvictedHolding(Collections.singletonList(id));
+			node = mIndex.get(id);
+		}
+		return node;
+	}
+
+	/**
+	 * Returns the visible position of the node or, if the node is not in
+	 * the tree anymore, of its nearest ancestor that is.
+	 * @return the position or -1 if the node is hidden in a collapsed group
+	 */
+	int getVisiblePosition(TreeViewNode node) {
+		while (node != null && mIndex.get(node.getId()) != node)
+			node = node.getParent();
+		if (node == null)
+			return -1;
+		return getTopLevel().getVisiblePosition(node);
+	}
+
+	/**
+	 * Returns the position of the node with the given ID in the list.
+	 * It takes a step per level of the node, not a walk over the list.
+	 *
+	 * @param id the ID of the node
+	 * @return the position or -1 if there is no such node, it is hidden
+	 *         in a collapsed group or it is out of the focused subtree
+	 *
+	 * @see #revealNode(long)
+	 */
+	public int getPositionForId(long id) {
+		TreeViewNode node = mIndex.get(id);
+		return node == null ? -1 : getTopLevel().getVisiblePosition(node);
+	}
+
+	/**
+	 * Expands all the collapsed ancestors of the node with the given ID,
+	 * notifying the observers once, and returns the position of the node.
+	 *
+	 * @param id the ID of the node
+	 * @return the position or -1 if there is no such node or it is out of
+	 *         the focused subtree
+	 *
+	 * @see TreeView#revealNode(long, boolean)
+	 */
+	@Override
+	public int revealNode(long id) {
+		TreeViewNode node = findNode(id);
+		if (node == null)
+			return -1;
+		// The node may be among the children not shown yet
+		finishExpanding();
+		boolean changed = false;
+		synchronized (mLock) {
+			for (TreeViewNode parent = node.getParent(); parent != null; parent = parent.getParent())
+				changed |= parent.setExpanded(true);
+			if (changed)
+				mSnapshot = null;
+		}
+		if (changed)
 			notifyDataSetChanged();
+		return getTopLevel().getVisiblePosition(node);
+	}
+
+	/**
+	 * Returns the nodes of the top level of the list: the children of the
+	 * focus node or the root nodes of the tree.
+	 */
+	private TreeViewNodeArray getTopLevel() {
+		return mFocus == null ? mNodes : mFocus.getChildren();
+	}
+
+	/**
+	 * Shows only the subtree of the node with the given ID: its children
+	 * become the top level of the list and the levels are counted from
+	 * them. The nodes are shown as they are, along with their expanded
+	 * states and counts, nothing is copied. The previous focus node is
+	 * kept to go back to by {@link #clearFocus()}.
+	 *
+	 * @param id the ID of a group node with children
+	 * @return true if the focus has changed, false if there is no such node
+	 *         or it has no children
+	 */
+	public boolean focusOn(long id) {
+		TreeViewNode node = findNode(id);
+		if (node == null || node == mFocus)
+			return false;
+		if (node.getEvicted() != null)
+			restoreEvictedNow(Collections.singletonList(node));
+		if (!node.hasChildren())
+			return false;
+		mFocusStack.add(mFocus == null ? null : mFocus.getId());
+		mFocus = node;
+		mSections = null;
+		notifyDataSetChanged();
+		// Only now the node is kept as the focus node
+		trimToBudget();
+		return true;
+	}
+
+	/**
+	 * Goes back to the previous focus node, or to the whole tree.
+	 *
+	 * @return true if the focus has changed, false if the whole tree is
+	 *         already shown
+	 *
+	 * @see #focusOn(long)
+	 */
+	public boolean clearFocus() {
+		if (mFocus == null)
+			return false;
+		popFocus();
+		mSections = null;
+		notifyDataSetChanged();
+		trimToBudget();
+		return true;
+	}
+
+	/**
+	 * Returns the node whose subtree is shown.
+	 * @return the node or null if the whole tree is shown
+	 */
+	public TreeViewNode getFocusNode() {
+		return mFocus;
+	}
+
+	/**
+	 * Makes the last previous focus node that is still a group in the tree
+	 * the focus node.
+	 */
+	private void popFocus() {
+		mFocus = null;
+		while (!mFocusStack.isEmpty()) {
+			Long id = mFocusStack.remove(mFocusStack.size() - 1);
+			if (id == null)
+				return;
+			TreeViewNode node = findNode(id);
+			if (node == null)
+				continue;
+			if (node.getEvicted() != null)
+				restoreEvictedNow(Collections.singletonList(node));
+			if (node.hasChildren()) {
+				mFocus = node;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Goes back from the focus node if it has been removed from the tree
+	 * or has no children left.
+	 */
+	private void validateFocus() {
+		while (mFocus != null &&
+				(mIndex.get(mFocus.getId()) != mFocus || !mFocus.hasChildren()))
+			popFocus();
+	}
+
+	public String getSectionField() {
+		return mSectionField;
+	}
+
+	/**
+	 * Sets the field of the nodes of the top level the sections of the
+	 * fast scroll are made of: the consecutive nodes with equal values
+	 * make a section labeled by the value. By default each node of the
+	 * top level makes a section labeled by the first "groupFrom" field.
+	 *
+	 * @param field the name of the field, null for a section per node
+	 *
+	 * @see android.widget.AbsListView#setFastScrollEnabled(boolean)
+	 */
+	public void setSectionField(String field) {
+		mSectionField = field;
+		mSections = null;
+		notifyDataSetChanged();
+	}
+
+	@Override
+	public Object[] getSections() {
+		if (mSections == null)
+			makeSections();
+		return mSections;
+	}
+
+	/**
+	 * Returns the position of the first row of the section, that is the
+	 * visible offset of its first node of the top level.
+	 */
+	@Override
+	public int getPositionForSection(int section) {
+		getSections();
+		if (mSectionStarts.length == 0)
+			return 0;
+		section = Math.max(0, Math.min(section, mSectionStarts.length - 1));
+		return getTopLevel().getVisibleOffsets()[mSectionStarts[section]];
+	}
+
+	/**
+	 * Returns the section of the node of the top level holding the row,
+	 * found by binary searches of the visible offsets and of the sections.
+	 */
+	@Override
+	public int getSectionForPosition(int position) {
+		getSections();
+		int index = getTopLevel().getVisibleIndex(position);
+		if (index < 0)
+			return position < 0 ? 0 : Math.max(0, mSectionStarts.length - 1);
+		// The last section starting at or before the node
+		int low = 0;
+		int high = mSectionStarts.length - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (mSectionStarts[middle] <= index)
+				low = middle;
+			else
+				high = middle - 1;
+		}
+		return low;
+	}
+
+	/**
+	 * Labels the sections by the nodes of the top level, the sections are
+	 * made again only when the top level or its fields change.
+	 */
+	private void makeSections() {
+		String field = mSectionField;
+		if (field == null && mGroupFrom != null && mGroupFrom.length > 0)
+			field = mGroupFrom[0];
+		TreeViewNodeArray nodes = getTopLevel();
+		int count = nodes.length();
+		Object[] labels = new Object[count];
+		int[] starts = new int[count];
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			TreeViewNode node = (TreeViewNode) nodes.opt(i);
+			Object value = field == null ? Long.valueOf(node.getId()) : node.opt(field);
+			String label = value == null || value == JSONObject.NULL ? "" : value.toString();
+			if (mSectionField != null && n > 0 && label.equals(labels[n - 1]))
+				continue;
+			labels[n] = label;
+			starts[n++] = i;
+		}
+		if (n < count) {
+			Object[] trimmedLabels = new Object[n];
+			int[] trimmedStarts = new int[n];
+			System.arraycopy(labels, 0, trimmedLabels, 0, n);
+			System.arraycopy(starts, 0, trimmedStarts, 0, n);
+			labels = trimmedLabels;
+			starts = trimmedStarts;
+		}
+		mSectionStarts = starts;
+		mSections = labels;
+	}
+
+	/**
+	 * Returns the value of the subtree aggregate of the node with the given
+	 * ID, the same value as bound to the views for the aggregate's name.
+	 *
+	 * @param id the ID of the node
+	 * @param name the name of the aggregate
+	 * @return a Long if the value is whole, a Double otherwise, null if
+	 *         there is no such node or aggregate, or no values to take the
+	 *         minimum or maximum of
+	 *
+	 * @see BuildOptions#addAggregate(String, int, String)
+	 */
+	public Object getAggregate(long id, String name) {
+		TreeViewNode node = findNode(id);
+		if (node == null || mAggregates == null)
+			return null;
+		int index = mAggregates.indexOf(name);
+		return index < 0 ? null : mAggregates.getValue(node, index);
+	}
+
+	/**
+	 * Checks or unchecks the node with the given ID together with all its
+	 * descendants. The ancestors become checked when all their descendants
+	 * are checked, partially checked when some are. Checking a group is
+	 * a single range operation however many descendants it has.
+	 *
+	 * @param id the ID of the node
+	 * @param checked the new state of the node
+	 *
+	 * @see #getCheckState(long)
+	 * @see #setCheckViewId(int)
+	 */
+	public void setChecked(long id, boolean checked) {
+		TreeViewNode node = findNode(id);
+		if (node != null && mSelection.setChecked(mNodes, node, checked))
+			notifyDataSetChanged();
+	}
+
+	/**
+	 * Returns true if the node with the given ID is checked, for a group
+	 * it means all its descendants are checked.
+	 */
+	public boolean isChecked(long id) {
+		return getCheckState(id) == CHECK_STATE_CHECKED;
+	}
+
+	/**
+	 * Returns the check state of the node with the given ID.
+	 *
+	 * @return {@link #CHECK_STATE_UNCHECKED}, {@link #CHECK_STATE_PARTIAL}
+	 *         or {@link #CHECK_STATE_CHECKED}
+	 */
+	public int getCheckState(long id) {
+		TreeViewNode node = findNode(id);
+		return node == null ? CHECK_STATE_UNCHECKED : mSelection.getState(mNodes, node);
+	}
+
+	/**
+	 * Returns the IDs of all the checked nodes, groups included, in the
+	 * order of the tree. The array is a copy that is not changed by later
+	 * checks.
+	 */
+	public long[] getCheckedIds() {
+		// The descendants of the evicted checked groups are checked too
+		restoreAllEvicted(true);
+		return mSelection.getCheckedIds(mNodes);
+	}
+
+	/**
+	 * Unchecks all the nodes.
+	 */
+	public void clearChecked() {
+		if (mSelection.clear())
+			notifyDataSetChanged();
+	}
+
+	public int getCheckViewId() {
+		return mCheckViewId;
+	}
+
+	/**
+	 * Sets the view of the rows that shows and toggles the check state of
+	 * the node. A {@link Checkable} view is checked for a checked node and
+	 * the view is selected for a partially checked one, so its drawable can
+	 * show the third state with android:state_selected. A click on the view
+	 * toggles the node.
+	 *
+	 * @param viewId the ID of the view in the item layouts, 0 for none
+	 */
+	public void setCheckViewId(int viewId) {
+		if (mCheckViewId != viewId) {
+			mCheckViewId = viewId;
+			notifyDataSetChanged();
+		}
+	}
+
+	/**
+	 * Replaces the data of the adapter by the new single-level array of JSON
+	 * objects of the same shape as passed to the constructor.
+	 * <p>
+	 * The new array is compared with the current tree by node IDs on a
+	 * background thread. Then only the differences are applied on the main
+	 * thread: new nodes are inserted, missing nodes are removed, moved nodes
+	 * are re-attached and the fields of changed nodes are updated in place.
+	 * The nodes that stay in the tree keep their expanded state, and the
+	 * {@link TreeView} keeps its first visible node in place. Items without
+	 * ID are ignored. When the method is called again before the previous
+	 * data have been applied, only the latest data are applied. The groups
+	 * whose subtrees were evicted take their children from the new data.
+	 * <p>
+	 * The changes posted to the {@link TreeDataSource} before the call are
+	 * dropped, the new data replace them. Those posted while the data are
+	 * compared wait and are applied on top of the new data. Must be called
+	 * on the main thread.
+	 *
+	 * @param data The JSON single-level array of JSON objects
+	 */
+	public void setData(final JSONArray data) {
+		final int generation = ++mDataGeneration;
+		final int version = mSourceVersion;
+		final TreeViewNodeArray nodes = mNodes;
+		if (mDataSource != null)
+			mDataSource.drain();
+		mDataPending = true;
+		TreeViewExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (generation != mDataGeneration)
+					return;
+				TreeViewDataPatch computed = null;
+				try {
+					computed = TreeViewDataPatch.compute(data, mIdField, mIdParentField,
+							nodes, mLock, generation);
+				} catch (JSONException e) {
+					e.printStackTrace();
+				}
+				final TreeViewDataPatch patch = computed;
+				TreeViewExecutor.postToMain(new Runnable() {
+					@Override
+					public void run() {
+						if (generation != mDataGeneration)
+							// Newer data are being compared
+							return;
+						mDataPending = false;
+						TreeViewDataPatch current = patch;
+						if (current != null && version != mSourceVersion)
+							// The tree has been changed meanwhile by appends or
+							// pages of children. Nothing changes it while the
+							// main thread is busy, so the patch computed again
+							// here cannot be outdated, and setData() always ends
+							try {
+								current = TreeViewDataPatch.compute(data, mIdField,
+										mIdParentField, mNodes, mLock, generation);
+							} catch (JSONException e) {
+								e.printStackTrace();
+								current = null;
+							}
+						if (current != null)
+							applyPatch(current);
+						// The changes posted meanwhile go on top of the data
+						drainDataSource();
+					}
+				});
+			}
+		});
+	}
+
+	private void applyPatch(TreeViewDataPatch patch) {
+		if (patch.generation != mDataGeneration || patch.isEmpty())
+			return;
+		// Creates the new nodes and checks the changed objects before the
+		// tree is touched, so a bad object leaves the tree as it was
+		HashMap<Long, TreeViewNode> inserted = new HashMap<Long, TreeViewNode>();
+		TreeViewInterner interner = newInterner();
+		try {
+			for (Map.Entry<Long, JSONObject> entry : patch.inserted.entrySet())
+				inserted.put(entry.getKey(), new TreeViewNode(entry.getValue(), mKeys, interner, mProjection));
+			for (JSONObject obj : patch.updated.values())
+				if (obj.has(mChildrenField))
+					throw new JSONException(mChildrenField + " is bad name for a field.");
+		} catch (JSONException e) {
+			e.printStackTrace();
+			return;
+		}
+		countInterned(interner);
+		if (mEvictedNodeCount > 0)
+			// Some of the nodes may have been evicted after the patch was computed
+			restoreEvictedHolding(getEvictedIds(patch));
+		if (mOnTreeChangeListener != null)
+			mOnTreeChangeListener.onTreeChanging();
+		try {
+			synchronized (mLock) {
+				mSnapshot = null;
+				mSections = null;
+				for (Long id : patch.removed) {
+					TreeViewNode node = mIndex.remove(id);
+					if (node != null && node.getEvicted() != null)
+						dropEvicted(node.getEvicted());
+				}
+				mIndex.putAll(inserted);
+				for (Map.Entry<Long, JSONObject> entry : patch.updated.entrySet())
+					mIndex.get(entry.getKey()).updateFields(entry.getValue());
+				// Detach the children first, or a node moved under its former
+				// descendant would close a circle of parents until that
+				// descendant is moved too
+				for (long[] ids : patch.children.values())
+					for (int i=0; i<ids.length; i++)
+						mIndex.get(ids[i]).detach();
+				for (Map.Entry<Long, long[]> entry : patch.children.entrySet()) {
+					long[] ids = entry.getValue();
+					TreeViewNodeArray children = new TreeViewNodeArray();
+					for (int i=0; i<ids.length; i++)
+						children.put(mIndex.get(ids[i]));
+					if (entry.getKey() == TreeViewDataPatch.ROOT) {
+						children.shareLevelTree(mNodes);
+						TreeViewNode.setRootLevel(children);
+						mNodes = children;
+						continue;
+					}
+					TreeViewNode parent = mIndex.get(entry.getKey());
+					if (parent.getEvicted() != null)
+						dropEvicted(parent.getEvicted());
+					parent.setChildren(children);
+				}
+				if (!mOrphans.isEmpty())
+					for (Long id : patch.inserted.keySet())
+						adoptOrphans(mIndex.get(id));
+				if (mAggregates != null) {
+					for (Long id : patch.inserted.keySet())
+						mAggregates.invalidate(mIndex.get(id));
+					for (Long id : patch.updated.keySet())
+						mAggregates.invalidate(mIndex.get(id).getParent());
+					for (Long id : patch.children.keySet())
+						if (id != TreeViewDataPatch.ROOT)
+							mAggregates.invalidate(mIndex.get(id));
+					mAggregates.update();
+				}
+			}
+			mSelection.invalidate();
+		} catch (JSONException e) {
+			// The objects were checked above
+			e.printStackTrace();
+		}
+		validateFocus();
+		mRequestedPages.clear();
+		notifyDataSetChanged();
+		if (mOnTreeChangeListener != null)
+			mOnTreeChangeListener.onTreeChanged();
+		trimToBudget();
+	}
+
+	/**
+	 * Returns the IDs of the evicted nodes the patch changes. The nodes
+	 * the patch inserts are new to it, even if they are evicted.
+	 */
+	private ArrayList<Long> getEvictedIds(TreeViewDataPatch patch) {
+		ArrayList<Long> ids = new ArrayList<Long>();
+		for (Long id : patch.removed)
+			if (mEvictedIds.containsKey(id))
+				ids.add(id);
+		for (Long id : patch.updated.keySet())
+			if (mEvictedIds.containsKey(id))
+				ids.add(id);
+		for (Map.Entry<Long, long[]> entry : patch.children.entrySet()) {
+			Long id = entry.getKey();
+			if (mEvictedIds.containsKey(id) && !patch.inserted.containsKey(id))
+				ids.add(id);
+			for (long child : entry.getValue())
+				if (mEvictedIds.containsKey(child) && !patch.inserted.containsKey(child))
+					ids.add(child);
+		}
+		return ids;
+	}
+
+	/**
+	 * Sets the source of the changes of the data, or null to stop applying
+	 * the changes. The changes posted to the source from any thread are
+	 * applied together once per frame, with a single notification of the
+	 * observers, and the {@link TreeView} keeps its first visible node in
+	 * place as it does for {@link #setData(JSONArray)}. The objects posted
+	 * have the same shape as the items of the array passed to the
+	 * constructor. Must be called on the main thread.
+	 *
+	 * @param source the source or null
+	 */
+	public void setDataSource(TreeDataSource source) {
+		if (source == mDataSource)
+			return;
+		if (mDataSource != null)
+			mDataSource.setOnChangesPostedListener(null);
+		mDataSource = source;
+		if (source == null)
+			return;
+		if (mFrameDrain == null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+			mFrameDrain = new FrameDrain(mDrain);
+		source.setOnChangesPostedListener(mOnChangesPosted);
+	}
+
+	public TreeDataSource getDataSource() {
+		return mDataSource;
+	}
+
+	/**
+	 * Applies all the changes queued by the data source as a single patch.
+	 */
+	void drainDataSource() {
+		TreeDataSource source = mDataSource;
+		if (source == null || mDataPending)
+			// The changes wait for the data of setData()
+			return;
+		ArrayList<TreeDataSource.Change> changes = source.drain();
+		if (changes.isEmpty())
+			return;
+		if (mEvictedNodeCount > 0)
+			restoreEvictedFor(changes);
+		TreeViewDataPatch patch = TreeViewDataPatch.fromChanges(changes, mIdField,
+				mIdParentField, mChildrenField, mIndex, mNodes, mDataGeneration);
+		if (patch.isEmpty())
+			return;
+		mSourceVersion++;
+		applyPatch(patch);
+	}
+
+	/**
+	 * Reads back on the calling thread the evicted subtrees the changes may
+	 * touch: those holding the changed nodes and their parents, and those
+	 * of the parents themselves.
+	 */
+	private void restoreEvictedFor(List<TreeDataSource.Change> changes) {
+		ArrayList<Long> ids = new ArrayList<Long>();
+		ArrayList<Long> parents = new ArrayList<Long>();
+		for (TreeDataSource.Change change : changes) {
+			long id = change.item == null ? change.id :
+					change.item.optLong(mIdField, TreeViewNode.BAD_ID);
+			if (id == TreeViewNode.BAD_ID)
+				continue;
+			if (mEvictedIds.containsKey(id))
+				ids.add(id);
+			if (change.item == null)
+				continue;
+			long idParent = change.item.optLong(mIdParentField, TreeViewNode.BAD_ID);
+			if (idParent == TreeViewNode.BAD_ID)
+				continue;
+			if (mEvictedIds.containsKey(idParent))
+				ids.add(idParent);
+			parents.add(idParent);
+		}
+		restoreEvictedHolding(ids);
+		restoreEvictedOf(parents);
+	}
+
+	/**
+	 * Reads back on the calling thread the evicted subtrees of the groups
+	 * with the given IDs, skipping those not in memory or not evicted.
+	 */
+	private void restoreEvictedOf(Collection<Long> ids) {
+		HashSet<Long> seen = new HashSet<Long>();
+		ArrayList<TreeViewNode> groups = new ArrayList<TreeViewNode>();
+		for (Long id : ids) {
+			TreeViewNode group = mIndex.get(id);
+			if (group != null && group.getEvicted() != null && seen.add(id))
+				groups.add(group);
+		}
+		if (!groups.isEmpty())
+			restoreEvictedNow(groups);
+	}
+
+	/**
+	 * Reads back on the calling thread the evicted subtrees the appended
+	 * items may go to: those of the parents left as stubs, with those
+	 * holding the parents that are evicted.
+	 */
+	private void restoreEvictedForItems(ArrayList<JSONObject> items) {
+		ArrayList<Long> evicted = new ArrayList<Long>();
+		ArrayList<Long> parents = new ArrayList<Long>();
+		for (JSONObject item : items) {
+			long idParent = item.optLong(mIdParentField, TreeViewNode.BAD_ID);
+			if (idParent == TreeViewNode.BAD_ID)
+				continue;
+			if (mEvictedIds.containsKey(idParent))
+				evicted.add(idParent);
+			parents.add(idParent);
+		}
+		restoreEvictedHolding(evicted);
+		restoreEvictedOf(parents);
+	}
+
+	/**
+	 * Adds the item to the tree, see {@link #appendNodes(JSONArray)}.
+	 *
+	 * @param item the JSON object of the same shape as the items of the
+	 *            array passed to the constructor
+	 * @throws JSONException
+	 */
+	public void appendNode(JSONObject item) throws JSONException {
+		JSONArray items = new JSONArray();
+		items.put(item);
+		appendNodes(items);
+	}
+
+	/**
+	 * Adds the items to the tree as they come, in any order, long after
+	 * the adapter was built. An item goes to the end of the children of
+	 * its parent, or of the root level if it has no parent. An item whose
+	 * parent has not come yet waits for it together with the items coming
+	 * for itself, and the whole waiting subtree is attached when the
+	 * parent comes, by this method or by a change of the data. Items
+	 * without ID and items with an ID already in the tree or waiting are
+	 * ignored, use {@link #setData(JSONArray)} or a {@link TreeDataSource}
+	 * to change the existing nodes.
+	 * <p>
+	 * The observers are notified once, and only if a row that can be seen
+	 * has changed: the nodes were appended to the root level or to an
+	 * expanded group that can be seen, or a leaf that can be seen became
+	 * a group. The rows showing aggregates or check states are always
+	 * notified, since the values of the ancestors change.
+	 *
+	 * @param items the JSON objects of the same shape as the items of the
+	 *            array passed to the constructor
+	 * @throws JSONException if an item is not a JSON object
+	 *
+	 * @see #getOrphanCount()
+	 * @see #getMissingParentIds()
+	 */
+	public void appendNodes(JSONArray items) throws JSONException {
+		// Makes the nodes before the tree is touched, so a bad item changes nothing
+		ArrayList<JSONObject> objects = new ArrayList<JSONObject>(items.length());
+		ArrayList<TreeViewNode> nodes = new ArrayList<TreeViewNode>(items.length());
+		TreeViewInterner interner = newInterner();
+		for (int i=0; i<items.length(); i++) {
+			JSONObject item = items.getJSONObject(i);
+			if (item.optLong(mIdField, TreeViewNode.BAD_ID) == TreeViewNode.BAD_ID)
+				continue;
+			nodes.add(new TreeViewNode(item, mKeys, interner, mProjection));
+			objects.add(item);
+		}
+		countInterned(interner);
+		if (mEvictedNodeCount > 0)
+			restoreEvictedForItems(objects);
+		if (mOnTreeChangeListener != null)
+			mOnTreeChangeListener.onTreeChanging();
+		try {
+			boolean attached = false;
+			boolean visible = false;
+			synchronized (mLock) {
+				for (int i=0; i<nodes.size(); i++) {
+					TreeViewNode node = nodes.get(i);
+					long id = node.getId();
+					if (mIndex.containsKey(id) || mOrphanIndex.containsKey(id) ||
+							mEvictedIds.containsKey(id))
+						continue;
+					long idParent = objects.get(i).optLong(mIdParentField, TreeViewNode.BAD_ID);
+					TreeViewNode waiting = mOrphanIndex.get(idParent);
+					if (waiting != null) {
+						// Waits with its parent
+						waiting.putChild(node);
+						mOrphanIndex.put(id, node);
+						adoptOrphans(node);
+						continue;
+					}
+					TreeViewNode parent = mIndex.get(idParent);
+					if (idParent != TreeViewNode.BAD_ID && parent == null) {
+						ArrayList<TreeViewNode> list = mOrphans.get(idParent);
+						if (list == null) {
+							list = new ArrayList<TreeViewNode>();
+							mOrphans.put(idParent, list);
+						}
+						list.add(node);
+						mOrphanIndex.put(id, node);
+						adoptOrphans(node);
+						continue;
+					}
+					boolean leaf = parent != null && !parent.isGroupNode();
+					if (parent == null)
+						TreeViewNode.appendRoot(mNodes, node);
+					else
+						parent.putChild(node);
+					mIndex.put(id, node);
+					adoptOrphans(node);
+					if (mAggregates != null)
+						mAggregates.invalidate(node);
+					attached = true;
+					visible |= parent == mFocus || parent != null &&
+							getTopLevel().getVisiblePosition(parent) >= 0 &&
+							(leaf || parent.isExpanded());
+				}
+				if (mAggregates != null)
+					mAggregates.update();
+				if (attached) {
+					mSnapshot = null;
+					mSections = null;
+					mSourceVersion++;
+				}
+			}
+			if (attached) {
+				mSelection.invalidate();
+				if (visible || mAggregates != null || mCheckViewId != 0)
+					notifyDataSetChanged();
+			}
+		} finally {
+			if (mOnTreeChangeListener != null)
+				mOnTreeChangeListener.onTreeChanged();
+		}
+		trimToBudget();
+	}
+
+	/**
+	 * Attaches the nodes waiting for the node as its children. If the node
+	 * is in the tree, the waiting subtrees move into the tree, otherwise
+	 * they keep waiting with the node, unless one of them holds the node,
+	 * which would close a cycle.
+	 */
+	private void adoptOrphans(TreeViewNode node) throws JSONException {
+		ArrayList<TreeViewNode> list = mOrphans.remove(node.getId());
+		if (list == null)
+			return;
+		boolean inTree = mIndex.get(node.getId()) == node;
+		TreeViewNode top = node;
+		while (top.getParent() != null)
+			top = top.getParent();
+		for (int i=0; i<list.size(); i++) {
+			TreeViewNode orphan = list.get(i);
+			if (!inTree && orphan == top) {
+				// Keeps waiting for the node that waits for it
+				ArrayList<TreeViewNode> cycle = new ArrayList<TreeViewNode>();
+				cycle.add(orphan);
+				mOrphans.put(node.getId(), cycle);
+				continue;
+			}
+			node.putChild(orphan);
+			if (!inTree)
+				continue;
+			mOrphanIndex.remove(orphan.getId());
+			mIndex.put(orphan.getId(), orphan);
+			TreeViewNodeArray children = orphan.getChildren();
+			TreeViewNodeIterator it = new TreeViewNodeIterator(children, false);
+			for (TreeViewNode child = it.next(); child != null; child = it.next()) {
+				mOrphanIndex.remove(child.getId());
+				mIndex.put(child.getId(), child);
+			}
+			if (mAggregates != null) {
+				if (children != null)
+					mAggregates.computeAll(children);
+				// Recomputed by the caller with the other changes
+				mAggregates.invalidate(orphan);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of the appended nodes that wait for their
+	 * parents, together with the nodes appended to them.
+	 *
+	 * @see #appendNodes(JSONArray)
+	 */
+	public int getOrphanCount() {
+		return mOrphanIndex.size();
+	}
+
+	/**
+	 * Returns the IDs of the parents the appended nodes wait for.
+	 *
+	 * @see #appendNodes(JSONArray)
+	 */
+	public long[] getMissingParentIds() {
+		long[] ids = new long[mOrphans.size()];
+		int i = 0;
+		for (Long id : mOrphans.keySet())
+			ids[i++] = id;
+		return ids;
+	}
+
+	/**
+	 * Drops the appended nodes that wait for their parents.
+	 */
+	public void clearOrphans() {
+		mOrphans.clear();
+		mOrphanIndex.clear();
+	}
+
+	public ChildrenLoader getChildrenLoader() {
+		return mChildrenLoader;
+	}
+
+	/**
+	 * Sets the loader of the children of the groups that declare their
+	 * count, see {@link ChildrenLoader}.
+	 *
+	 * @param loader the loader, null to show the placeholder rows only
+	 */
+	public void setChildrenLoader(ChildrenLoader loader) {
+		mChildrenLoader = loader;
+		mRequestedPages.clear();
+	}
+
+	public int getChildrenPageSize() {
+		return mChildrenPageSize;
+	}
+
+	/**
+	 * Sets the number of the slots the {@link ChildrenLoader} is asked for
+	 * at once, 50 by default.
+	 */
+	public void setChildrenPageSize(int size) {
+		if (size < 1)
+			throw new IllegalArgumentException("size < 1");
+		mChildrenPageSize = size;
+		mRequestedPages.clear();
+	}
+
+	/**
+	 * Puts the children given by the {@link ChildrenLoader} into the slots
+	 * of the group from the given slot on, in place of their placeholder
+	 * rows. The slots that hold a child already and the items with an ID
+	 * already in the tree are skipped. The children keep their slots while
+	 * they are in the tree, their own children come by
+	 * {@link #appendNodes(JSONArray)} or by loading them the same way.
+	 *
+	 * @param id the ID of the group
+	 * @param start the slot of the first item
+	 * @param items the JSON objects of the children in the order of their
+	 *            slots, their parent ID fields are not used
+	 * @throws JSONException if an item is not a JSON object
+	 */
+	public void putChildren(long id, int start, JSONArray items) throws JSONException {
+		TreeViewNode group = findNode(id);
+		if (group == null || items.length() == 0)
+			return;
+		// Makes the nodes before the tree is touched, so a bad item changes nothing
+		TreeViewNode[] nodes = new TreeViewNode[items.length()];
+		TreeViewInterner interner = newInterner();
+		for (int k = 0; k < nodes.length; k++) {
+			JSONObject item = items.getJSONObject(k);
+			if (item.optLong(mIdField, TreeViewNode.BAD_ID) != TreeViewNode.BAD_ID)
+				nodes[k] = new TreeViewNode(item, mKeys, interner, mProjection);
+		}
+		countInterned(interner);
+		if (group.getEvicted() != null)
+			restoreEvictedNow(Collections.singletonList(group));
+		if (mOnTreeChangeListener != null)
+			mOnTreeChangeListener.onTreeChanging();
+		try {
+			TreeViewNodeArray children = group.getChildren();
+			int count = children == null ? 0 : children.length();
+			int[] slots = new int[count];
+			for (int i = 0; i < count; i++)
+				slots[i] = children.getSlot(i);
+			ArrayList<TreeViewNode> added = new ArrayList<TreeViewNode>();
+			synchronized (mLock) {
+				// Merges the items into the children by their slots
+				TreeViewNodeArray merged = new TreeViewNodeArray();
+				int i = 0;
+				for (int k = 0; k < nodes.length; k++) {
+					TreeViewNode node = nodes[k];
+					int slot = start + k;
+					for (; i < count && slots[i] < slot; i++)
+						merged.put(placeAt((TreeViewNode) children.opt(i), slots[i]));
+					if (i < count && slots[i] == slot)
+						continue;
+					if (node == null || mIndex.containsKey(node.getId()) ||
+							mOrphanIndex.containsKey(node.getId()) ||
+							mEvictedIds.containsKey(node.getId()))
+						continue;
+					merged.put(placeAt(node, slot));
+					mIndex.put(node.getId(), node);
+					added.add(node);
+				}
+				if (!added.isEmpty()) {
+					for (; i < count; i++)
+						merged.put(placeAt((TreeViewNode) children.opt(i), slots[i]));
+					group.setChildren(merged);
+					for (TreeViewNode node : added) {
+						adoptOrphans(node);
+						if (mAggregates != null)
+							mAggregates.invalidate(node);
+					}
+					if (mAggregates != null)
+						mAggregates.update();
+					mSnapshot = null;
+					mSections = null;
+					mSourceVersion++;
+				}
+			}
+			if (!added.isEmpty()) {
+				mSelection.invalidate();
+				notifyDataSetChanged();
+			}
+		} finally {
+			if (mOnTreeChangeListener != null)
+				mOnTreeChangeListener.onTreeChanged();
+		}
+		trimToBudget();
+	}
+
+	private static TreeViewNode placeAt(TreeViewNode node, int slot) {
+		node.setSlot(slot);
+		return node;
+	}
+
+	/**
+	 * Asks the loader for the page of the slots holding the slot of the
+	 * placeholder row, once. The loader is called after the row is shown,
+	 * so it may give the children back right away.
+	 */
+	private void loadChildren(TreeViewNode group, int slot, int slots) {
+		final ChildrenLoader loader = mChildrenLoader;
+		if (loader == null)
+			return;
+		final long id = group.getId();
+		final int page = slot / mChildrenPageSize;
+		BitSet requested = mRequestedPages.get(id);
+		if (requested == null) {
+			requested = new BitSet();
+			mRequestedPages.put(id, requested);
+		}
+		if (requested.get(page))
+			return;
+		requested.set(page);
+		final int start = page * mChildrenPageSize;
+		final int count = Math.min(mChildrenPageSize, slots - start);
+		TreeViewExecutor.postToMain(new Runnable() {
+			@Override
+			public void run() {
+				if (loader == mChildrenLoader)
+					loader.onLoadChildren(id, start, count);
+			}
+		});
+	}
+
+	/**
+	 * Returns the most nodes the adapter keeps in memory.
+	 *
+	 * @see #setMemoryBudget(int)
+	 */
+	public int getMemoryBudget() {
+		return mMemoryBudget;
+	}
+
+	/**
+	 * Sets the most nodes the adapter keeps in memory. Over the budget the
+	 * subtrees of the collapsed groups are evicted to a file in the cache
+	 * directory, those of the groups collapsed the longest ago first. Each
+	 * group is left as a stub that keeps the count of its descendants and
+	 * its aggregates. When the group is expanded again, its subtree is
+	 * read back in the background and the group expands once it is read.
+	 * The subtrees of partially checked groups are not evicted.
+	 * <p>
+	 * A lookup by the ID of an evicted node, {@link #getCheckedIds()} and
+	 * the changes of the data source within an evicted subtree read the
+	 * subtrees back at once. Snapshots read them from the file without
+	 * bringing them back into the tree.
+	 *
+	 * @param nodeCount the number of nodes, 0 for no limit, the default
+	 *
+	 * @see #onTrimMemory(int)
+	 */
+	public void setMemoryBudget(int nodeCount) {
+		if (nodeCount < 0)
+			throw new IllegalArgumentException("nodeCount < 0");
+		mMemoryBudget = nodeCount;
+		trimToBudget();
+	}
+
+	/**
+	 * Returns the number of the values of the nodes replaced by the equal
+	 * values pooled with them, 0 if not interning. The count grows with
+	 * every batch of nodes created, by the build and later.
+	 *
+	 * @see BuildOptions#setInterning(boolean)
+	 */
+	public int getInternedCount() {
+		return mInternedCount;
+	}
+
+	/**
+	 * Returns the estimated memory saved by the pooled values in bytes,
+	 * 0 if not interning.
+	 *
+	 * @see BuildOptions#setInterning(boolean)
+	 */
+	public long getInternedBytes() {
+		return mInternedBytes;
+	}
+
+	/**
+	 * Returns a new pool for the nodes made together, null if not
+	 * interning. The pool is dropped with the batch, so it never keeps
+	 * the values of the nodes removed later.
+	 */
+	private TreeViewInterner newInterner() {
+		return mInterning ? new TreeViewInterner() : null;
+	}
+
+	private void countInterned(TreeViewInterner interner) {
+		if (interner == null)
+			return;
+		mInternedCount += interner.getInternedCount();
+		mInternedBytes += interner.getSavedBytes();
+	}
+
+	/**
+	 * Returns the number of the nodes evicted to the spill file.
+	 *
+	 * @see #setMemoryBudget(int)
+	 */
+	public int getEvictedNodeCount() {
+		return mEvictedNodeCount;
+	}
+
+	/**
+	 * Evicts the subtrees of the collapsed groups as
+	 * {@link #setMemoryBudget(int)} does, whether a budget is set or not.
+	 * The activity or the application should pass on its
+	 * {@link ComponentCallbacks2#onTrimMemory(int)} calls: from
+	 * TRIM_MEMORY_RUNNING_LOW on all the collapsed subtrees are evicted,
+	 * at TRIM_MEMORY_RUNNING_MODERATE the half of the nodes in memory.
+	 *
+	 * @param level the level given to onTrimMemory()
+	 */
+	public void onTrimMemory(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+			evict(0);
+		else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE)
+			evict(mIndex.size() / 2);
+	}
+
+	private void trimToBudget() {
+		if (mMemoryBudget > 0 && mIndex.size() > mMemoryBudget)
+			evict(mMemoryBudget);
+	}
+
+	/**
+	 * Evicts the subtrees of the collapsed groups that can be seen, the
+	 * groups hidden in them go along, until no more than the given number
+	 * of nodes is left in memory or nothing more can be evicted. The focus
+	 * node and its ancestors are kept, the groups of the focused subtree
+	 * can be evicted as well.
+	 */
+	private void evict(int target) {
+		if (mIndex.size() <= target)
+			return;
+		// The focus node with its ancestors and the groups already taken
+		HashSet<TreeViewNode> skipped = new HashSet<TreeViewNode>();
+		for (TreeViewNode node = mFocus; node != null; node = node.getParent())
+			skipped.add(node);
+		ArrayList<TreeViewNode> groups = new ArrayList<TreeViewNode>();
+		TreeViewNodeArray[] levels = { mNodes, mFocus == null ? null : mFocus.getChildren() };
+		for (TreeViewNodeArray level : levels) {
+			if (level == null)
+				continue;
+			TreeViewNodeIterator it = new TreeViewNodeIterator(level, true);
+			for (TreeViewNode node = it.next(); node != null; node = it.next())
+				if (node.isCollapsed() && node.hasChildren() &&
+						mSelection.getState(mNodes, node) != CHECK_STATE_PARTIAL &&
+						skipped.add(node))
+					groups.add(node);
+		}
+		if (groups.isEmpty())
+			return;
+		Collections.sort(groups, COLLAPSE_ORDER);
+		if (mSpill == null)
+			mSpill = new TreeViewSpill(mContext, mKeys, mInterning, mProjection, mAggregates);
+		synchronized (mLock) {
+			mSnapshot = null;
+			for (int i = 0; i < groups.size() && mIndex.size() > target; i++)
+				evictSubtree(groups.get(i));
+		}
+		mSelection.invalidate();
+	}
+
+	/**
+	 * Replaces the children of the group by a segment of the spill file,
+	 * which is written on the background worker.
+	 */
+	private void evictSubtree(TreeViewNode group) {
+		TreeViewNodeArray children = group.getChildren();
+		HashMap<Long, TreeViewSpill.Segment> nested = null;
+		int loaded = 0;
+		int count = 0;
+		TreeViewNodeIterator it = new TreeViewNodeIterator(children, false);
+		for (TreeViewNode node = it.next(); node != null; node = it.next()) {
+			mIndex.remove(node.getId());
+			loaded++;
+			TreeViewSpill.Segment segment = node.getEvicted();
+			if (segment != null) {
+				if (nested == null)
+					nested = new HashMap<Long, TreeViewSpill.Segment>();
+				nested.put(node.getId(), segment);
+				count += segment.count;
+			}
+		}
+		final TreeViewSpill spill = mSpill;
+		final TreeViewSpill.Segment segment = spill.newSegment(group.getId(), children,
+				loaded + count, group.getAggregates(), nested);
+		group.setEvicted(segment);
+		segment.ids = new long[loaded];
+		it = new TreeViewNodeIterator(children, false);
+		for (TreeViewNode node = it.next(); node != null; node = it.next()) {
+			segment.ids[--loaded] = node.getId();
+			mEvictedIds.put(node.getId(), segment);
+		}
+		mEvictedNodeCount += segment.ids.length;
+		TreeViewExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				spill.write(segment);
+			}
+		});
+	}
+
+	/**
+	 * Reads the evicted subtree of the group back in the background.
+	 *
+	 * @param expand true to expand the group once it is read
+	 */
+	private void restoreEvicted(TreeViewNode group, boolean expand) {
+		final TreeViewSpill.Segment segment = group.getEvicted();
+		segment.expand |= expand;
+		if (segment.restoring)
+			return;
+		segment.restoring = true;
+		TreeViewExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				final TreeViewNodeArray children = readEvicted(segment);
+				TreeViewExecutor.postToMain(new Runnable() {
+					@Override
+					public void run() {
+						segment.restoring = false;
+						// The group may have been evicted with its parent meanwhile
+						TreeViewNode group = mIndex.get(segment.id);
+						if (group == null || group.getEvicted() != segment) {
+							segment.expand = false;
+							return;
+						}
+						boolean checked = mSelection.getState(mNodes, group) == CHECK_STATE_CHECKED;
+						attachRestored(group, children);
+						mSelection.invalidate();
+						if (checked)
+							mSelection.setChecked(mNodes, group, true);
+						notifyDataSetChanged();
+						trimToBudget();
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Reads all the evicted subtrees back on the calling thread, or only
+	 * those of the checked groups, level by level of the nested ones.
+	 */
+	private void restoreAllEvicted(boolean checkedOnly) {
+		boolean restored = false;
+		while (mEvictedNodeCount > 0) {
+			ArrayList<TreeViewNode> groups = new ArrayList<TreeViewNode>();
+			TreeViewNodeIterator it = new TreeViewNodeIterator(mNodes, false);
+			for (TreeViewNode node = it.next(); node != null; node = it.next())
+				if (node.getEvicted() != null && (!checkedOnly ||
+						mSelection.getState(mNodes, node) == CHECK_STATE_CHECKED))
+					groups.add(node);
+			if (groups.isEmpty())
+				break;
+			restoreEvictedNow(groups);
+			restored = true;
+		}
+		if (restored)
+			notifyDataSetChanged();
+	}
+
+	/**
+	 * Reads back on the calling thread the evicted subtrees holding the
+	 * nodes with the given IDs, outer ones first when they are nested. The
+	 * IDs of the nodes in memory or not in the tree are skipped, no file
+	 * is read for them.
+	 */
+	private void restoreEvictedHolding(Collection<Long> ids) {
+		boolean restored = false;
+		ArrayList<TreeViewSpill.Segment> chain = new ArrayList<TreeViewSpill.Segment>();
+		for (Long id : ids) {
+			chain.clear();
+			for (TreeViewSpill.Segment segment = mEvictedIds.get(id); segment != null;
+					segment = mEvictedIds.get(segment.id))
+				chain.add(segment);
+			for (int i = chain.size() - 1; i >= 0; i--) {
+				TreeViewNode group = mIndex.get(chain.get(i).id);
+				if (group != null && group.getEvicted() == chain.get(i)) {
+					restoreEvictedNow(Collections.singletonList(group));
+					restored = true;
+				}
+			}
+		}
+		if (restored)
+			notifyDataSetChanged();
+	}
+
+	/**
+	 * Reads the evicted subtrees of the groups back on the calling thread.
+	 */
+	private void restoreEvictedNow(List<TreeViewNode> groups) {
+		boolean[] checked = new boolean[groups.size()];
+		for (int i = 0; i < checked.length; i++)
+			checked[i] = mSelection.getState(mNodes, groups.get(i)) == CHECK_STATE_CHECKED;
+		for (TreeViewNode group : groups)
+			attachRestored(group, readEvicted(group.getEvicted()));
+		mSelection.invalidate();
+		for (int i = 0; i < checked.length; i++)
+			if (checked[i])
+				mSelection.setChecked(mNodes, groups.get(i), true);
+	}
+
+	private TreeViewNodeArray readEvicted(TreeViewSpill.Segment segment) {
+		try {
+			return mSpill.read(segment);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Puts the children read back into the group in place of its segment.
+	 * The selection must be invalidated by the caller.
+	 *
+	 * @param children the children, null if they could not be read
+	 */
+	private void attachRestored(TreeViewNode group, TreeViewNodeArray children) {
+		TreeViewSpill.Segment segment = group.getEvicted();
+		synchronized (mLock) {
+			mSnapshot = null;
+			try {
+				if (children == null) {
+					// The subtree is lost with the file
+					dropEvicted(segment);
+					group.setChildren(null);
+				} else {
+					group.setChildren(children);
+					mSpill.release(segment);
+					TreeViewNodeIterator it = new TreeViewNodeIterator(children, false);
+					for (TreeViewNode node = it.next(); node != null; node = it.next()) {
+						mIndex.put(node.getId(), node);
+						mEvictedIds.remove(node.getId());
+						mEvictedNodeCount--;
+					}
+				}
+			} catch (JSONException e) {
+				e.printStackTrace();
+			}
+			if (segment.expand)
+				group.setExpanded(true);
+			segment.expand = false;
+		}
+	}
+
+	/**
+	 * Forgets the evicted subtree with the subtrees evicted within it.
+	 */
+	private void dropEvicted(TreeViewSpill.Segment segment) {
+		mEvictedNodeCount -= segment.count;
+		ArrayList<TreeViewSpill.Segment> pending = new ArrayList<TreeViewSpill.Segment>();
+		pending.add(segment);
+		while (!pending.isEmpty()) {
+			TreeViewSpill.Segment current = pending.remove(pending.size() - 1);
+			mSpill.release(current);
+			for (long id : current.ids)
+				mEvictedIds.remove(id);
+			if (current.nested != null)
+				pending.addAll(current.nested.values());
+		}
+	}
+
+	@Override
+	void setOnTreeChangeListener(OnTreeChangeListener listener) {
+		mOnTreeChangeListener = listener;
+	}
+
+	/**
+	 * Rows are recycled within the same item layout, which is one of the
+	 * expanded group, collapsed group, child and last child layouts.
+	 */
+	@Override
+	public int getViewTypeCount() {
+		return VIEW_TYPE_COUNT;
+	}
+
+	@Override
+	public int getItemViewType(int position) {
+		RowPayload payload = mPrefetched.get(position);
+		if (payload != null)
+			return payload.viewType;
+		final TreeViewNode node = getTreeViewNode(position);
+		if (node != null)
+			return getItemViewType(node);
+		final int[] slot = mPlaceholderSlot;
+		if (getTopLevel().getVisiblePlaceholder(position, slot) == null)
+			return IGNORE_ITEM_VIEW_TYPE;
+		return slot[0] >= slot[1] - 1 ? VIEW_TYPE_LAST_CHILD : VIEW_TYPE_CHILD;
+	}
+
+	private static int getItemViewType(TreeViewNode node) {
+		if (node.isGroupNode())
+			return node.isCollapsed() ? VIEW_TYPE_COLLAPSED_GROUP : VIEW_TYPE_EXPANDED_GROUP;
+		return isLastRow(node) ? VIEW_TYPE_LAST_CHILD : VIEW_TYPE_CHILD;
 	}
 
 	@Override
 	public View getView(int position, View convertView, ViewGroup parent) {
+		RowPayload payload = mPrefetched.get(position);
+		if (payload != null)
+			mPrefetched.remove(position);
+		else {
+			final TreeViewNode node = getTreeViewNode(position);
+			payload = mRowPayload;
+			if (node != null)
+				payload.set(node);
+			else {
+				final int[] slot = mPlaceholderSlot;
+				final TreeViewNode group = getTopLevel().getVisiblePlaceholder(position, slot);
+				if (group == null)
+					return null;
+				payload.setPlaceholder(group, slot[0], slot[1]);
+				loadChildren(group, slot[0], slot[1]);
+			}
+		}
+        return createViewFromResource(payload, position, convertView);
+	}
+
+	/**
+	 * Resolves the node at the position and prepares the data of its row
+	 * ahead of {@link #getView(int, View, ViewGroup)}, which then only has
+	 * to assign it to the views. Called by {@link TreeView} on the UI thread
+	 * when it is idle. The prepared rows are dropped on any change of the
+	 * data or of the look of the rows.
+	 *
+	 * @return false if there is no row at the position
+	 */
+	@Override
+	boolean prefetch(int position) {
+		if (mPrefetched.get(position) != null)
+			return true;
 		final TreeViewNode node = getTreeViewNode(position);
 		if (node == null)
-			return null;
-		Boolean isGroup = node.isGroupNode();
-        return createViewFromResource(node, position, convertView, parent, isGroup ?
-        	(node.isCollapsed() ? mCollapsedGroupLayout : mExpandedGroupLayout) :
-        	(node.isLast() ? mLastChildLayout : mChildLayout), isGroup);
-	}
-
-    private View createViewFromResource(TreeViewNode node, int position, View convertView,
-            ViewGroup parent, int resource, Boolean isGroup) {
-    	View v;
-        if (convertView == null || convertView.getId() != (int) node.getId()) {
-        	v = mInflater.inflate(R.layout.treeview_item_wrapper, parent, false);
-        	v.setId((int) node.getId());
-        	View list_item = mInflater.inflate(resource, parent, false);
-        	((ViewGroup) v).addView(list_item);
-
-        	View indented = v.findViewById(R.id.treeview_item_image);
-        	int resId = isGroup ? mGroupIndicatorRes : mChildIndicatorRes;
-        	if (resId != 0)
-        		((ImageView) indented).setImageResource(resId);
-        	else {
-        		((ViewGroup) v).removeView(indented);
-        		indented = list_item;
+			// Nothing to prepare for a placeholder row
+			return getTopLevel().getVisiblePlaceholder(position, mPlaceholderSlot) != null;
+		if (mPrefetched.size() >= MAX_PREFETCHED)
+			mPrefetched.clear();
+		RowPayload payload = new RowPayload();
+		payload.set(node);
+		mPrefetched.put(position, payload);
+		return true;
+	}
+
+	/**
+	 * Also to be called after changing the fields of the nodes directly,
+	 * the next snapshot takes the changed fields.
+	 */
+	@Override
+	public void notifyDataSetChanged() {
+		mPrefetched.clear();
+		synchronized (mLock) {
+			mSnapshot = null;
+			mSections = null;
+		}
+		super.notifyDataSetChanged();
+	}
+
+	@Override
+	public void notifyDataSetInvalidated() {
+		mPrefetched.clear();
+		super.notifyDataSetInvalidated();
+	}
+
+    private View createViewFromResource(RowPayload payload, int position, View convertView) {
+    	final int viewType = payload.viewType;
+    	final TreeViewMetrics metrics = mMetrics;
+    	long start = 0;
+    	if (metrics != null) {
+    		TreeViewTrace.beginSection(TreeViewTrace.INFLATE);
+    		start = System.nanoTime();
+    	}
+    	TreeRowLayout v;
+    	boolean recycled = false;
+        if (!(convertView instanceof TreeRowLayout) || convertView.getTag() != mRowStamp) {
+        	v = null;
+        	if (mRowPoolSize > 0) {
+        		v = mRowPool.obtain(viewType, mRowStamp);
+        		fillRowPool();
         	}
+        	if (v == null)
+        		v = createRow(mInflater, viewType, mRowStamp);
+        } else {
+            v = (TreeRowLayout) convertView;
+            recycled = true;
+        }
+        v.setIndent(mIndent * payload.level);
 
-        	ViewGroup.LayoutParams params = indented.getLayoutParams();
-        	((LinearLayout.LayoutParams) params).leftMargin = mIndent * node.getLevel();
-        	indented.requestLayout();
-        } else
-            v = convertView;
+        v.setIndicatorState(STATE[payload.state]);
+        v.setNodeId(payload.id);
+        v.setGuides(payload.level, payload.last);
 
-        ImageView image = (ImageView) v.findViewById(R.id.treeview_item_image);
-        if (image != null)
-        	image.setImageState(STATE[node.isExpanded() ? STATE_EXPANDED :
-        		!node.isGroupNode() && node.isLast() ?
-        			STATE_LAST : STATE_NONE], true);
+        if (metrics == null) {
+        	bindView(payload, v);
+        	return v;
+        }
 
-        bindView(node, v);
+        long inflated = System.nanoTime();
+        TreeViewTrace.endSection();
+        TreeViewTrace.beginSection(TreeViewTrace.BIND);
+        bindView(payload, v);
+        long bound = System.nanoTime();
+        TreeViewTrace.endSection();
+        metrics.onGetView(position, inflated - start, bound - inflated, recycled);
 
         return v;
     }
 
-    private void bindView(TreeViewNode node, View view) {
+    /**
+     * Creates the row for the view type. Called on the UI thread and
+     * on the background worker filling the pool of rows, each with its
+     * own inflater.
+     */
+    private TreeRowLayout createRow(LayoutInflater inflater, int viewType, Object stamp) {
+    	Context context = inflater.getContext();
+    	TreeRowLayout row = new TreeRowLayout(context);
+    	row.setTag(stamp);
+    	int resource;
+    	int resId;
+    	switch (viewType) {
+    	case VIEW_TYPE_EXPANDED_GROUP:
+    		resource = mExpandedGroupLayout;
+    		resId = mGroupIndicatorRes;
+    		break;
+    	case VIEW_TYPE_COLLAPSED_GROUP:
+    		resource = mCollapsedGroupLayout;
+    		resId = mGroupIndicatorRes;
+    		break;
+    	case VIEW_TYPE_LAST_CHILD:
+    		resource = mLastChildLayout;
+    		resId = mChildIndicatorRes;
+    		break;
+    	default:
+    		resource = mChildLayout;
+    		resId = mChildIndicatorRes;
+    	}
+    	row.addView(inflater.inflate(resource, row, false));
+    	if (resId != 0)
+    		row.setIndicator(context.getResources().getDrawable(resId));
+    	return row;
+    }
+
+    /**
+     * Tops up the pool of rows on the background worker, unless it is
+     * already being filled. The rows made for an older row stamp are
+     * dropped by the pool.
+     */
+    private void fillRowPool() {
+    	if (mRowPoolSize == 0 || mRowPoolFilling)
+    		return;
+    	mRowPoolFilling = true;
+    	final int size = mRowPoolSize;
+    	final Object stamp = mRowStamp;
+    	if (mPoolInflater == null)
+    		mPoolInflater = mInflater.cloneInContext(mInflater.getContext());
+    	final LayoutInflater inflater = mPoolInflater;
+    	TreeViewExecutor.execute(new Runnable() {
+    		@Override
+    		public void run() {
+    			boolean failed = false;
+    			try {
+    				for (int viewType=0; viewType<VIEW_TYPE_COUNT; viewType++)
+    					while (stamp == mRowStamp && mRowPool.size(viewType) < size)
+    						mRowPool.put(viewType, createRow(inflater, viewType, stamp));
+    			} catch (RuntimeException e) {
+    				// Some views can only be created on the UI thread
+    				e.printStackTrace();
+    				failed = true;
+    			}
+    			final boolean disable = failed;
+    			TreeViewExecutor.postToMain(new Runnable() {
+    				@Override
+    				public void run() {
+    					mRowPoolFilling = false;
+    					if (disable)
+    						setRowPoolSize(0);
+    					else if (stamp != mRowStamp)
+    						fillRowPool();
+    				}
+    			});
+    		}
+    	});
+    }
+
+    private void bindView(RowPayload payload, TreeRowLayout row) {
         final ViewBinder binder = mViewBinder;
-        final String[] from = node.hasChildren() ? mGroupFrom : mChildFrom;
-        final int[] to = node.hasChildren() ? mGroupTo : mChildTo;
-        final int count = to.length;
+        final TreeViewFieldBinding.Values values = payload.values;
+        payload.binding.attach(row);
+        final View[] views = row.getSlotViews();
+        final int[] kinds = row.getSlotKinds();
+        final int count = views.length;
 
         for (int i = 0; i < count; i++) {
-            final View v = view.findViewById(to[i]);
+            final View v = views[i];
             if (v != null) {
-                final Object data = node.opt(from[i]);
-                String text = data == null ? "" : data.toString();
-                if (text == null)
-                    text = "";
+                final Object data = values.data[i];
+                final String text = values.text[i];
 
                 boolean bound = false;
                 if (binder != null)
                     bound = binder.setViewValue(v, data, text);
 
                 if (!bound) {
-                    if (v instanceof Checkable) {
+                    switch (kinds[i]) {
+                    case TreeViewFieldBinding.VIEW_CHECKABLE:
+                    case TreeViewFieldBinding.VIEW_CHECKABLE_TEXT:
                         if (data instanceof Boolean)
                             ((Checkable) v).setChecked((Boolean) data);
-                        else if (v instanceof TextView)
-                            // Note: keep the instanceof TextView check at the bottom of these
-                            // ifs since a lot of views are TextViews (e.g. CheckBoxes).
+                        else if (kinds[i] == TreeViewFieldBinding.VIEW_CHECKABLE_TEXT)
                             setViewText((TextView) v, text);
                         else
                             throw new IllegalStateException(v.getClass().getName() +
                                     " should be bound to a Boolean, not a " +
                                     (data == null ? "<unknown type>" : data.getClass()));
-                    } else if (v instanceof TextView) {
-                        // Note: keep the instanceof TextView check at the bottom of these
-                        // ifs since a lot of views are TextViews (e.g. CheckBoxes).
+                        break;
+                    case TreeViewFieldBinding.VIEW_TEXT:
                         setViewText((TextView) v, text);
-                    } else if (v instanceof ImageView) {
+                        break;
+                    case TreeViewFieldBinding.VIEW_IMAGE:
                         if (data instanceof Integer)
-                            setViewImage((ImageView) v, (Integer) data);                            
+                            setViewImage((ImageView) v, (Integer) data);
                         else
                             setViewImage((ImageView) v, text);
-                    } else
+                        break;
+                    default:
                         throw new IllegalStateException(v.getClass().getName() + " is not a " +
                                 " view that can be bounds by this SimpleAdapter");
+                    }
                 }
             }
         }
+
+        if (mCheckViewId != 0) {
+        	final View v = row.findViewById(mCheckViewId);
+        	if (v != null) {
+        		if (v instanceof Checkable)
+        			((Checkable) v).setChecked(payload.checkState == CHECK_STATE_CHECKED);
+        		v.setSelected(payload.checkState == CHECK_STATE_PARTIAL);
+        		v.setOnClickListener(mCheckClickListener);
+        	}
+        }
+    }
+
+    /**
+     * The children of a group expanding in steps, the first of them are
+     * shown while the rows of the others are being counted.
+     */
+    private static final class ExpandSteps {
+    	final TreeViewNode group;
+    	final TreeViewNodeArray children;
+    	/** The number of the first children whose rows are counted. */
+    	int shown;
+    	boolean done;
+
+    	ExpandSteps(TreeViewNode group, TreeViewNodeArray children) {
+    		this.group = group;
+    		this.children = children;
+    	}
+
+    	/**
+    	 * Counts the rows of the subtrees of the next children until the
+    	 * deadline, those counted are kept for the next step.
+    	 *
+    	 * @return true if the rows of all the children are counted
+    	 */
+    	boolean step(long deadline) {
+    		int count = children.length();
+    		while (shown < count) {
+    			TreeViewNode child = (TreeViewNode) children.opt(shown);
+    			TreeViewNodeArray grandchildren = child == null || !child.isExpanded() ?
+    					null : child.getChildren();
+    			if (grandchildren != null && !grandchildren.updateVisibleOffsets(deadline))
+    				return false;
+    			shown++;
+    			if (deadline != Long.MAX_VALUE && System.nanoTime() > deadline)
+    				break;
+    		}
+    		return shown == count;
+    	}
+
+    	/**
+    	 * Shows the children counted so far, or all of them when done.
+    	 */
+    	void show() {
+    		if (group.getChildren() == children)
+    			group.setShownChildren(done ? -1 : shown);
+    		else
+    			children.setVisibleLimit(-1);
+    	}
+    }
+
+    /**
+     * What a row shows: everything {@link #getView(int, View, ViewGroup)}
+     * needs besides the views, so it can be prepared ahead of time.
+     * The values of the fields are those cached on the node.
+     */
+    private final class RowPayload {
+    	long id;
+    	int viewType;
+    	int level;
+    	int checkState;
+    	int state;
+    	/** Whether the node and each of its ancestors up the level is the last row. */
+    	boolean[] last;
+    	TreeViewFieldBinding binding;
+    	TreeViewFieldBinding.Values values;
+
+    	void set(TreeViewNode node) {
+    		id = node.getId();
+    		viewType = getItemViewType(node);
+    		checkState = mCheckViewId == 0 ? CHECK_STATE_UNCHECKED : mSelection.getState(mNodes, node);
+    		level = getLevel(node);
+    		state = node.isExpanded() ? STATE_EXPANDED :
+    			!node.isGroupNode() && isLastRow(node) ? STATE_LAST : STATE_NONE;
+    		setLast(node, 0);
+    		binding = node.hasChildren() || node.getEvicted() != null ? mGroupBinding : mChildBinding;
+    		values = binding.getValues(node);
+    	}
+
+    	/**
+    	 * Prepares the placeholder row of a child the group has not loaded yet.
+    	 */
+    	void setPlaceholder(TreeViewNode group, int slot, int slots) {
+    		boolean last = slot >= slots - 1;
+    		id = TreeViewNode.BAD_ID;
+    		viewType = last ? VIEW_TYPE_LAST_CHILD : VIEW_TYPE_CHILD;
+    		checkState = CHECK_STATE_UNCHECKED;
+    		level = getLevel(group) + 1;
+    		state = last ? STATE_LAST : STATE_NONE;
+    		setLast(group, 1);
+    		this.last[0] = last;
+    		binding = mChildBinding;
+    		values = binding.getPlaceholderValues();
+    	}
+
+    	/**
+    	 * Walks up from the node once for the guide lines, so drawing the
+    	 * row does not walk up for every ancestor.
+    	 *
+    	 * @param up the distance of the node from the row, 1 for a placeholder
+    	 */
+    	private void setLast(TreeViewNode node, int up) {
+    		if (last == null || last.length < level)
+    			last = new boolean[level];
+    		for (; up < level && node != null; up++, node = node.getParent())
+    			last[up] = isLastRow(node);
+    	}
     }
 
     /**
@@ -498,17 +2599,19 @@ public class SimpleJsonTreeViewAdapter extends BaseAdapter {
         v.setText(text);
     }
 
+    @Override
     void setGroupIndicatorResource(int resId) {
     	if (mGroupIndicatorRes != resId) {
     		mGroupIndicatorRes = resId;
-    		notifyDataSetInvalidated();
+    		invalidateRows();
     	}
     }
 
+    @Override
     void setChildIndicatorResource(int resId) {
     	if (mChildIndicatorRes != resId) {
     		mChildIndicatorRes = resId;
-    		notifyDataSetInvalidated();
+    		invalidateRows();
     	}
     }
 
@@ -516,16 +2619,437 @@ public class SimpleJsonTreeViewAdapter extends BaseAdapter {
     	return mIndent;
     }
 
+    /**
+     * Returns the {@link TreeViewMetrics} listener receiving timings of this adapter.
+     *
+     * @return a listener or null if no listener is registered
+     *
+     * @see #setMetrics(TreeViewMetrics)
+     */
+    public TreeViewMetrics getMetrics() {
+    	return mMetrics;
+    }
+
+    /**
+     * Registers the listener receiving timings of this adapter. The figures
+     * of the tree build that has already happened are reported to the new
+     * listener immediately.
+     *
+     * @param metrics the listener, can be null to stop measuring
+     *
+     * @see #getMetrics()
+     */
+    @Override
+    public void setMetrics(TreeViewMetrics metrics) {
+    	if (mMetrics == metrics)
+    		return;
+    	mMetrics = metrics;
+    	if (metrics != null && mNodes != null)
+    		metrics.onBuild(mBuildNanos, mBuildNodeCount);
+    }
+
+    /**
+     * Returns the number of rows per view type kept inflated ahead of time.
+     *
+     * @see #setRowPoolSize(int)
+     */
+    public int getRowPoolSize() {
+    	return mRowPoolSize;
+    }
+
+    /**
+     * Sets the number of rows per view type that are inflated ahead of time
+     * on a background thread, so the first screens after the adapter is set
+     * and after large expands need not inflate rows on the UI thread. The
+     * pool is topped up as rows are taken from it. Item layouts with views
+     * that can only be created on the UI thread disable the pool.
+     * The pool is off by default.
+     *
+     * @param size the number of rows, 0 to turn the pool off
+     *
+     * @see #getRowPoolHitCount()
+     * @see #getRowPoolMissCount()
+     */
+    public void setRowPoolSize(int size) {
+    	if (size < 0 || size == mRowPoolSize)
+    		return;
+    	mRowPoolSize = size;
+    	if (size == 0)
+    		mRowPool.clear();
+    	else
+    		fillRowPool();
+    }
+
+    /**
+     * Returns how many new rows were taken from the pool of rows.
+     *
+     * @see #setRowPoolSize(int)
+     */
+    public int getRowPoolHitCount() {
+    	return mRowPool.getHitCount();
+    }
+
+    /**
+     * Returns how many new rows had to be inflated on the UI thread because
+     * the pool of rows had none left.
+     *
+     * @see #setRowPoolSize(int)
+     */
+    public int getRowPoolMissCount() {
+    	return mRowPool.getMissCount();
+    }
+
+    /**
+     * Resets the hit and miss counts of the pool of rows.
+     */
+    public void resetRowPoolCounts() {
+    	mRowPool.resetCounts();
+    }
+
+    private void invalidateRows() {
+    	mRowStamp = new Object();
+    	mRowPool.clear();
+    	fillRowPool();
+    	notifyDataSetInvalidated();
+    }
+
+    @Override
     void setIndent(int indent) {
     	if (indent >= 0 && indent != mIndent) {
     		mIndent = indent;
-    		notifyDataSetInvalidated();
+    		invalidateRows();
     	}
     }
 
     @Override
     public String toString() {
-		return mNodes.toString();
+    	// The evicted subtrees are read into the snapshot, not back into the tree
+    	StringWriter writer = new StringWriter();
+    	try {
+    		writeTo(writer, Format.NESTED);
+    	} catch (IOException e) {
+    		throw new AssertionError(e);
+    	}
+    	return writer.toString();
+    }
+
+    /**
+     * Returns an immutable copy of the tree that can be read on any thread,
+     * for example to search or export the nodes in the background while the
+     * user keeps expanding and collapsing groups. The same snapshot is
+     * returned until the tree changes, then the next snapshot shares the
+     * unchanged levels and fields with the previous one. The levels out of
+     * date are made one at a time, so the changes of the tree and the
+     * expanding and collapsing of groups on the UI thread wait for one level
+     * at most, never for a whole snapshot, and the evicted subtrees are read
+     * back from the spill file without holding up the changes. Reading a
+     * snapshot takes no locks, and the rows of the list are bound without
+     * looking at the snapshots at all.
+     */
+    public TreeViewSnapshot snapshot() {
+    	TreeViewSnapshot snapshot = mSnapshot;
+    	if (snapshot != null)
+    		return snapshot;
+    	// Holds the nodes read from the spill file until the snapshot shares them
+    	ArrayList<TreeViewSnapshot.Node[]> read = null;
+    	ArrayList<TreeViewSpill.Segment> unread = new ArrayList<TreeViewSpill.Segment>();
+    	while (true) {
+    		TreeViewNodeArray nodes;
+    		synchronized (mLock) {
+    			if (mSnapshot == null && mNodes.hasSnapshotNodes())
+    				mSnapshot = new TreeViewSnapshot(mNodes.getSnapshotNodes());
+    			if (mSnapshot != null)
+    				return mSnapshot;
+    			nodes = mNodes;
+    		}
+    		nodes.updateSnapshotNodes(mLock, unread);
+    		if (unread.isEmpty())
+    			continue;
+    		// The evicted subtrees are read without the lock, then the snapshot is tried again
+    		if (read == null)
+    			read = new ArrayList<TreeViewSnapshot.Node[]>();
+    		for (TreeViewSpill.Segment segment : unread)
+    			read.add(segment.getSnapshotNodes());
+    		unread.clear();
+    	}
+    }
+
+    /**
+     * Writes the tree as JSON to the writer without building the whole
+     * document in memory. The structure of the tree and the expanded state
+     * of the groups are captured at the moment of the call, so the method
+     * can be called from a background thread while the user keeps
+     * expanding and collapsing groups. Below API 11 the text is written
+     * without {@link android.util.JsonWriter}, in the same shape.
+     *
+     * @param writer the destination, it is flushed but not closed
+     * @param format {@link Format#FLAT} to get the array that can be passed
+     *            back to the constructors, {@link Format#NESTED} to get the
+     *            same shape as {@link #toString()}
+     * @throws IOException if the writer fails
+     */
+    public void writeTo(Writer writer, Format format) throws IOException {
+    	TreeViewJsonWriter snapshot = new TreeViewJsonWriter(snapshot());
+    	final TreeViewMetrics metrics = mMetrics;
+    	if (metrics == null) {
+    		snapshot.write(writer, format == Format.NESTED);
+    		return;
+    	}
+    	TreeViewTrace.beginSection(TreeViewTrace.SERIALIZE);
+    	long start = System.nanoTime();
+    	TreeViewJsonWriter.CountingWriter counter = new TreeViewJsonWriter.CountingWriter(writer);
+    	try {
+    		snapshot.write(counter, format == Format.NESTED);
+    	} finally {
+    		TreeViewTrace.endSection();
+    	}
+    	metrics.onSerialize(System.nanoTime() - start, counter.getCount());
+    }
+
+    /**
+     * Runs the drain of the data source, or the steps of the expanding
+     * groups, at the next frame.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static final class FrameDrain implements Choreographer.FrameCallback {
+
+    	private final Choreographer mChoreographer = Choreographer.getInstance();
+    	private final Runnable mDrain;
+
+    	FrameDrain(Runnable drain) {
+    		mDrain = drain;
+    	}
+
+    	/**
+    	 * Can be called on any thread.
+    	 */
+    	void post() {
+    		mChoreographer.postFrameCallback(this);
+    	}
+
+    	@Override
+    	public void doFrame(long frameTimeNanos) {
+    		mDrain.run();
+    	}
+    }
+
+    /**
+     * Options of building the tree from the single-level JSON array,
+     * passed to the constructor.
+     */
+    public static class BuildOptions {
+
+    	private int mParallelism = 1;
+    	private OnBuildReportListener mOnBuildReportListener;
+    	private boolean mInterning;
+    	private boolean mProjected;
+    	private boolean mKeepDroppedFields;
+    	private final ArrayList<String> mProjectedFields = new ArrayList<String>();
+    	private final ArrayList<String> mAggregateNames = new ArrayList<String>();
+    	private final ArrayList<Integer> mAggregateFunctions = new ArrayList<Integer>();
+    	private final ArrayList<String> mAggregateFields = new ArrayList<String>();
+
+    	/**
+    	 * Sets the number of threads converting the JSON objects to nodes.
+    	 * The objects are split into parts converted in parallel, then the
+    	 * parts are linked into the tree on the calling thread. The tree is
+    	 * the same as built on a single thread. Small arrays are converted on
+    	 * the calling thread anyway.
+    	 *
+    	 * @param parallelism the number of threads, 1 by default, 0 for
+    	 *            the number of the processors
+    	 * @return this object
+    	 */
+    	public BuildOptions setParallelism(int parallelism) {
+    		if (parallelism < 0)
+    			throw new IllegalArgumentException("parallelism < 0");
+    		mParallelism = parallelism;
+    		return this;
+    	}
+
+    	public int getParallelism() {
+    		return mParallelism;
+    	}
+
+    	int getThreadCount() {
+    		return mParallelism == 0 ? TreeViewExecutor.getProcessorCount() : mParallelism;
+    	}
+
+    	/**
+    	 * Sets the listener receiving the {@link TreeViewBuildReport} of the
+    	 * build: the items dropped because their parents are missing or form
+    	 * a cycle, and the repeated IDs. The report takes one more linear pass
+    	 * and is not collected without the listener.
+    	 *
+    	 * @param listener the listener, can be null
+    	 * @return this object
+    	 */
+    	public BuildOptions setOnBuildReportListener(OnBuildReportListener listener) {
+    		mOnBuildReportListener = listener;
+    		return this;
+    	}
+
+    	public OnBuildReportListener getOnBuildReportListener() {
+    		return mOnBuildReportListener;
+    	}
+
+    	/**
+    	 * Sets whether the field names, strings and boxed numbers repeated
+    	 * over the items are shared by the nodes instead of kept by each
+    	 * node, for the build and for the nodes created later by
+    	 * {@link SimpleJsonTreeViewAdapter#setData(JSONArray)}, the appends
+    	 * and the pages of children. Each of them pools the values of the
+    	 * nodes it makes and drops the pool once done, so the values are
+    	 * shared within the batch and the pool holds nothing afterwards.
+    	 * The memory saved is given by
+    	 * {@link SimpleJsonTreeViewAdapter#getInternedBytes()}, and by
+    	 * {@link TreeViewBuildReport#getInternedBytes()} for the build.
+    	 *
+    	 * @param interning true to share the values, false by default
+    	 * @return this object
+    	 */
+    	public BuildOptions setInterning(boolean interning) {
+    		mInterning = interning;
+    		return this;
+    	}
+
+    	public boolean isInterning() {
+    		return mInterning;
+    	}
+
+    	/**
+    	 * Sets whether the nodes keep only the fields the adapter uses: the
+    	 * key fields, the "from" fields, the fields of the aggregates and
+    	 * those added by {@link #addProjectedField(String)}. The other fields
+    	 * are dropped while the nodes are created, unless they are kept aside
+    	 * with {@link #setKeepDroppedFields(boolean)}.
+    	 *
+    	 * @param projected true to drop the unused fields, false by default
+    	 * @return this object
+    	 */
+    	public BuildOptions setProjected(boolean projected) {
+    		mProjected = projected;
+    		return this;
+    	}
+
+    	public boolean isProjected() {
+    		return mProjected;
+    	}
+
+    	/**
+    	 * Adds a field kept by the nodes of a projected build besides the
+    	 * fields the adapter uses.
+    	 *
+    	 * @param field the name of the field
+    	 * @return this object
+    	 */
+    	public BuildOptions addProjectedField(String field) {
+    		mProjectedFields.add(field);
+    		return this;
+    	}
+
+    	/**
+    	 * Sets whether the fields dropped by a projected build are kept by
+    	 * each node as compact JSON text, which is parsed when one of them
+    	 * is asked for by {@link TreeViewNode#opt(String)}. They are also
+    	 * written out with the tree.
+    	 *
+    	 * @param keep true to keep the dropped fields aside, false by default
+    	 * @return this object
+    	 */
+    	public BuildOptions setKeepDroppedFields(boolean keep) {
+    		mKeepDroppedFields = keep;
+    		return this;
+    	}
+
+    	public boolean isKeepDroppedFields() {
+    		return mKeepDroppedFields;
+    	}
+
+    	TreeViewProjection createProjection(String[] keys, String[] groupFrom, String[] childFrom) {
+    		if (!mProjected)
+    			return null;
+    		TreeViewProjection projection = new TreeViewProjection(mKeepDroppedFields);
+    		projection.addFields(keys);
+    		projection.addFields(groupFrom);
+    		projection.addFields(childFrom);
+    		projection.addFields(mAggregateFields);
+    		projection.addFields(mProjectedFields);
+    		return projection;
+    	}
+
+    	/**
+    	 * Declares an aggregate of a field over the descendants of each
+    	 * node. The aggregates are computed once after the build and kept up
+    	 * to date along the ancestors of the nodes inserted, removed or
+    	 * updated by {@link SimpleJsonTreeViewAdapter#setData(JSONArray)}.
+    	 * The name can be used in the "from" arrays as a virtual field.
+    	 *
+    	 * @param name the name of the aggregate, should differ from the fields
+    	 * @param function {@link SimpleJsonTreeViewAdapter#AGGREGATE_COUNT},
+    	 *            {@link SimpleJsonTreeViewAdapter#AGGREGATE_SUM},
+    	 *            {@link SimpleJsonTreeViewAdapter#AGGREGATE_MIN} or
+    	 *            {@link SimpleJsonTreeViewAdapter#AGGREGATE_MAX}
+    	 * @param field the numeric field, can be null for the count of all
+    	 *            the descendants
+    	 * @return this object
+    	 */
+    	public BuildOptions addAggregate(String name, int function, String field) {
+    		if (name == null)
+    			throw new IllegalArgumentException("name == null");
+    		if (function < AGGREGATE_COUNT || function > AGGREGATE_MAX)
+    			throw new IllegalArgumentException("Unknown aggregate function " + function);
+    		if (field == null && function != AGGREGATE_COUNT)
+    			throw new IllegalArgumentException("field == null");
+    		mAggregateNames.add(name);
+    		mAggregateFunctions.add(function);
+    		mAggregateFields.add(field);
+    		return this;
+    	}
+
+    	TreeViewAggregates createAggregates() {
+    		if (mAggregateNames.isEmpty())
+    			return null;
+    		return new TreeViewAggregates(mAggregateNames, mAggregateFunctions, mAggregateFields);
+    	}
+    }
+
+    /**
+     * Loads the children of the groups whose data declares the count of
+     * their children by the child count field (the 6-th key, "child_count"
+     * by default). Such a group takes the rows of all its children when it
+     * is expanded, those not loaded yet are shown as placeholder rows with
+     * the child layout and empty views, and only the pages of the slots
+     * whose placeholder rows come into view are asked for.
+     *
+     * @see SimpleJsonTreeViewAdapter#setChildrenLoader(ChildrenLoader)
+     */
+    public static interface ChildrenLoader {
+    	/**
+    	 * Called on the UI thread for a page of the slots of the group. The
+    	 * children are given back on the UI thread, now or later, by
+    	 * {@link SimpleJsonTreeViewAdapter#putChildren(long, int, JSONArray)}.
+    	 * A page is asked for once until the data of the adapter changes.
+    	 *
+    	 * @param id the ID of the group
+    	 * @param start the first slot of the page
+    	 * @param count the number of the slots
+    	 */
+    	void onLoadChildren(long id, int start, int count);
+    }
+
+    /**
+     * Receives the report of the build of the tree.
+     *
+     * @see BuildOptions#setOnBuildReportListener(OnBuildReportListener)
+     */
+    public static interface OnBuildReportListener {
+    	/**
+    	 * Called on the thread building the tree before the constructor returns.
+    	 *
+    	 * @param report the problems found in the data
+    	 */
+    	void onBuildReport(TreeViewBuildReport report);
     }
 
     /**
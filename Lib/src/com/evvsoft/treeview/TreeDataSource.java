@@ -0,0 +1,185 @@
+/*
+ * Copyright © 2015 The Evvsoft TreeView Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evvsoft.treeview;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+
+import android.os.Looper;
+
+/**
+ * A stream of changes of the tree data posted from any thread, for
+ * example by a sync engine, and applied by the adapter it is set to with
+ * {@link SimpleJsonTreeViewAdapter#setDataSource(TreeDataSource)}.
+ * <p>
+ * The changes are queued without locks. The adapter takes all the queued
+ * changes once per frame and applies them together, notifying the list
+ * once. When more changes than the capacity are queued, the posting
+ * threads wait until the adapter takes them, so a fast producer cannot
+ * make the queue grow without limit. The main thread never waits, and
+ * neither do the threads posting to a source not set to an adapter, since
+ * nothing would take the changes.
+ */
+public final class TreeDataSource {
+
+	/** The capacity of the sources created without one. */
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	private final int mCapacity;
+	private final ConcurrentLinkedQueue<Change> mQueue = new ConcurrentLinkedQueue<Change>();
+	/** The number of the changes in the queue, counted apart as the queue cannot tell it fast. */
+	private final AtomicInteger mSize = new AtomicInteger();
+	/** True while the adapter is due to take the changes. */
+	private final AtomicBoolean mScheduled = new AtomicBoolean();
+	/** The threads waiting for the queue to shrink wait on it. */
+	private final Object mFull = new Object();
+	private volatile OnChangesPostedListener mListener;
+
+	/**
+	 * Called on the posting thread when the queue becomes non-empty.
+	 */
+	interface OnChangesPostedListener {
+		void onChangesPosted();
+	}
+
+	/**
+	 * A change, the object to add or to replace the node with the same ID,
+	 * or the ID of the node to remove.
+	 */
+	static final class Change {
+
+		final JSONObject item;
+		final long id;
+
+		Change(JSONObject item, long id) {
+			this.item = item;
+			this.id = id;
+		}
+	}
+
+	public TreeDataSource() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity the number of the queued changes past which the
+	 *            posting threads wait while the source is set to an adapter
+	 */
+	public TreeDataSource(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		mCapacity = capacity;
+	}
+
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * Returns the number of the changes not taken by the adapter yet.
+	 */
+	public int getPendingCount() {
+		return mSize.get();
+	}
+
+	/**
+	 * Posts an object of the same shape as the items of the array passed to
+	 * the adapter constructors. It adds a node, or replaces the fields and
+	 * the parent of the node with the same ID. The object must not be
+	 * modified after it has been posted.
+	 *
+	 * @throws InterruptedException if the thread is interrupted while it
+	 *             waits for the queue to shrink
+	 */
+	public void put(JSONObject item) throws InterruptedException {
+		if (item == null)
+			throw new NullPointerException("item");
+		post(new Change(item, TreeViewNode.BAD_ID));
+	}
+
+	/**
+	 * Posts the removal of the node with the given ID and its descendants.
+	 *
+	 * @throws InterruptedException if the thread is interrupted while it
+	 *             waits for the queue to shrink
+	 */
+	public void remove(long id) throws InterruptedException {
+		post(new Change(null, id));
+	}
+
+	private void post(Change change) throws InterruptedException {
+		// Takes a place in the queue before the change goes in, so that the
+		// threads woken together cannot fill the queue over the capacity
+		boolean waits = Looper.myLooper() != Looper.getMainLooper();
+		while (true) {
+			int size = mSize.get();
+			if (size < mCapacity || !waits || mListener == null) {
+				if (mSize.compareAndSet(size, size + 1))
+					break;
+				continue;
+			}
+			synchronized (mFull) {
+				while (mSize.get() >= mCapacity && mListener != null)
+					mFull.wait();
+			}
+		}
+		mQueue.offer(change);
+		if (mScheduled.compareAndSet(false, true)) {
+			OnChangesPostedListener listener = mListener;
+			if (listener != null)
+				listener.onChangesPosted();
+		}
+	}
+
+	/**
+	 * Sets the adapter's listener, which is told at once if changes are queued.
+	 */
+	void setOnChangesPostedListener(OnChangesPostedListener listener) {
+		mListener = listener;
+		if (listener == null)
+			// Nothing takes the changes any more, the waiting threads go on
+			synchronized (mFull) {
+				mFull.notifyAll();
+			}
+		else if (mSize.get() > 0) {
+			mScheduled.set(true);
+			listener.onChangesPosted();
+		}
+	}
+
+	/**
+	 * Takes all the queued changes in the order they were posted and
+	 * wakes up the threads waiting for the queue to shrink.
+	 */
+	ArrayList<Change> drain() {
+		// Changes posted from now on schedule the next drain
+		mScheduled.set(false);
+		ArrayList<Change> changes = new ArrayList<Change>();
+		for (Change change = mQueue.poll(); change != null; change = mQueue.poll())
+			changes.add(change);
+		if (!changes.isEmpty() && mSize.getAndAdd(-changes.size()) >= mCapacity)
+			synchronized (mFull) {
+				mFull.notifyAll();
+			}
+		return changes;
+	}
+
+}
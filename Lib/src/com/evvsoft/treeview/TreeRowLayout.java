@@ -0,0 +1,247 @@
+/*
+ * Copyright © 2015 The Evvsoft TreeView Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evvsoft.treeview;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.util.AttributeSet;
+import android.view.View;
+import android.view.ViewGroup;
+
+/**
+ * The row of a {@link TreeView}: the indent, the indicator and the content
+ * view inflated from the item layout, measured and laid out in one pass.
+ * The indicator is a {@link Drawable} drawn by the row itself, so the row
+ * has no views besides the content.
+ * <p>
+ * Rows are created by {@link SimpleJsonTreeViewAdapter}, there is no need
+ * to put this layout into the item layouts.
+ */
+public class TreeRowLayout extends ViewGroup {
+
+	private Drawable mIndicator;
+	private int mIndent;
+	private long mNodeId = TreeViewNode.BAD_ID;
+	/** The slot views found for the binding and their kinds. */
+	private TreeViewFieldBinding mBinding;
+	private View[] mSlotViews;
+	private int[] mSlotKinds;
+	/** The level of the row and the last flags of the node and its ancestors, for the guide lines. */
+	private int mLevel;
+	private boolean[] mLast;
+
+	public TreeRowLayout(Context context) {
+		super(context);
+	}
+
+	public TreeRowLayout(Context context, AttributeSet attrs) {
+		super(context, attrs);
+	}
+
+	/**
+	 * Returns the content view of the row.
+	 */
+	public View getContent() {
+		return getChildCount() > 0 ? getChildAt(0) : null;
+	}
+
+	public Drawable getIndicator() {
+		return mIndicator;
+	}
+
+	/**
+	 * Sets the indicator drawn before the content.
+	 * @param indicator the drawable, null for no indicator
+	 */
+	public void setIndicator(Drawable indicator) {
+		if (indicator == mIndicator)
+			return;
+		if (mIndicator != null)
+			mIndicator.setCallback(null);
+		if (indicator != null)
+			indicator.setCallback(this);
+		if (getIndicatorWidth(indicator) != getIndicatorWidth(mIndicator) ||
+				getIndicatorHeight(indicator) != getIndicatorHeight(mIndicator))
+			requestLayout();
+		mIndicator = indicator;
+		invalidate();
+	}
+
+	/**
+	 * Sets the state of the indicator, such as expanded or last.
+	 */
+	public void setIndicatorState(int[] state) {
+		if (mIndicator != null && mIndicator.setState(state))
+			invalidate();
+	}
+
+	/**
+	 * Returns the ID of the node the row is bound to.
+	 */
+	public long getNodeId() {
+		return mNodeId;
+	}
+
+	void setNodeId(long id) {
+		mNodeId = id;
+	}
+
+	TreeViewFieldBinding getBinding() {
+		return mBinding;
+	}
+
+	View[] getSlotViews() {
+		return mSlotViews;
+	}
+
+	int[] getSlotKinds() {
+		return mSlotKinds;
+	}
+
+	int getLevel() {
+		return mLevel;
+	}
+
+	/**
+	 * Checks whether the node of the row or its ancestor is the last child
+	 * of its parent, as it was when the row was bound.
+	 *
+	 * @param up 0 for the node itself, 1 for its parent and so on
+	 */
+	boolean isLast(int up) {
+		return mLast[up];
+	}
+
+	/**
+	 * Keeps the level and the last flags of the bound node, so the guide
+	 * lines are drawn without asking the adapter every frame.
+	 */
+	void setGuides(int level, boolean[] last) {
+		if (mLast == null || mLast.length < level)
+			mLast = new boolean[level];
+		System.arraycopy(last, 0, mLast, 0, level);
+		mLevel = level;
+	}
+
+	void setBinding(TreeViewFieldBinding binding, View[] views, int[] kinds) {
+		mBinding = binding;
+		mSlotViews = views;
+		mSlotKinds = kinds;
+	}
+
+	public int getIndent() {
+		return mIndent;
+	}
+
+	/**
+	 * Sets the space before the indicator.
+	 */
+	public void setIndent(int indent) {
+		if (indent != mIndent) {
+			mIndent = indent;
+			requestLayout();
+		}
+	}
+
+	@Override
+	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+		int widthUsed = getPaddingLeft() + getPaddingRight() + mIndent +
+				getIndicatorWidth(mIndicator);
+		int heightUsed = getPaddingTop() + getPaddingBottom();
+		int width = widthUsed;
+		int height = getIndicatorHeight(mIndicator);
+		View content = getContent();
+		if (content != null && content.getVisibility() != GONE) {
+			measureChildWithMargins(content, widthMeasureSpec, widthUsed,
+					heightMeasureSpec, heightUsed);
+			MarginLayoutParams lp = (MarginLayoutParams) content.getLayoutParams();
+			width += content.getMeasuredWidth() + lp.leftMargin + lp.rightMargin;
+			height = Math.max(height,
+					content.getMeasuredHeight() + lp.topMargin + lp.bottomMargin);
+		}
+		height += heightUsed;
+		setMeasuredDimension(
+				resolveSize(Math.max(width, getSuggestedMinimumWidth()), widthMeasureSpec),
+				resolveSize(Math.max(height, getSuggestedMinimumHeight()), heightMeasureSpec));
+	}
+
+	@Override
+	protected void onLayout(boolean changed, int l, int t, int r, int b) {
+		int left = getPaddingLeft() + mIndent;
+		int top = getPaddingTop();
+		int height = b - t - top - getPaddingBottom();
+		if (mIndicator != null) {
+			int width = getIndicatorWidth(mIndicator);
+			int indicatorHeight = getIndicatorHeight(mIndicator);
+			int indicatorTop = top + (height - indicatorHeight) / 2;
+			mIndicator.setBounds(left, indicatorTop, left + width, indicatorTop + indicatorHeight);
+			left += width;
+		}
+		View content = getContent();
+		if (content != null && content.getVisibility() != GONE) {
+			MarginLayoutParams lp = (MarginLayoutParams) content.getLayoutParams();
+			int contentHeight = content.getMeasuredHeight();
+			int contentTop = top + lp.topMargin +
+					(height - contentHeight - lp.topMargin - lp.bottomMargin) / 2;
+			int contentLeft = left + lp.leftMargin;
+			content.layout(contentLeft, contentTop,
+					contentLeft + content.getMeasuredWidth(), contentTop + contentHeight);
+		}
+	}
+
+	@Override
+	protected void dispatchDraw(Canvas canvas) {
+		if (mIndicator != null)
+			mIndicator.draw(canvas);
+		super.dispatchDraw(canvas);
+	}
+
+	@Override
+	protected boolean verifyDrawable(Drawable who) {
+		return who == mIndicator || super.verifyDrawable(who);
+	}
+
+	@Override
+	protected boolean checkLayoutParams(ViewGroup.LayoutParams p) {
+		return p instanceof MarginLayoutParams;
+	}
+
+	@Override
+	protected LayoutParams generateDefaultLayoutParams() {
+		return new MarginLayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT);
+	}
+
+	@Override
+	public LayoutParams generateLayoutParams(AttributeSet attrs) {
+		return new MarginLayoutParams(getContext(), attrs);
+	}
+
+	@Override
+	protected LayoutParams generateLayoutParams(ViewGroup.LayoutParams p) {
+		return new MarginLayoutParams(p);
+	}
+
+	private static int getIndicatorWidth(Drawable indicator) {
+		return indicator == null ? 0 : Math.max(0, indicator.getIntrinsicWidth());
+	}
+
+	private static int getIndicatorHeight(Drawable indicator) {
+		return indicator == null ? 0 : Math.max(0, indicator.getIntrinsicHeight());
+	}
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright © 2015 The Evvsoft TreeView Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evvsoft.treeview;
+
+import java.util.ArrayList;
+
+/**
+ * Rows inflated ahead of time, kept per view type. Rows are filled in on
+ * the background worker and taken on the UI thread, so all the methods
+ * are synchronized. A row is only handed out while its tag is the current
+ * row stamp of the adapter.
+ */
+final class TreeRowPool {
+
+	private final ArrayList<ArrayList<TreeRowLayout>> mRows;
+	private int mHits;
+	private int mMisses;
+
+	TreeRowPool(int viewTypeCount) {
+		mRows = new ArrayList<ArrayList<TreeRowLayout>>(viewTypeCount);
+		for (int i=0; i<viewTypeCount; i++)
+			mRows.add(new ArrayList<TreeRowLayout>());
+	}
+
+	/**
+	 * Takes a row of the view type out of the pool.
+	 * @return the row or null if the pool has no row with the stamp
+	 */
+	synchronized TreeRowLayout obtain(int viewType, Object stamp) {
+		ArrayList<TreeRowLayout> rows = mRows.get(viewType);
+		while (!rows.isEmpty()) {
+			TreeRowLayout row = rows.remove(rows.size() - 1);
+			if (row.getTag() == stamp) {
+				mHits++;
+				return row;
+			}
+		}
+		mMisses++;
+		return null;
+	}
+
+	synchronized void put(int viewType, TreeRowLayout row) {
+		mRows.get(viewType).add(row);
+	}
+
+	synchronized int size(int viewType) {
+		return mRows.get(viewType).size();
+	}
+
+	synchronized void clear() {
+		for (ArrayList<TreeRowLayout> rows : mRows)
+			rows.clear();
+	}
+
+	synchronized int getHitCount() {
+		return mHits;
+	}
+
+	synchronized int getMissCount() {
+		return mMisses;
+	}
+
+	synchronized void resetCounts() {
+		mHits = 0;
+		mMisses = 0;
+	}
+
+}
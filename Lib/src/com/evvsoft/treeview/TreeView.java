@@ -16,9 +16,16 @@
 
 package com.evvsoft.treeview;
 
+import java.util.ArrayList;
+
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
 import android.os.Build;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.util.AttributeSet;
 import android.util.TypedValue;
 import android.view.View;
@@ -31,7 +38,8 @@ import android.widget.ListView;
  * It is based on standard android {@link ListView}. This differs from the
  * {@link ListView} by allowing many levels: groups which can
  * individually be expanded to show its children. The items come from the
- * {@link SimpleJsonTreeViewAdapter} associated with this view.
+ * {@link SimpleJsonTreeViewAdapter} or the {@link TreeViewAdapter}
+ * associated with this view.
  * <p>
  * Expandable lists are able to show an indicator beside each item to display
  * the item's current state (the states are usually one of expanded group,
@@ -43,10 +51,19 @@ import android.widget.ListView;
  * will be shown next to Views given to the {@link TreeView}.
  * Layout wrapper contains information about the preferred position indicator.
  * Call setIndent() to set the indicator's indent is a multiplier for each level.
+ * <p>
+ * The rows are indented by the left inset of their {@link TreeRowLayout},
+ * so their backgrounds and selectors keep the width of the list. The guide
+ * lines connecting the children with their parents can be drawn by the
+ * view itself in the inset, see {@link #setGuideLinesEnabled(boolean)}.
  *
  * @attr R.styleable#TreeView_groupIndicator
  * @attr R.styleable#TreeView_childIndicator
  * @attr R.styleable#TreeView_indent
+ * @attr R.styleable#TreeView_indentMode
+ * @attr R.styleable#TreeView_guideLines
+ * @attr R.styleable#TreeView_guideLineColor
+ * @attr R.styleable#TreeView_guideLineWidth
  */
 public class TreeView extends ListView {
 
@@ -64,6 +81,73 @@ public class TreeView extends ListView {
     private int mIndent;
     public static final int DEFAULT_INDENT = 30;
 
+    /** The indent is the left inset of the row, before the indicator. */
+    public static final int INDENT_MODE_LAYOUT = 0;
+    /**
+     * The indent is the left inset of the row as well, with the room for
+     * the guide lines drawn by the view.
+     */
+    public static final int INDENT_MODE_DRAW   = 1;
+    private int mIndentMode = INDENT_MODE_LAYOUT;
+
+    public static final int DEFAULT_GUIDE_LINE_COLOR = 0x80808080;
+    public static final int DEFAULT_GUIDE_LINE_WIDTH = 1;
+
+    private static final int GUIDE_LINE  = 0;
+    private static final int GUIDE_TEE   = 1;
+    private static final int GUIDE_ELBOW = 2;
+
+    private boolean mGuideLines;
+    private final Paint mGuidePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    /** The guide paths of each level for rows of mGuideRowHeight. */
+    private final ArrayList<Path[]> mGuidePaths = new ArrayList<Path[]>();
+    private int mGuideRowHeight;
+
+    /** The listener receiving timings of the adapter. */
+    private TreeViewMetrics mMetrics;
+
+    /** How far ahead of the scroll the rows are prepared. */
+    private static final float PREFETCH_AHEAD_SECONDS = 0.25f;
+    private static final int MAX_PREFETCH_DEPTH = 32;
+    private static final long FRAME_NANOS = 16666667L;
+    /** A longer gap between the frames means the list has been at rest. */
+    private static final long MAX_FRAME_GAP_NANOS = 100000000L;
+    /** The time an idle slot may be spent preparing rows. */
+    private static final long PREFETCH_BUDGET_NANOS = FRAME_NANOS / 4;
+
+    private boolean mPrefetchEnabled = true;
+    /** The number of rows prepared ahead, halved after a late frame. */
+    private int mPrefetchDepth = MAX_PREFETCH_DEPTH / 4;
+    private long mLastDrawNanos;
+    private float mLastScrollRows;
+    /** Rows per second, positive when scrolling down. */
+    private float mScrollVelocity;
+    private boolean mPrefetchScheduled;
+    private final MessageQueue.IdleHandler mPrefetcher = new MessageQueue.IdleHandler() {
+    	@Override
+    	public boolean queueIdle() {
+    		mPrefetchScheduled = false;
+    		prefetchRows();
+    		return false;
+    	}
+    };
+
+    /** The first visible node and its offset kept while the data is changed. */
+    private Object mAnchorNode;
+    private int mAnchorTop;
+    private final TreeViewBaseAdapter.OnTreeChangeListener mOnTreeChangeListener =
+    		new TreeViewBaseAdapter.OnTreeChangeListener() {
+    	@Override
+    	public void onTreeChanging() {
+    		rememberAnchor();
+    	}
+
+    	@Override
+    	public void onTreeChanged() {
+    		restoreAnchor();
+    	}
+    };
+
 	OnTreeViewNodeClickListener mOnGroupNodeClickListener;
 	OnTreeViewNodeClickListener mOnChildNodeClickListener;
 
@@ -101,29 +185,103 @@ public class TreeView extends ListView {
     		
     		int defIndent = TypedValue.complexToDimensionPixelSize(DEFAULT_INDENT, context.getResources().getDisplayMetrics());
     		mIndent = ta.getDimensionPixelSize(R.styleable.TreeView_indent, defIndent);
+    		mIndentMode = ta.getInt(R.styleable.TreeView_indentMode, INDENT_MODE_LAYOUT);
+    		mGuideLines = ta.getBoolean(R.styleable.TreeView_guideLines, false);
+    		int defWidth = TypedValue.complexToDimensionPixelSize(DEFAULT_GUIDE_LINE_WIDTH, context.getResources().getDisplayMetrics());
+    		mGuidePaint.setStyle(Paint.Style.STROKE);
+    		mGuidePaint.setColor(ta.getColor(R.styleable.TreeView_guideLineColor, DEFAULT_GUIDE_LINE_COLOR));
+    		mGuidePaint.setStrokeWidth(ta.getDimensionPixelSize(R.styleable.TreeView_guideLineWidth, defWidth));
     	} finally {
     		ta.recycle();
     	}
     }
 
+    /**
+     * Sets the adapter, which must be a {@link SimpleJsonTreeViewAdapter}
+     * or a {@link TreeViewAdapter}.
+     */
     @Override
     public void setAdapter(ListAdapter adapter) {
-    	if (!(adapter instanceof SimpleJsonTreeViewAdapter))
-    		throw new RuntimeException("Adapter must be class SimpleJsonTreeViewAdapter");
-    	SimpleJsonTreeViewAdapter treeViewAdapter = (SimpleJsonTreeViewAdapter) adapter;
+    	if (!(adapter instanceof TreeViewBaseAdapter))
+    		throw new RuntimeException("Adapter must be class SimpleJsonTreeViewAdapter or TreeViewAdapter");
+    	TreeViewBaseAdapter oldAdapter = getTreeViewAdapter();
+    	if (oldAdapter != null)
+    		oldAdapter.setOnTreeChangeListener(null);
+    	TreeViewBaseAdapter treeViewAdapter = (TreeViewBaseAdapter) adapter;
+    	treeViewAdapter.setOnTreeChangeListener(mOnTreeChangeListener);
     	treeViewAdapter.setGroupIndicatorResource(mGroupIndicatorRes);
     	treeViewAdapter.setChildIndicatorResource(mChildIndicatorRes);
     	treeViewAdapter.setIndent(mIndent);
+    	if (mMetrics != null)
+    		treeViewAdapter.setMetrics(mMetrics);
     	super.setAdapter(adapter);
     }
 
+    /**
+     * Returns the adapter if it is a {@link SimpleJsonTreeViewAdapter}, null otherwise.
+     */
     protected SimpleJsonTreeViewAdapter getSimpleJsonTreeViewAdapter() {
+    	TreeViewBaseAdapter adapter = getTreeViewAdapter();
+    	return adapter instanceof SimpleJsonTreeViewAdapter ? (SimpleJsonTreeViewAdapter) adapter : null;
+    }
+
+    TreeViewBaseAdapter getTreeViewAdapter() {
     	ListAdapter adapter = super.getAdapter();
     	if (adapter instanceof HeaderViewListAdapter)
     		adapter = ((HeaderViewListAdapter) adapter).getWrappedAdapter();
-    	return (SimpleJsonTreeViewAdapter) adapter;
+    	return (TreeViewBaseAdapter) adapter;
     }
 
+    private void rememberAnchor() {
+    	mAnchorNode = null;
+    	int position = getFirstVisiblePosition() - getHeaderViewsCount();
+    	View first = getChildAt(0);
+    	if (position < 0 || first == null)
+    		return;
+    	mAnchorNode = getTreeViewAdapter().getAnchor(position);
+    	mAnchorTop = first.getTop();
+    }
+
+    private void restoreAnchor() {
+    	if (mAnchorNode == null)
+    		return;
+    	int position = getTreeViewAdapter().getAnchorPosition(mAnchorNode);
+    	mAnchorNode = null;
+    	if (position >= 0)
+    		setSelectionFromTop(position + getHeaderViewsCount(), mAnchorTop);
+    }
+
+    /**
+     * Expands all the collapsed ancestors of the node with the given ID
+     * and scrolls the list to the node.
+     *
+     * @param id the ID of the node
+     * @param smooth true to scroll smoothly, false to jump to the node
+     * @return the position of the node in the adapter or -1 if there is
+     *         no such node
+     *
+     * @see SimpleJsonTreeViewAdapter#revealNode(long)
+     * @see TreeViewAdapter#revealNode(long)
+     */
+    public int revealNode(long id, boolean smooth) {
+    	TreeViewBaseAdapter adapter = getTreeViewAdapter();
+    	if (adapter == null)
+    		return -1;
+    	int position = adapter.revealNode(id);
+    	if (position >= 0) {
+    		if (smooth)
+    			smoothScrollToPosition(position + getHeaderViewsCount());
+    		else
+    			setSelection(position + getHeaderViewsCount());
+    	}
+    	return position;
+    }
+
+    /**
+     * Passes the click on a node to {@link #onGroupNodeClick} or
+     * {@link #onChildNodeClick}. The node passed is null with a
+     * {@link TreeViewAdapter}, whose item is taken by the position.
+     */
     @Override
     public boolean performItemClick(View v, int position, long id) {
     	int node_position = position - getHeaderViewsCount();
@@ -131,25 +289,27 @@ public class TreeView extends ListView {
         if (node_position < 0)
             // Clicked on a header, so ignore pass it on to super
             return super.performItemClick(v, position, id);
-    	TreeViewNode node = getSimpleJsonTreeViewAdapter().getTreeViewNode(node_position);
-    	if (node == null)
+    	TreeViewBaseAdapter adapter = getTreeViewAdapter();
+    	if (node_position >= adapter.getCount())
     		// Clicked on a footer, so ignore pass it on to super
     		return super.performItemClick(v, position, id);
-    	if (node.isGroupNode())
+    	SimpleJsonTreeViewAdapter jsonAdapter = getSimpleJsonTreeViewAdapter();
+    	TreeViewNode node = jsonAdapter == null ? null : jsonAdapter.getTreeViewNode(node_position);
+    	if (adapter.isGroupNode(node_position))
     		return onGroupNodeClick(v, node_position, id, node);
         return onChildNodeClick(v, node_position, id, node);
     }
 
     public void setGroupIndicatorResource(int resId) {
     	mGroupIndicatorRes = resId;
-    	SimpleJsonTreeViewAdapter adapter = getSimpleJsonTreeViewAdapter();
+    	TreeViewBaseAdapter adapter = getTreeViewAdapter();
     	if (adapter != null)
     		adapter.setGroupIndicatorResource(resId);
     }
 
     public void setChildIndicatorResource(int resId) {
     	mChildIndicatorRes = resId;
-    	SimpleJsonTreeViewAdapter adapter = getSimpleJsonTreeViewAdapter();
+    	TreeViewBaseAdapter adapter = getTreeViewAdapter();
     	if (adapter != null)
     		adapter.setChildIndicatorResource(resId);
     }
@@ -161,12 +321,206 @@ public class TreeView extends ListView {
     public void setIndent(int indent) {
     	if (indent >= 0 && indent != mIndent) {
     		mIndent = indent;
-        	SimpleJsonTreeViewAdapter adapter = getSimpleJsonTreeViewAdapter();
+    		mGuidePaths.clear();
+        	TreeViewBaseAdapter adapter = getTreeViewAdapter();
         	if (adapter != null)
         		adapter.setIndent(indent);
     	}
     }
 
+    public int getIndentMode() {
+    	return mIndentMode;
+    }
+
+    /**
+     * Sets how the rows are indented. Both modes indent the rows by the
+     * left inset laid out within the row: shifting the whole row instead
+     * would push its right side out of the list and leave its background
+     * and selector where the row was.
+     *
+     * @param mode {@link #INDENT_MODE_LAYOUT} (default) or {@link #INDENT_MODE_DRAW}
+     */
+    public void setIndentMode(int mode) {
+    	mIndentMode = mode;
+    }
+
+    public boolean isGuideLinesEnabled() {
+    	return mGuideLines;
+    }
+
+    /**
+     * Sets whether the lines connecting the children with their parents are
+     * drawn in the indents of the rows.
+     */
+    public void setGuideLinesEnabled(boolean enabled) {
+    	if (enabled != mGuideLines) {
+    		mGuideLines = enabled;
+    		invalidate();
+    	}
+    }
+
+    public void setGuideLineColor(int color) {
+    	mGuidePaint.setColor(color);
+    	invalidate();
+    }
+
+    public void setGuideLineWidth(int width) {
+    	mGuidePaint.setStrokeWidth(width);
+    	invalidate();
+    }
+
+    @Override
+    protected void dispatchDraw(Canvas canvas) {
+    	if (mGuideLines && mIndent > 0)
+    		drawGuideLines(canvas);
+    	super.dispatchDraw(canvas);
+    	if (mPrefetchEnabled)
+    		trackScroll();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+    	if (mPrefetchScheduled) {
+    		Looper.myQueue().removeIdleHandler(mPrefetcher);
+    		mPrefetchScheduled = false;
+    	}
+    	mLastDrawNanos = 0;
+    	super.onDetachedFromWindow();
+    }
+
+    public boolean isPrefetchEnabled() {
+    	return mPrefetchEnabled;
+    }
+
+    /**
+     * Sets whether the rows about to appear while scrolling are prepared
+     * when the UI thread is idle, so showing them only assigns the prepared
+     * data to the views. Enabled by default.
+     */
+    public void setPrefetchEnabled(boolean enabled) {
+    	mPrefetchEnabled = enabled;
+    	mScrollVelocity = 0;
+    	mLastDrawNanos = 0;
+    }
+
+    /**
+     * Measures the scroll velocity from frame to frame and, while
+     * scrolling, asks for an idle slot to prepare the next rows. The depth
+     * of the prefetch shrinks after a late frame and grows back while the
+     * frames keep up.
+     */
+    private void trackScroll() {
+    	long now = System.nanoTime();
+    	View first = getChildAt(0);
+    	if (first == null || first.getHeight() == 0) {
+    		mLastDrawNanos = 0;
+    		return;
+    	}
+    	float rows = getFirstVisiblePosition() - (float) first.getTop() / first.getHeight();
+    	long frame = now - mLastDrawNanos;
+    	if (mLastDrawNanos == 0 || frame >= MAX_FRAME_GAP_NANOS)
+    		mScrollVelocity = 0;
+    	else if (rows != mLastScrollRows) {
+    		mScrollVelocity = (rows - mLastScrollRows) * 1e9f / frame;
+    		if (frame > FRAME_NANOS * 3 / 2)
+    			mPrefetchDepth = Math.max(1, mPrefetchDepth / 2);
+    		else if (mPrefetchDepth < MAX_PREFETCH_DEPTH)
+    			mPrefetchDepth++;
+    	} else
+    		mScrollVelocity = 0;
+    	mLastDrawNanos = now;
+    	mLastScrollRows = rows;
+    	if (mScrollVelocity != 0 && !mPrefetchScheduled) {
+    		mPrefetchScheduled = true;
+    		Looper.myQueue().addIdleHandler(mPrefetcher);
+    	}
+    }
+
+    private void prefetchRows() {
+    	TreeViewBaseAdapter adapter = getTreeViewAdapter();
+    	if (adapter == null || mScrollVelocity == 0)
+    		return;
+    	int depth = Math.min(mPrefetchDepth,
+    			1 + (int) (Math.abs(mScrollVelocity) * PREFETCH_AHEAD_SECONDS));
+    	int headers = getHeaderViewsCount();
+    	int count = getCount() - headers - getFooterViewsCount();
+    	int step = mScrollVelocity > 0 ? 1 : -1;
+    	int position = step > 0 ?
+    			getLastVisiblePosition() - headers + 1 : getFirstVisiblePosition() - headers - 1;
+    	long deadline = System.nanoTime() + PREFETCH_BUDGET_NANOS;
+    	for (int i = 0; i < depth && position >= 0 && position < count; i++, position += step)
+    		if (!adapter.prefetch(position) || System.nanoTime() > deadline)
+    			break;
+    }
+
+    private void drawGuideLines(Canvas canvas) {
+    	int left = getPaddingLeft();
+    	for (int i = 0; i < getChildCount(); i++) {
+    		View child = getChildAt(i);
+    		// The headers and the footers are not rows
+    		if (!(child instanceof TreeRowLayout))
+    			continue;
+    		TreeRowLayout row = (TreeRowLayout) child;
+    		int level = row.getLevel();
+    		if (level == 0)
+    			continue;
+    		canvas.save();
+    		canvas.translate(left, child.getTop());
+    		int height = child.getHeight();
+    		canvas.drawPath(getGuidePath(row.isLast(0) ? GUIDE_ELBOW : GUIDE_TEE,
+    				level - 1, height), mGuidePaint);
+    		// The lines of the ancestors that have siblings below
+    		for (int l = level - 2; l >= 0; l--)
+    			if (!row.isLast(level - 1 - l))
+    				canvas.drawPath(getGuidePath(GUIDE_LINE, l, height), mGuidePaint);
+    		canvas.restore();
+    	}
+    }
+
+    private Path getGuidePath(int kind, int level, int height) {
+    	if (height != mGuideRowHeight) {
+    		mGuidePaths.clear();
+    		mGuideRowHeight = height;
+    	}
+    	while (mGuidePaths.size() <= level)
+    		mGuidePaths.add(new Path[3]);
+    	Path[] paths = mGuidePaths.get(level);
+    	Path path = paths[kind];
+    	if (path == null) {
+    		float x = mIndent * level + mIndent / 2f;
+    		float middle = height / 2f;
+    		path = new Path();
+    		path.moveTo(x, 0);
+    		path.lineTo(x, kind == GUIDE_ELBOW ? middle : height);
+    		if (kind != GUIDE_LINE) {
+    			path.moveTo(x, middle);
+    			path.lineTo(mIndent * (level + 1), middle);
+    		}
+    		paths[kind] = path;
+    	}
+    	return path;
+    }
+
+    public TreeViewMetrics getMetrics() {
+    	return mMetrics;
+    }
+
+    /**
+     * Registers the listener receiving timings of the adapter of this view.
+     * The listener is also passed to any adapter set later.
+     *
+     * @param metrics the listener, can be null to stop measuring
+     *
+     * @see SimpleJsonTreeViewAdapter#setMetrics(TreeViewMetrics)
+     * @see TreeViewAdapter#setMetrics(TreeViewMetrics)
+     */
+    public void setMetrics(TreeViewMetrics metrics) {
+    	mMetrics = metrics;
+    	TreeViewBaseAdapter adapter = getTreeViewAdapter();
+    	if (adapter != null)
+    		adapter.setMetrics(metrics);
+    }
+
 	public void setOnGroupNodeClickListener(OnTreeViewNodeClickListener listener) {
     	mOnGroupNodeClickListener = listener;
     }
@@ -178,7 +532,8 @@ public class TreeView extends ListView {
 	protected boolean onGroupNodeClick(View v, int position, long id, TreeViewNode node) {
 		if (mOnGroupNodeClickListener != null)
 			mOnGroupNodeClickListener.onTreeViewNodeClick(this, v, position, id, node);
-		getSimpleJsonTreeViewAdapter().setExpanded(node, !node.isExpanded());
+		TreeViewBaseAdapter adapter = getTreeViewAdapter();
+		adapter.setExpanded(position, !adapter.isExpanded(position));
 		//TODO It is necessary to add 2 more listener OnExpand and OnCollapse
 		return true;
 	}
@@ -0,0 +1,555 @@
+/*
+ * Copyright © 2015 The Evvsoft TreeView Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evvsoft.treeview;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+/**
+ * An adapter that shows a tree of plain objects in a {@link TreeView},
+ * without converting them to JSON. The tree is given as a flat list of
+ * items, a {@link NodeAccessor} tells the ID of each item, the ID of its
+ * parent and whether it is a group. The views of the items are made and
+ * bound by a {@link Binder}, the adapter wraps them into the rows with the
+ * indent and the indicator set by the {@link TreeView}.
+ * <p>
+ * Only the nodes that can be reached from the root level get into the
+ * tree: the items with an unknown parent, the cycles and the items with
+ * a repeated ID are ignored. The groups are collapsed at first.
+ *
+ * @param <T> the type of the items
+ */
+public class TreeViewAdapter<T> extends TreeViewBaseAdapter {
+
+	private final static int     STATE_NONE       = 0;
+	private final static int     STATE_LAST       = 1;
+	private final static int     STATE_EXPANDED   = 2;
+	private final static int     VIEW_TYPE_GROUP  = 0;
+	private final static int     VIEW_TYPE_CHILD  = 1;
+	private final static int     VIEW_TYPE_COUNT  = 2;
+	private final static int[][] STATE =
+		{{}, {android.R.attr.state_last}, {android.R.attr.state_expanded}};
+
+	/**
+	 * Tells the tree structure of the items.
+	 */
+	public interface NodeAccessor<T> {
+		/**
+		 * Returns the ID of the item, unique in the tree. The items with
+		 * {@link TreeViewNode#BAD_ID} are ignored.
+		 */
+		long getId(T item);
+		/**
+		 * Returns the ID of the parent of the item,
+		 * {@link TreeViewNode#BAD_ID} for the items of the root level.
+		 */
+		long getParentId(T item);
+		/**
+		 * Returns true if the item is a group even if it has no children,
+		 * the items with children are groups anyway.
+		 */
+		boolean isGroup(T item);
+	}
+
+	/**
+	 * Makes and binds the views of the items.
+	 */
+	public interface Binder<T> {
+		/**
+		 * Creates the view of an item, it is reused for the items of the
+		 * same kind.
+		 *
+		 * @param inflater the inflater of the adapter's context
+		 * @param parent the row the view will be added to
+		 * @param group true for the view of a group, false for a child
+		 */
+		View newView(LayoutInflater inflater, ViewGroup parent, boolean group);
+		/**
+		 * Shows the item in the view created by
+		 * {@link #newView(LayoutInflater, ViewGroup, boolean)}.
+		 */
+		void bindView(View view, T item, int level, boolean expanded);
+	}
+
+	/**
+	 * A node of the tree.
+	 */
+	private static final class Entry<T> {
+
+		final T item;
+		final long id;
+		Entry<T> parent;
+		ArrayList<Entry<T>> children;
+		int level;
+		boolean group;
+		boolean expanded;
+		boolean last;
+		/** The position in the visible list, valid while it holds the entry there. */
+		int position = -1;
+
+		Entry(T item, long id) {
+			this.item = item;
+			this.id = id;
+		}
+	}
+
+	private final NodeAccessor<T> mAccessor;
+	private final Binder<T> mBinder;
+	private final LayoutInflater mInflater;
+	private final ArrayList<Entry<T>> mRoots = new ArrayList<Entry<T>>();
+	/** The nodes of the tree by their IDs. */
+	private final HashMap<Long, Entry<T>> mIndex = new HashMap<Long, Entry<T>>();
+	/** The visible nodes, that is the nodes with all their ancestors expanded. */
+	private final ArrayList<Entry<T>> mVisible = new ArrayList<Entry<T>>();
+	/** False when the positions of the entries are out of date. */
+	private boolean mPositionsValid;
+	private OnTreeChangeListener mOnTreeChangeListener;
+	private int mGroupIndicatorRes;
+	private int mChildIndicatorRes;
+	private int mIndent;
+	/** The last flags of the row being bound, see {@link #getLast(Entry)}. */
+	private boolean[] mLast = new boolean[0];
+	/** Changed with the look of the rows, so the older rows are not reused. */
+	private Object mRowStamp = new Object();
+	private TreeViewMetrics mMetrics;
+	private long mBuildNanos;
+
+	/**
+	 * @param context the context the rows are created in
+	 * @param items the items of the tree in any order, the children of a
+	 *            node keep their order in the list
+	 * @param accessor tells the tree structure of the items
+	 * @param binder makes and binds the views of the items
+	 */
+	public TreeViewAdapter(Context context, List<T> items, NodeAccessor<T> accessor,
+			Binder<T> binder) {
+		mAccessor = accessor;
+		mBinder = binder;
+		mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+		build(items);
+	}
+
+	/**
+	 * Replaces the items. The groups keep their expanded state by their IDs,
+	 * and the {@link TreeView} keeps its first visible node in place.
+	 */
+	public void setItems(List<T> items) {
+		if (mOnTreeChangeListener != null)
+			mOnTreeChangeListener.onTreeChanging();
+		build(items);
+		notifyDataSetChanged();
+		if (mOnTreeChangeListener != null)
+			mOnTreeChangeListener.onTreeChanged();
+	}
+
+	/**
+	 * Builds the tree from the items, linking the children to the parents
+	 * level by level from the root, so the unreachable items are dropped.
+	 */
+	private void build(List<T> items) {
+		long start = System.nanoTime();
+		HashSet<Long> expanded = new HashSet<Long>();
+		for (Entry<T> entry : mIndex.values())
+			if (entry.expanded)
+				expanded.add(entry.id);
+		HashMap<Long, Entry<T>> entries = new HashMap<Long, Entry<T>>();
+		HashMap<Long, ArrayList<Entry<T>>> children = new HashMap<Long, ArrayList<Entry<T>>>();
+		for (T item : items) {
+			long id = mAccessor.getId(item);
+			if (id == TreeViewNode.BAD_ID || entries.containsKey(id))
+				continue;
+			Entry<T> entry = new Entry<T>(item, id);
+			entries.put(id, entry);
+			long idParent = mAccessor.getParentId(item);
+			ArrayList<Entry<T>> list = children.get(idParent);
+			if (list == null) {
+				list = new ArrayList<Entry<T>>();
+				children.put(idParent, list);
+			}
+			list.add(entry);
+		}
+
+		mRoots.clear();
+		mIndex.clear();
+		ArrayList<Entry<T>> roots = children.get(TreeViewNode.BAD_ID);
+		if (roots != null)
+			mRoots.addAll(roots);
+		ArrayList<Entry<T>> reached = new ArrayList<Entry<T>>(mRoots);
+		for (int i = 0; i < reached.size(); i++) {
+			Entry<T> entry = reached.get(i);
+			mIndex.put(entry.id, entry);
+			entry.children = children.get(entry.id);
+			entry.group = entry.children != null || mAccessor.isGroup(entry.item);
+			entry.expanded = entry.group && expanded.contains(entry.id);
+			if (entry.children == null)
+				continue;
+			for (Entry<T> child : entry.children) {
+				child.parent = entry;
+				child.level = entry.level + 1;
+			}
+			entry.children.get(entry.children.size() - 1).last = true;
+			reached.addAll(entry.children);
+		}
+		mVisible.clear();
+		addVisible(mRoots, mVisible);
+		mPositionsValid = false;
+		mBuildNanos = System.nanoTime() - start;
+		if (mMetrics != null)
+			mMetrics.onBuild(mBuildNanos, mIndex.size());
+	}
+
+	/**
+	 * Adds the nodes and the visible descendants of the expanded ones in
+	 * the tree order, with an explicit stack instead of recursion.
+	 */
+	private static <T> void addVisible(List<Entry<T>> nodes, List<Entry<T>> result) {
+		ArrayList<List<Entry<T>>> levels = new ArrayList<List<Entry<T>>>();
+		ArrayList<Integer> indices = new ArrayList<Integer>();
+		levels.add(nodes);
+		indices.add(0);
+		while (!levels.isEmpty()) {
+			int top = levels.size() - 1;
+			List<Entry<T>> level = levels.get(top);
+			int i = indices.get(top);
+			if (i >= level.size()) {
+				levels.remove(top);
+				indices.remove(top);
+				continue;
+			}
+			indices.set(top, i + 1);
+			Entry<T> entry = level.get(i);
+			result.add(entry);
+			if (entry.expanded && entry.children != null) {
+				levels.add(entry.children);
+				indices.add(0);
+			}
+		}
+	}
+
+	@Override
+	public boolean hasStableIds() {
+		return true;
+	}
+
+	@Override
+	public int getCount() {
+		return mVisible.size();
+	}
+
+	@Override
+	public T getItem(int position) {
+		return position < 0 || position >= mVisible.size() ? null : mVisible.get(position).item;
+	}
+
+	@Override
+	public long getItemId(int position) {
+		return position < 0 || position >= mVisible.size() ?
+				TreeViewNode.BAD_ID : mVisible.get(position).id;
+	}
+
+	/**
+	 * Returns the item with the given ID, null if there is no such item in the tree.
+	 */
+	public T getItemById(long id) {
+		Entry<T> entry = mIndex.get(id);
+		return entry == null ? null : entry.item;
+	}
+
+	@Override
+	public int getViewTypeCount() {
+		return VIEW_TYPE_COUNT;
+	}
+
+	@Override
+	public int getItemViewType(int position) {
+		if (position < 0 || position >= mVisible.size())
+			return IGNORE_ITEM_VIEW_TYPE;
+		return mVisible.get(position).group ? VIEW_TYPE_GROUP : VIEW_TYPE_CHILD;
+	}
+
+	@Override
+	public View getView(int position, View convertView, ViewGroup parent) {
+		if (position < 0 || position >= mVisible.size())
+			return null;
+		Entry<T> entry = mVisible.get(position);
+		final TreeViewMetrics metrics = mMetrics;
+		long start = 0;
+		if (metrics != null) {
+			TreeViewTrace.beginSection(TreeViewTrace.INFLATE);
+			start = System.nanoTime();
+		}
+		TreeRowLayout row;
+		boolean recycled = convertView instanceof TreeRowLayout && convertView.getTag() == mRowStamp;
+		if (recycled)
+			row = (TreeRowLayout) convertView;
+		else
+			row = createRow(entry.group);
+		row.setIndent(mIndent * entry.level);
+		row.setIndicatorState(STATE[entry.expanded ? STATE_EXPANDED :
+				!entry.group && entry.last ? STATE_LAST : STATE_NONE]);
+		row.setNodeId(entry.id);
+		row.setGuides(entry.level, getLast(entry));
+		if (metrics == null) {
+			mBinder.bindView(row.getContent(), entry.item, entry.level, entry.expanded);
+			return row;
+		}
+		long inflated = System.nanoTime();
+		TreeViewTrace.endSection();
+		TreeViewTrace.beginSection(TreeViewTrace.BIND);
+		mBinder.bindView(row.getContent(), entry.item, entry.level, entry.expanded);
+		long bound = System.nanoTime();
+		TreeViewTrace.endSection();
+		metrics.onGetView(position, inflated - start, bound - inflated, recycled);
+		return row;
+	}
+
+	/**
+	 * Returns whether the entry and each of its ancestors up its level is
+	 * the last child, in an array reused for the next row.
+	 */
+	private boolean[] getLast(Entry<T> entry) {
+		if (mLast.length < entry.level)
+			mLast = new boolean[entry.level];
+		int up = 0;
+		for (Entry<T> e = entry; up < entry.level && e != null; up++, e = e.parent)
+			mLast[up] = e.last;
+		return mLast;
+	}
+
+	private TreeRowLayout createRow(boolean group) {
+		TreeRowLayout row = new TreeRowLayout(mInflater.getContext());
+		row.setTag(mRowStamp);
+		row.addView(mBinder.newView(mInflater, row, group));
+		int resId = group ? mGroupIndicatorRes : mChildIndicatorRes;
+		if (resId != 0)
+			row.setIndicator(mInflater.getContext().getResources().getDrawable(resId));
+		return row;
+	}
+
+	private void invalidateRows() {
+		mRowStamp = new Object();
+		notifyDataSetInvalidated();
+	}
+
+	@Override
+	void setOnTreeChangeListener(OnTreeChangeListener listener) {
+		mOnTreeChangeListener = listener;
+	}
+
+	@Override
+	void setGroupIndicatorResource(int resId) {
+		if (mGroupIndicatorRes != resId) {
+			mGroupIndicatorRes = resId;
+			invalidateRows();
+		}
+	}
+
+	@Override
+	void setChildIndicatorResource(int resId) {
+		if (mChildIndicatorRes != resId) {
+			mChildIndicatorRes = resId;
+			invalidateRows();
+		}
+	}
+
+	public int getIndent() {
+		return mIndent;
+	}
+
+	@Override
+	void setIndent(int indent) {
+		if (indent >= 0 && indent != mIndent) {
+			mIndent = indent;
+			invalidateRows();
+		}
+	}
+
+	public TreeViewMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * Registers the listener receiving timings of this adapter, the figures
+	 * of the tree build that has already happened are reported at once.
+	 *
+	 * @param metrics the listener, can be null to stop measuring
+	 */
+	@Override
+	public void setMetrics(TreeViewMetrics metrics) {
+		if (mMetrics == metrics)
+			return;
+		mMetrics = metrics;
+		if (metrics != null)
+			metrics.onBuild(mBuildNanos, mIndex.size());
+	}
+
+	/**
+	 * Returns the level of the node at the position, 0 for the root level.
+	 */
+	@Override
+	public int getLevel(int position) {
+		return position < 0 || position >= mVisible.size() ? 0 : mVisible.get(position).level;
+	}
+
+	@Override
+	public boolean isGroupNode(int position) {
+		return position >= 0 && position < mVisible.size() && mVisible.get(position).group;
+	}
+
+	@Override
+	public boolean isExpanded(int position) {
+		return position >= 0 && position < mVisible.size() && mVisible.get(position).expanded;
+	}
+
+
+	public void expand(int position) {
+		setExpanded(position, true);
+	}
+
+	public void collapse(int position) {
+		setExpanded(position, false);
+	}
+
+	/**
+	 * Expands or collapses the group at the position, the rows of its
+	 * visible descendants are inserted or removed in place.
+	 */
+	@Override
+	public void setExpanded(int position, boolean expanded) {
+		if (position < 0 || position >= mVisible.size())
+			return;
+		Entry<T> entry = mVisible.get(position);
+		if (!entry.group || entry.expanded == expanded)
+			return;
+		final TreeViewMetrics metrics = mMetrics;
+		long start = 0;
+		if (metrics != null) {
+			TreeViewTrace.beginSection(expanded ? TreeViewTrace.EXPAND : TreeViewTrace.COLLAPSE);
+			start = System.nanoTime();
+		}
+		entry.expanded = expanded;
+		if (expanded) {
+			if (entry.children != null) {
+				ArrayList<Entry<T>> rows = new ArrayList<Entry<T>>();
+				addVisible(entry.children, rows);
+				mVisible.addAll(position + 1, rows);
+			}
+		} else {
+			int end = position + 1;
+			while (end < mVisible.size() && mVisible.get(end).level > entry.level)
+				end++;
+			mVisible.subList(position + 1, end).clear();
+		}
+		mPositionsValid = false;
+		notifyDataSetChanged();
+		if (metrics != null) {
+			TreeViewTrace.endSection();
+			metrics.onExpandedChanged(entry.id, expanded, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Returns the position of the item with the given ID in the list.
+	 *
+	 * @return the position or -1 if there is no such item or it is hidden
+	 *         in a collapsed group
+	 */
+	public int getPositionForId(long id) {
+		Entry<T> entry = mIndex.get(id);
+		return entry == null ? -1 : getVisiblePosition(entry);
+	}
+
+	/**
+	 * Expands all the collapsed ancestors of the item with the given ID,
+	 * notifying the observers once, and returns the position of the item.
+	 * Only the rows of the topmost collapsed ancestor are inserted, the
+	 * others are under it.
+	 *
+	 * @return the position or -1 if there is no such item
+	 *
+	 * @see TreeView#revealNode(long, boolean)
+	 */
+	@Override
+	public int revealNode(long id) {
+		Entry<T> entry = mIndex.get(id);
+		if (entry == null)
+			return -1;
+		Entry<T> top = null;
+		for (Entry<T> parent = entry.parent; parent != null; parent = parent.parent)
+			if (!parent.expanded) {
+				parent.expanded = true;
+				top = parent;
+			}
+		if (top != null) {
+			// The topmost collapsed ancestor is visible, its ancestors are expanded
+			ArrayList<Entry<T>> rows = new ArrayList<Entry<T>>();
+			addVisible(top.children, rows);
+			mVisible.addAll(getVisiblePosition(top) + 1, rows);
+			mPositionsValid = false;
+			notifyDataSetChanged();
+		}
+		return getVisiblePosition(entry);
+	}
+
+	/**
+	 * Returns the position of the node or -1 if it is hidden. The positions
+	 * of all the visible nodes are taken in one pass after the list has
+	 * changed, then each lookup takes constant time.
+	 */
+	private int getVisiblePosition(Entry<T> entry) {
+		if (!mPositionsValid) {
+			for (int i = 0; i < mVisible.size(); i++)
+				mVisible.get(i).position = i;
+			mPositionsValid = true;
+		}
+		int position = entry.position;
+		return position >= 0 && position < mVisible.size() && mVisible.get(position) == entry ?
+				position : -1;
+	}
+
+	@Override
+	boolean prefetch(int position) {
+		// The rows are bound straight from the items, there is nothing to prepare
+		return false;
+	}
+
+	@Override
+	Object getAnchor(int position) {
+		return position < 0 || position >= mVisible.size() ? null : mVisible.get(position);
+	}
+
+	/**
+	 * Finds the node by the ID of the anchor or of its nearest ancestor,
+	 * the nodes are made anew by {@link #setItems(List)}.
+	 */
+	@Override
+	int getAnchorPosition(Object anchor) {
+		@SuppressWarnings("unchecked")
+		Entry<T> entry = (Entry<T>) anchor;
+		while (entry != null && !mIndex.containsKey(entry.id))
+			entry = entry.parent;
+		return entry == null ? -1 : getVisiblePosition(mIndex.get(entry.id));
+	}
+
+}
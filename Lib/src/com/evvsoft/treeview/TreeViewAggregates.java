@@ -0,0 +1,184 @@
+/*
+ * Copyright © 2015 The Evvsoft TreeView Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evvsoft.treeview;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * The subtree aggregates declared by {@link SimpleJsonTreeViewAdapter.BuildOptions}.
+ * Each node keeps the values over its descendants, the node itself not
+ * included. They are computed for the whole tree after the build and
+ * then recomputed from the children of the changed nodes and of their
+ * ancestors only, each of them once per change however many of its
+ * descendants have changed.
+ */
+final class TreeViewAggregates {
+
+	/** Deeper nodes first, so the children are computed before their parents. */
+	private static final Comparator<TreeViewNode> DEEPER_FIRST = new Comparator<TreeViewNode>() {
+		@Override
+		public int compare(TreeViewNode lhs, TreeViewNode rhs) {
+			int lhsLevel = lhs.getLevel();
+			int rhsLevel = rhs.getLevel();
+			return lhsLevel > rhsLevel ? -1 : lhsLevel == rhsLevel ? 0 : 1;
+		}
+	};
+
+	private final String[] mNames;
+	private final int[] mFunctions;
+	private final String[] mFields;
+	/** The nodes marked by invalidate() and not recomputed yet. */
+	private final ArrayList<TreeViewNode> mInvalid = new ArrayList<TreeViewNode>();
+	private final IdentityHashMap<TreeViewNode, Boolean> mInvalidSet =
+			new IdentityHashMap<TreeViewNode, Boolean>();
+
+	TreeViewAggregates(List<String> names, List<Integer> functions, List<String> fields) {
+		int count = names.size();
+		mNames = names.toArray(new String[count]);
+		mFunctions = new int[count];
+		for (int i = 0; i < count; i++)
+			mFunctions[i] = functions.get(i);
+		mFields = fields.toArray(new String[count]);
+	}
+
+	/**
+	 * Returns the index of the aggregate, -1 if there is no aggregate with the name.
+	 */
+	int indexOf(String name) {
+		for (int i = 0; i < mNames.length; i++)
+			if (mNames[i].equals(name))
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Returns the value of the aggregate of the node as a Long when it is
+	 * whole, as a Double otherwise, or null for the minimum and maximum
+	 * of no values.
+	 */
+	Object getValue(TreeViewNode node, int index) {
+		double[] values = node.getAggregates();
+		double value = values == null ? getEmpty(index) : values[index];
+		if (Double.isNaN(value))
+			return null;
+		if (value == Math.rint(value) && Math.abs(value) < Long.MAX_VALUE)
+			return Long.valueOf((long) value);
+		return Double.valueOf(value);
+	}
+
+	/**
+	 * Computes the aggregates of all the nodes, children first.
+	 */
+	void computeAll(TreeViewNodeArray root) {
+		ArrayList<TreeViewNode> nodes = new ArrayList<TreeViewNode>();
+		TreeViewNodeIterator it = new TreeViewNodeIterator(root, false);
+		for (TreeViewNode node = it.next(); node != null; node = it.next())
+			nodes.add(node);
+		for (int i = nodes.size() - 1; i >= 0; i--)
+			compute(nodes.get(i));
+	}
+
+	/**
+	 * Marks the aggregates of the node and of its ancestors out of date
+	 * after its children or the fields of one of them have changed. The
+	 * marking stops at the first ancestor marked already, so marking the
+	 * nodes of a change takes the number of their distinct ancestors.
+	 */
+	void invalidate(TreeViewNode node) {
+		for (; node != null && mInvalidSet.put(node, Boolean.TRUE) == null; node = node.getParent())
+			mInvalid.add(node);
+	}
+
+	/**
+	 * Recomputes the aggregates marked out of date, the children before
+	 * their parents.
+	 */
+	void update() {
+		if (mInvalid.isEmpty())
+			return;
+		Collections.sort(mInvalid, DEEPER_FIRST);
+		for (int i = 0; i < mInvalid.size(); i++)
+			compute(mInvalid.get(i));
+		mInvalid.clear();
+		mInvalidSet.clear();
+	}
+
+	private void compute(TreeViewNode node) {
+		if (node.getEvicted() != null)
+			// The children are in the spill file, the values were kept
+			return;
+		final int count = mNames.length;
+		double[] values = node.getAggregates();
+		if (values == null || values.length != count) {
+			values = new double[count];
+			node.setAggregates(values);
+		}
+		for (int i = 0; i < count; i++)
+			values[i] = getEmpty(i);
+		node.invalidateBoundValues();
+		TreeViewNodeArray children = node.getChildren();
+		if (children == null)
+			return;
+		for (int c = 0; c < children.length(); c++) {
+			TreeViewNode child = (TreeViewNode) children.opt(c);
+			double[] childValues = child.getAggregates();
+			for (int i = 0; i < count; i++) {
+				values[i] = combine(i, values[i], getOwnValue(child, i));
+				if (childValues != null)
+					values[i] = combine(i, values[i], childValues[i]);
+			}
+		}
+	}
+
+	private double getOwnValue(TreeViewNode node, int index) {
+		String field = mFields[index];
+		if (mFunctions[index] == SimpleJsonTreeViewAdapter.AGGREGATE_COUNT)
+			return field == null || node.has(field) ? 1 : 0;
+		return node.optDouble(field, Double.NaN);
+	}
+
+	private double getEmpty(int index) {
+		switch (mFunctions[index]) {
+		case SimpleJsonTreeViewAdapter.AGGREGATE_MIN:
+		case SimpleJsonTreeViewAdapter.AGGREGATE_MAX:
+			return Double.NaN;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Adds the value to the aggregate, NaN stands for no value.
+	 */
+	private double combine(int index, double aggregate, double value) {
+		if (Double.isNaN(value))
+			return aggregate;
+		switch (mFunctions[index]) {
+		case SimpleJsonTreeViewAdapter.AGGREGATE_MIN:
+			return Double.isNaN(aggregate) || value < aggregate ? value : aggregate;
+		case SimpleJsonTreeViewAdapter.AGGREGATE_MAX:
+			return Double.isNaN(aggregate) || value > aggregate ? value : aggregate;
+		default:
+			return aggregate + value;
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright © 2015 The Evvsoft TreeView Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evvsoft.treeview;
+
+import android.widget.BaseAdapter;
+
+/**
+ * What {@link TreeView} needs from its adapter, that is either
+ * {@link SimpleJsonTreeViewAdapter} or {@link TreeViewAdapter}.
+ * The look of the rows is pushed by the view, the positions are those
+ * of the adapter without the headers of the list.
+ */
+abstract class TreeViewBaseAdapter extends BaseAdapter {
+
+	/**
+	 * Lets the {@link TreeView} keep its scroll position while the tree
+	 * is changed by new data.
+	 */
+	static interface OnTreeChangeListener {
+		/** Called before the tree is changed. */
+		void onTreeChanging();
+		/** Called after the tree has been changed and the observers notified. */
+		void onTreeChanged();
+	}
+
+	abstract void setOnTreeChangeListener(OnTreeChangeListener listener);
+
+	abstract void setGroupIndicatorResource(int resId);
+
+	abstract void setChildIndicatorResource(int resId);
+
+	abstract void setIndent(int indent);
+
+	abstract void setMetrics(TreeViewMetrics metrics);
+
+	abstract boolean isGroupNode(int position);
+
+	abstract boolean isExpanded(int position);
+
+	abstract void setExpanded(int position, boolean expanded);
+
+	/**
+	 * Returns the level of the node at the position, 0 for the root level.
+	 */
+	abstract int getLevel(int position);
+
+	abstract int revealNode(long id);
+
+	/**
+	 * Prepares the row at the position ahead of the list asking for it.
+	 *
+	 * @return false if there is nothing more to prepare at the position
+	 */
+	abstract boolean prefetch(int position);
+
+	/**
+	 * Returns the node at the position, an object that keeps pointing to
+	 * the node while the tree is changed.
+	 */
+	abstract Object getAnchor(int position);
+
+	/**
+	 * Returns the position of the node returned by {@link #getAnchor(int)},
+	 * or of its nearest ancestor left in the tree.
+	 *
+	 * @return the position or -1 if there is no such node or it is hidden
+	 */
+	abstract int getAnchorPosition(Object anchor);
+
+}
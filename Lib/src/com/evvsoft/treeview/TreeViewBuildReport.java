@@ -0,0 +1,131 @@
+/*
+ * Copyright © 2015 The Evvsoft TreeView Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evvsoft.treeview;
+
+import java.util.Arrays;
+
+/**
+ * The problems found in the single-level JSON array while the tree was
+ * built from it. The items listed here are not in the tree, except the
+ * repeated IDs whose items are all in the tree but only the first one
+ * receives the children.
+ *
+ * @see SimpleJsonTreeViewAdapter.BuildOptions#setOnBuildReportListener(SimpleJsonTreeViewAdapter.OnBuildReportListener)
+ */
+public class TreeViewBuildReport {
+
+	private final int mItemCount;
+	private final int mNodeCount;
+	private final long[] mOrphanIds;
+	private final long[] mCycleIds;
+	private final long[] mDetachedIds;
+	private final long[] mDuplicateIds;
+	private final int mInternedCount;
+	private final long mInternedBytes;
+
+	TreeViewBuildReport(int itemCount, int nodeCount, long[] orphanIds,
+			long[] cycleIds, long[] detachedIds, long[] duplicateIds,
+			int internedCount, long internedBytes) {
+		mItemCount = itemCount;
+		mNodeCount = nodeCount;
+		mOrphanIds = orphanIds;
+		mCycleIds = cycleIds;
+		mDetachedIds = detachedIds;
+		mDuplicateIds = duplicateIds;
+		mInternedCount = internedCount;
+		mInternedBytes = internedBytes;
+	}
+
+	/**
+	 * Returns the number of items in the array.
+	 */
+	public int getItemCount() {
+		return mItemCount;
+	}
+
+	/**
+	 * Returns the number of nodes in the tree.
+	 */
+	public int getNodeCount() {
+		return mNodeCount;
+	}
+
+	/**
+	 * Returns the IDs of the items referring to parent IDs that no item has.
+	 */
+	public long[] getOrphanIds() {
+		return mOrphanIds;
+	}
+
+	/**
+	 * Returns the IDs of the items whose chains of parents loop back to them.
+	 */
+	public long[] getCycleIds() {
+		return mCycleIds;
+	}
+
+	/**
+	 * Returns the IDs of the descendants of the orphans and of the cycles.
+	 */
+	public long[] getDetachedIds() {
+		return mDetachedIds;
+	}
+
+	/**
+	 * Returns the IDs given to more than one item, each ID once.
+	 */
+	public long[] getDuplicateIds() {
+		return mDuplicateIds;
+	}
+
+	/**
+	 * Returns the number of names and values that were replaced by equal
+	 * ones of other nodes, 0 unless interning is enabled.
+	 *
+	 * @see SimpleJsonTreeViewAdapter.BuildOptions#setInterning(boolean)
+	 */
+	public int getInternedCount() {
+		return mInternedCount;
+	}
+
+	/**
+	 * Returns the estimated memory in bytes saved by interning.
+	 *
+	 * @see SimpleJsonTreeViewAdapter.BuildOptions#setInterning(boolean)
+	 */
+	public long getInternedBytes() {
+		return mInternedBytes;
+	}
+
+	/**
+	 * Returns true if all the items are in the tree and all the IDs are unique.
+	 */
+	public boolean isValid() {
+		return mNodeCount == mItemCount && mDuplicateIds.length == 0;
+	}
+
+	@Override
+	public String toString() {
+		return "TreeViewBuildReport{items=" + mItemCount + ", nodes=" + mNodeCount +
+				", orphans=" + Arrays.toString(mOrphanIds) +
+				", cycles=" + Arrays.toString(mCycleIds) +
+				", detached=" + Arrays.toString(mDetachedIds) +
+				", duplicates=" + Arrays.toString(mDuplicateIds) +
+				", interned=" + mInternedCount + ", internedBytes=" + mInternedBytes + "}";
+	}
+
+}
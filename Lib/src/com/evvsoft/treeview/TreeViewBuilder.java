@@ -0,0 +1,404 @@
+/*
+ * Copyright © 2015 The Evvsoft TreeView Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evvsoft.treeview;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Builds the tree of nodes from the single-level JSON array in linear time.
+ * <p>
+ * The array is converted in parts: each part creates the nodes of its
+ * items and groups them by parent IDs. The parts run on the pool when
+ * more than one thread is allowed, otherwise on the calling thread. Then
+ * the linking phase walks the tree from the root level on the calling
+ * thread, so it needs no locks.
+ * <p>
+ * The children of a node are ordered as the former build that rescanned
+ * the items whose parents had not been added yet gave them: first the
+ * children that follow their parent in the array, then those that
+ * precede it, each in the array order. Items whose parents never resolve
+ * are dropped. Children of a repeated ID go to the first item with that ID.
+ * <p>
+ * When validating, the dropped items and the repeated IDs are collected
+ * into a {@link TreeViewBuildReport} in one more linear pass.
+ */
+final class TreeViewBuilder {
+
+	/** The smallest number of items worth a separate part. */
+	private static final int MIN_PART_SIZE = 2048;
+
+	private static final byte STATE_NEW     = 0;
+	private static final byte STATE_ON_PATH = 1;
+	private static final byte STATE_DONE    = 2;
+
+	private final String[] mKeys;
+	private final String mIdParentField;
+	private final boolean mValidate;
+	private final TreeViewInterner mInterner;
+	private final TreeViewProjection mProjection;
+
+	private TreeViewNode[] mNodes;
+	/** Array indices of the first items with the given IDs. */
+	private HashMap<Long, Integer> mFirstIndex;
+	/** Array indices of items by the IDs of their parents, in the array order. */
+	private HashMap<Long, IntList> mChildren;
+	private int mNodeCount;
+	/** Items reached from the root level, only when validating. */
+	private boolean[] mReached;
+	private LinkedHashSet<Long> mDuplicateIds;
+	private TreeViewBuildReport mReport;
+
+	/**
+	 * @param keys the names of the key fields passed to the nodes
+	 * @param idParentField the name of the parent ID field
+	 * @param validate true to collect the {@link TreeViewBuildReport}
+	 * @param interner the pool of values shared by the nodes, can be null
+	 * @param projection the fields kept by the nodes, null for all
+	 */
+	TreeViewBuilder(String[] keys, String idParentField, boolean validate,
+			TreeViewInterner interner, TreeViewProjection projection) {
+		mKeys = keys;
+		mIdParentField = idParentField;
+		mValidate = validate;
+		mInterner = interner;
+		mProjection = projection;
+	}
+
+	/**
+	 * Builds the tree.
+	 *
+	 * @param data the single-level array of JSON objects
+	 * @param parallelism the number of threads to use
+	 * @param index receives the nodes of the tree by their IDs
+	 * @return the nodes of the root level
+	 * @throws JSONException if an item is not a JSON object
+	 */
+	TreeViewNodeArray build(JSONArray data, int parallelism,
+			Map<Long, TreeViewNode> index) throws JSONException {
+		int length = data.length();
+		mNodes = new TreeViewNode[length];
+		if (mValidate) {
+			mReached = new boolean[length];
+			mDuplicateIds = new LinkedHashSet<Long>();
+		}
+		int partCount = Math.max(1, Math.min(parallelism, length / MIN_PART_SIZE));
+		if (partCount == 1) {
+			Part part = new Part(data, 0, length);
+			part.call();
+			mFirstIndex = part.mFirstIndex;
+			mChildren = part.mChildren;
+			if (mValidate)
+				mDuplicateIds.addAll(part.mDuplicates);
+		} else
+			convertInParts(data, partCount);
+		TreeViewNodeArray result = link(index);
+		if (mValidate) {
+			mReport = validate(data);
+			mReached = null;
+			mDuplicateIds = null;
+		}
+		mNodes = null;
+		mFirstIndex = null;
+		mChildren = null;
+		return result;
+	}
+
+	/**
+	 * Returns the number of nodes attached to the tree by the last build.
+	 */
+	int getNodeCount() {
+		return mNodeCount;
+	}
+
+	/**
+	 * Returns the report of the last build or null if not validating.
+	 */
+	TreeViewBuildReport getReport() {
+		return mReport;
+	}
+
+	private void convertInParts(JSONArray data, int partCount) throws JSONException {
+		ArrayList<Callable<Void>> parts = new ArrayList<Callable<Void>>(partCount);
+		int length = data.length();
+		for (int i=0; i<partCount; i++)
+			parts.add(new Part(data, (int) ((long) length * i / partCount),
+					(int) ((long) length * (i + 1) / partCount)));
+		try {
+			TreeViewExecutor.invokeAll(parts);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof JSONException)
+				throw (JSONException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new RuntimeException(cause);
+		}
+		// Merge the parts in the array order
+		mFirstIndex = ((Part) parts.get(0)).mFirstIndex;
+		mChildren = ((Part) parts.get(0)).mChildren;
+		for (int i=0; i<partCount && mValidate; i++)
+			mDuplicateIds.addAll(((Part) parts.get(i)).mDuplicates);
+		for (int i=1; i<partCount; i++) {
+			Part part = (Part) parts.get(i);
+			for (Map.Entry<Long, Integer> entry : part.mFirstIndex.entrySet())
+				if (!mFirstIndex.containsKey(entry.getKey()))
+					mFirstIndex.put(entry.getKey(), entry.getValue());
+				else if (mValidate)
+					mDuplicateIds.add(entry.getKey());
+			for (Map.Entry<Long, IntList> entry : part.mChildren.entrySet()) {
+				IntList list = mChildren.get(entry.getKey());
+				if (list == null)
+					mChildren.put(entry.getKey(), entry.getValue());
+				else
+					list.addAll(entry.getValue());
+			}
+		}
+	}
+
+	private TreeViewNodeArray link(Map<Long, TreeViewNode> index) throws JSONException {
+		int[] queue = new int[mNodes.length];
+		int queued = 0;
+
+		TreeViewNodeArray result = new TreeViewNodeArray();
+		IntList rootList = mChildren.get(TreeViewNode.BAD_ID);
+		if (rootList != null)
+			for (int i=0; i<rootList.size(); i++) {
+				int item = rootList.get(i);
+				result.put(mNodes[item]);
+				queue[queued++] = item;
+			}
+		TreeViewNode.setRootLevel(result);
+		if (mValidate)
+			for (int i=0; i<queued; i++)
+				mReached[queue[i]] = true;
+
+		for (int head=0; head<queued; head++) {
+			int parent = queue[head];
+			TreeViewNode parentNode = mNodes[parent];
+			long id = parentNode.getId();
+			// Items without IDs cannot be parents, and BAD_ID is the key
+			// of the root level in mChildren
+			if (id == TreeViewNode.BAD_ID)
+				continue;
+			// Only the first item with the ID gets the children
+			boolean first = mFirstIndex.get(id) == parent;
+			if (first || !index.containsKey(id))
+				index.put(id, parentNode);
+			if (!first)
+				continue;
+			IntList list = mChildren.get(id);
+			if (list == null)
+				continue;
+			// The former build added the children following the parent in
+			// the same pass as the parent and the preceding ones in the next
+			TreeViewNodeArray children = new TreeViewNodeArray();
+			for (int i=0; i<list.size(); i++) {
+				int item = list.get(i);
+				if (item > parent) {
+					children.put(mNodes[item]);
+					queue[queued++] = item;
+					if (mValidate)
+						mReached[item] = true;
+				}
+			}
+			for (int i=0; i<list.size(); i++) {
+				int item = list.get(i);
+				if (item < parent) {
+					children.put(mNodes[item]);
+					queue[queued++] = item;
+					if (mValidate)
+						mReached[item] = true;
+				}
+			}
+			if (children.length() > 0)
+				parentNode.setChildren(children);
+		}
+		mNodeCount = queued;
+		return result;
+	}
+
+	/**
+	 * Classifies the items not reached from the root level. Following the
+	 * parents of an item ends at a missing parent (orphan), at an item on
+	 * the same path (cycle) or at an item already classified. Every item
+	 * is followed once, so the pass is linear.
+	 */
+	private TreeViewBuildReport validate(JSONArray data) throws JSONException {
+		int length = mNodes.length;
+		byte[] state = new byte[length];
+		for (int i=0; i<length; i++)
+			if (mReached[i])
+				state[i] = STATE_DONE;
+		LongList orphans = new LongList();
+		LongList cycles = new LongList();
+		LongList detached = new LongList();
+		int[] path = new int[Math.max(1, length - mNodeCount)];
+		for (int start=0; start<length; start++) {
+			if (state[start] != STATE_NEW)
+				continue;
+			int pathLength = 0;
+			int detachedLength;
+			int item = start;
+			while (true) {
+				state[item] = STATE_ON_PATH;
+				path[pathLength++] = item;
+				long idParent = data.getJSONObject(item).optLong(mIdParentField, TreeViewNode.BAD_ID);
+				Integer parent = idParent == TreeViewNode.BAD_ID ? null : mFirstIndex.get(idParent);
+				if (parent == null) {
+					orphans.add(mNodes[item].getId());
+					detachedLength = pathLength - 1;
+					break;
+				}
+				if (state[parent] == STATE_ON_PATH) {
+					int cycleStart = pathLength - 1;
+					while (path[cycleStart] != parent)
+						cycleStart--;
+					for (int i=cycleStart; i<pathLength; i++)
+						cycles.add(mNodes[path[i]].getId());
+					detachedLength = cycleStart;
+					break;
+				}
+				if (state[parent] == STATE_DONE) {
+					detachedLength = pathLength;
+					break;
+				}
+				item = parent;
+			}
+			for (int i=0; i<detachedLength; i++)
+				detached.add(mNodes[path[i]].getId());
+			for (int i=0; i<pathLength; i++)
+				state[path[i]] = STATE_DONE;
+		}
+		long[] duplicates = new long[mDuplicateIds.size()];
+		int i = 0;
+		for (Long id : mDuplicateIds)
+			duplicates[i++] = id;
+		return new TreeViewBuildReport(length, mNodeCount, orphans.toArray(),
+				cycles.toArray(), detached.toArray(), duplicates,
+				mInterner == null ? 0 : mInterner.getInternedCount(),
+				mInterner == null ? 0 : mInterner.getSavedBytes());
+	}
+
+	/**
+	 * Converts a range of the items to nodes and groups them by parent IDs.
+	 */
+	private final class Part implements Callable<Void> {
+
+		private final JSONArray mData;
+		private final int mStart;
+		private final int mEnd;
+		final HashMap<Long, Integer> mFirstIndex = new HashMap<Long, Integer>();
+		final HashMap<Long, IntList> mChildren = new HashMap<Long, IntList>();
+		final LinkedHashSet<Long> mDuplicates = new LinkedHashSet<Long>();
+
+		Part(JSONArray data, int start, int end) {
+			mData = data;
+			mStart = start;
+			mEnd = end;
+		}
+
+		@Override
+		public Void call() throws JSONException {
+			for (int i=mStart; i<mEnd; i++) {
+				JSONObject obj = mData.getJSONObject(i);
+				TreeViewNode node = new TreeViewNode(obj, mKeys, mInterner, mProjection);
+				long idParent = obj.optLong(mIdParentField, TreeViewNode.BAD_ID);
+				mNodes[i] = node;
+				long id = node.getId();
+				// Items without IDs are not indexed
+				if (id != TreeViewNode.BAD_ID) {
+					if (!mFirstIndex.containsKey(id))
+						mFirstIndex.put(id, i);
+					else if (mValidate)
+						mDuplicates.add(id);
+				}
+				IntList list = mChildren.get(idParent);
+				if (list == null) {
+					list = new IntList();
+					mChildren.put(idParent, list);
+				}
+				list.add(i);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Growable list of longs without boxing.
+	 */
+	static final class LongList {
+
+		private long[] mItems = new long[4];
+		private int mSize;
+
+		void add(long item) {
+			if (mSize == mItems.length) {
+				long[] items = new long[mSize * 2];
+				System.arraycopy(mItems, 0, items, 0, mSize);
+				mItems = items;
+			}
+			mItems[mSize++] = item;
+		}
+
+		long[] toArray() {
+			long[] result = new long[mSize];
+			System.arraycopy(mItems, 0, result, 0, mSize);
+			return result;
+		}
+	}
+
+	/**
+	 * Growable list of ints without boxing.
+	 */
+	static final class IntList {
+
+		private int[] mItems = new int[4];
+		private int mSize;
+
+		int size() {
+			return mSize;
+		}
+
+		int get(int i) {
+			return mItems[i];
+		}
+
+		void add(int item) {
+			if (mSize == mItems.length) {
+				int[] items = new int[mSize * 2];
+				System.arraycopy(mItems, 0, items, 0, mSize);
+				mItems = items;
+			}
+			mItems[mSize++] = item;
+		}
+
+		void addAll(IntList list) {
+			for (int i=0; i<list.mSize; i++)
+				add(list.mItems[i]);
+		}
+	}
+
+}
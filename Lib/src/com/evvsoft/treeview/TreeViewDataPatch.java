@@ -0,0 +1,346 @@
+/*
+ * Copyright © 2015 The Evvsoft TreeView Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evvsoft.treeview;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The difference between the current tree and a new flat JSON array,
+ * keyed by node ID. It is computed on a background thread by
+ * {@link #compute(JSONArray, String, String, TreeViewNodeArray, Object, int)}
+ * and applied by the adapter on the main thread. The changes posted to a
+ * {@link TreeDataSource} are turned into a patch on the main thread by
+ * {@link #fromChanges(List, String, String, String, HashMap, TreeViewNodeArray, int)}.
+ */
+final class TreeViewDataPatch {
+
+	/** The key of the root level in {@link #children}. */
+	static final long ROOT = TreeViewNode.BAD_ID;
+
+	/** The value of the adapter's data generation the patch was computed for. */
+	final int generation;
+	/** IDs of the nodes to be removed from the tree. */
+	final HashSet<Long> removed = new HashSet<Long>();
+	/** Objects of the new nodes by their IDs. */
+	final LinkedHashMap<Long, JSONObject> inserted = new LinkedHashMap<Long, JSONObject>();
+	/** Objects of the existing nodes with changed fields by their IDs. */
+	final LinkedHashMap<Long, JSONObject> updated = new LinkedHashMap<Long, JSONObject>();
+	/** New lists of children IDs of the nodes whose children were inserted, removed or moved. */
+	final LinkedHashMap<Long, long[]> children = new LinkedHashMap<Long, long[]>();
+
+	private TreeViewDataPatch(int generation) {
+		this.generation = generation;
+	}
+
+	boolean isEmpty() {
+		return removed.isEmpty() && inserted.isEmpty() && updated.isEmpty() && children.isEmpty();
+	}
+
+	/**
+	 * Computes the patch. The tree is read under the lock, which the adapter
+	 * holds while it changes the tree.
+	 *
+	 * @param data the new single-level array of JSON objects
+	 * @param idField the name of the ID field
+	 * @param idParentField the name of the parent ID field
+	 * @param nodes the root level of the current tree
+	 * @param lock the lock of the tree
+	 * @param generation the data generation of the adapter
+	 * @throws JSONException if an item of the data is not a JSON object
+	 */
+	static TreeViewDataPatch compute(JSONArray data, String idField, String idParentField,
+			TreeViewNodeArray nodes, Object lock, int generation) throws JSONException {
+		TreeViewDataPatch patch = new TreeViewDataPatch(generation);
+
+		// The new tree: objects by IDs and lists of children by parent IDs.
+		// Items without ID cannot be matched and the repeated IDs are ignored.
+		HashMap<Long, JSONObject> objects = new HashMap<Long, JSONObject>();
+		HashMap<Long, ArrayList<Long>> newChildren = new HashMap<Long, ArrayList<Long>>();
+		for (int i=0; i<data.length(); i++) {
+			JSONObject obj = data.getJSONObject(i);
+			long id = obj.optLong(idField, TreeViewNode.BAD_ID);
+			if (id == TreeViewNode.BAD_ID || objects.containsKey(id))
+				continue;
+			objects.put(id, obj);
+			long idParent = obj.optLong(idParentField, TreeViewNode.BAD_ID);
+			ArrayList<Long> list = newChildren.get(idParent);
+			if (list == null) {
+				list = new ArrayList<Long>();
+				newChildren.put(idParent, list);
+			}
+			list.add(id);
+		}
+
+		// Only the nodes reachable from the root level get into the tree,
+		// the same as in the constructor. It drops orphans and cycles.
+		ArrayList<Long> reached = new ArrayList<Long>();
+		reached.add(ROOT);
+		for (int i=0; i<reached.size(); i++) {
+			ArrayList<Long> list = newChildren.get(reached.get(i));
+			if (list != null)
+				reached.addAll(list);
+		}
+
+		// The current tree
+		HashMap<Long, TreeViewNode> current = new HashMap<Long, TreeViewNode>();
+		HashMap<Long, long[]> currentChildren = new HashMap<Long, long[]>();
+		// The groups whose children were evicted to the spill file get
+		// their children from the data again
+		HashSet<Long> evicted = new HashSet<Long>();
+		synchronized (lock) {
+			currentChildren.put(ROOT, ids(nodes));
+			TreeViewNodeIterator it = new TreeViewNodeIterator(nodes, false);
+			for (TreeViewNode node = it.next(); node != null; node = it.next()) {
+				long id = node.getId();
+				if (current.containsKey(id))
+					continue;
+				current.put(id, node);
+				if (node.getEvicted() != null)
+					evicted.add(id);
+				TreeViewNodeArray nodeChildren = node.getChildren();
+				if (nodeChildren != null)
+					currentChildren.put(id, ids(nodeChildren));
+			}
+		}
+
+		HashSet<Long> survived = new HashSet<Long>();
+		for (int i=1; i<reached.size(); i++) {
+			Long id = reached.get(i);
+			JSONObject obj = objects.get(id);
+			TreeViewNode node = current.get(id);
+			if (node == null) {
+				patch.inserted.put(id, obj);
+				continue;
+			}
+			survived.add(id);
+			boolean same;
+			synchronized (lock) {
+				same = node.hasSameFields(obj);
+			}
+			if (!same)
+				patch.updated.put(id, obj);
+		}
+		for (Map.Entry<Long, TreeViewNode> entry : current.entrySet())
+			if (!survived.contains(entry.getKey()))
+				patch.removed.add(entry.getKey());
+
+		for (int i=0; i<reached.size(); i++) {
+			Long id = reached.get(i);
+			long[] newIds = toArray(newChildren.get(id));
+			long[] oldIds = currentChildren.get(id);
+			if (oldIds == null)
+				oldIds = new long[0];
+			if (!Arrays.equals(newIds, oldIds) || evicted.contains(id))
+				patch.children.put(id, newIds);
+		}
+		return patch;
+	}
+
+	/**
+	 * Computes the patch from the changes of a data source. Only the
+	 * changed nodes, their ancestors and the subtrees of the removed nodes
+	 * are looked at, so it is called on the main thread with the tree at
+	 * hand. Only the last change of a node counts. As in
+	 * {@link #compute(JSONArray, String, String, TreeViewNodeArray, Object, int)},
+	 * the nodes that cannot be reached from the root level, the orphans and
+	 * the cycles, do not get into the tree and are removed from it.
+	 *
+	 * @param changes the changes in the order they were posted
+	 * @param idField the name of the ID field
+	 * @param idParentField the name of the parent ID field
+	 * @param childrenField the name of the children arrays, the objects
+	 *            having such a field are not nodes and are ignored
+	 * @param index the nodes of the current tree by their IDs
+	 * @param nodes the root level of the current tree
+	 * @param generation the data generation of the adapter
+	 */
+	static TreeViewDataPatch fromChanges(List<TreeDataSource.Change> changes, String idField,
+			String idParentField, String childrenField, HashMap<Long, TreeViewNode> index,
+			TreeViewNodeArray nodes, int generation) {
+		TreeViewDataPatch patch = new TreeViewDataPatch(generation);
+
+		// The last change of each node, null for the removal,
+		// in the order of the last changes
+		LinkedHashMap<Long, JSONObject> last = new LinkedHashMap<Long, JSONObject>();
+		for (TreeDataSource.Change change : changes) {
+			long id = change.item == null ? change.id :
+					change.item.optLong(idField, TreeViewNode.BAD_ID);
+			if (id == TreeViewNode.BAD_ID || change.item != null && change.item.has(childrenField))
+				continue;
+			last.remove(id);
+			last.put(id, change.item);
+		}
+
+		// The new parents of the changed nodes, null for the removed ones,
+		// and the new lists of children of their old and new parents
+		HashMap<Long, Long> parents = new HashMap<Long, Long>();
+		HashMap<Long, ArrayList<Long>> lists = new HashMap<Long, ArrayList<Long>>();
+		for (Map.Entry<Long, JSONObject> entry : last.entrySet()) {
+			Long id = entry.getKey();
+			JSONObject obj = entry.getValue();
+			TreeViewNode node = index.get(id);
+			Long oldParent = node == null ? null : node.getIdParent();
+			Long newParent = obj == null ? null : obj.optLong(idParentField, ROOT);
+			if (oldParent != null && !oldParent.equals(newParent))
+				children(lists, oldParent, index, nodes).remove(id);
+			if (newParent != null && !newParent.equals(oldParent))
+				children(lists, newParent, index, nodes).add(id);
+			parents.put(id, newParent);
+		}
+
+		HashMap<Long, Boolean> reachable = new HashMap<Long, Boolean>();
+		for (Map.Entry<Long, JSONObject> entry : last.entrySet()) {
+			Long id = entry.getKey();
+			TreeViewNode node = index.get(id);
+			boolean reached = isReachable(id, parents, index, reachable);
+			if (node == null) {
+				if (reached)
+					patch.inserted.put(id, entry.getValue());
+			} else if (!reached)
+				removeSubtree(patch, id, lists, index);
+			else if (!node.hasSameFields(entry.getValue()))
+				patch.updated.put(id, entry.getValue());
+		}
+
+		for (Map.Entry<Long, ArrayList<Long>> entry : lists.entrySet()) {
+			Long id = entry.getKey();
+			if (id != ROOT && !patch.inserted.containsKey(id) &&
+					(!index.containsKey(id) || patch.removed.contains(id)))
+				continue;
+			ArrayList<Long> list = entry.getValue();
+			long[] ids = new long[list.size()];
+			int count = 0;
+			for (Long child : list)
+				if (patch.inserted.containsKey(child) ||
+						(index.containsKey(child) && !patch.removed.contains(child)))
+					ids[count++] = child;
+			if (count < ids.length) {
+				long[] trimmed = new long[count];
+				System.arraycopy(ids, 0, trimmed, 0, count);
+				ids = trimmed;
+			}
+			patch.children.put(id, ids);
+		}
+		return patch;
+	}
+
+	/**
+	 * Returns the new list of children of the node, copying the current list first.
+	 */
+	private static ArrayList<Long> children(HashMap<Long, ArrayList<Long>> lists, Long id,
+			HashMap<Long, TreeViewNode> index, TreeViewNodeArray nodes) {
+		ArrayList<Long> list = lists.get(id);
+		if (list != null)
+			return list;
+		list = new ArrayList<Long>();
+		TreeViewNode node = id == ROOT ? null : index.get(id);
+		TreeViewNodeArray array = id == ROOT ? nodes : node == null ? null : node.getChildren();
+		if (array != null)
+			for (long child : ids(array))
+				list.add(child);
+		lists.put(id, list);
+		return list;
+	}
+
+	/**
+	 * Checks whether the node can be reached from the root level by the new
+	 * parents, remembering the answer for all the nodes on the way.
+	 */
+	private static boolean isReachable(Long id, HashMap<Long, Long> parents,
+			HashMap<Long, TreeViewNode> index, HashMap<Long, Boolean> reachable) {
+		ArrayList<Long> path = new ArrayList<Long>();
+		HashSet<Long> visited = new HashSet<Long>();
+		Boolean result = null;
+		for (Long current = id; result == null; ) {
+			if (current == ROOT) {
+				result = Boolean.TRUE;
+				break;
+			}
+			result = reachable.get(current);
+			if (result != null)
+				break;
+			if (!visited.add(current)) {
+				// A cycle
+				result = Boolean.FALSE;
+				break;
+			}
+			path.add(current);
+			Long parent;
+			if (parents.containsKey(current))
+				parent = parents.get(current);
+			else {
+				TreeViewNode node = index.get(current);
+				parent = node == null ? null : node.getIdParent();
+			}
+			if (parent == null)
+				// Removed or not known
+				result = Boolean.FALSE;
+			current = parent;
+		}
+		for (Long node : path)
+			reachable.put(node, result);
+		return result;
+	}
+
+	/**
+	 * Removes the node and its descendants by the new lists of children.
+	 */
+	private static void removeSubtree(TreeViewDataPatch patch, Long id,
+			HashMap<Long, ArrayList<Long>> lists, HashMap<Long, TreeViewNode> index) {
+		ArrayList<Long> pending = new ArrayList<Long>();
+		pending.add(id);
+		while (!pending.isEmpty()) {
+			Long current = pending.remove(pending.size() - 1);
+			TreeViewNode node = index.get(current);
+			if (node == null || !patch.removed.add(current))
+				continue;
+			ArrayList<Long> list = lists.get(current);
+			if (list != null)
+				pending.addAll(list);
+			else if (node.getChildren() != null)
+				for (long child : ids(node.getChildren()))
+					pending.add(child);
+		}
+	}
+
+	private static long[] ids(TreeViewNodeArray array) {
+		long[] result = new long[array.length()];
+		for (int i=0; i<result.length; i++)
+			result[i] = ((TreeViewNode) array.opt(i)).getId();
+		return result;
+	}
+
+	private static long[] toArray(ArrayList<Long> list) {
+		if (list == null)
+			return new long[0];
+		long[] result = new long[list.size()];
+		for (int i=0; i<result.length; i++)
+			result[i] = list.get(i);
+		return result;
+	}
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright © 2015 The Evvsoft TreeView Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evvsoft.treeview;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Threads shared by the adapters: a single background worker, so the
+ * background jobs of an adapter run in the order they were requested,
+ * a pool with a thread per processor for the jobs split into parts,
+ * and the main thread to return the results to.
+ */
+final class TreeViewExecutor {
+
+	private static ExecutorService sWorker;
+	private static ExecutorService sPool;
+	private static Handler sMainHandler;
+
+	private TreeViewExecutor() {
+	}
+
+	/**
+	 * Runs the job on the background worker thread.
+	 */
+	static synchronized void execute(Runnable job) {
+		if (sWorker == null)
+			sWorker = Executors.newSingleThreadExecutor(new DaemonThreadFactory("TreeViewWorker", true));
+		sWorker.execute(job);
+	}
+
+	/**
+	 * Runs the parts of a job on the pool and waits for all of them.
+	 * @throws ExecutionException if any part has thrown an exception
+	 */
+	static <T> void invokeAll(List<Callable<T>> parts) throws ExecutionException {
+		ExecutorService pool;
+		synchronized (TreeViewExecutor.class) {
+			if (sPool == null)
+				sPool = Executors.newFixedThreadPool(getProcessorCount(),
+						new DaemonThreadFactory("TreeViewPool", false));
+			pool = sPool;
+		}
+		try {
+			for (Future<T> future : pool.invokeAll(parts))
+				future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ExecutionException(e);
+		}
+	}
+
+	static int getProcessorCount() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Runs the job on the main thread.
+	 */
+	static synchronized void postToMain(Runnable job) {
+		if (sMainHandler == null)
+			sMainHandler = new Handler(Looper.getMainLooper());
+		sMainHandler.post(job);
+	}
+
+	private static final class DaemonThreadFactory implements ThreadFactory {
+
+		private final String mName;
+		private final boolean mBackground;
+
+		/**
+		 * @param background false for the threads the main thread waits for
+		 */
+		DaemonThreadFactory(String name, boolean background) {
+			mName = name;
+			mBackground = background;
+		}
+
+		@Override
+		public Thread newThread(final Runnable r) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					if (mBackground)
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					r.run();
+				}
+			}, mName);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
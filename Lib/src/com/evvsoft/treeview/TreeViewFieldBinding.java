@@ -0,0 +1,147 @@
+/*
+ * Copyright © 2015 The Evvsoft TreeView Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evvsoft.treeview;
+
+import java.util.Arrays;
+
+import android.view.View;
+import android.widget.Checkable;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+/**
+ * The "from" fields and "to" views of groups or children compiled once:
+ * each slot knows whether it reads a field or a subtree aggregate, and
+ * each row keeps its slot views with their kinds. The values and texts
+ * of a node are cached on the node until its fields change, so binding
+ * a node again allocates nothing.
+ */
+final class TreeViewFieldBinding {
+
+	static final int VIEW_OTHER          = 0;
+	static final int VIEW_CHECKABLE      = 1;
+	/** A Checkable TextView, such as a CheckBox, takes a Boolean or a text. */
+	static final int VIEW_CHECKABLE_TEXT = 2;
+	static final int VIEW_TEXT           = 3;
+	static final int VIEW_IMAGE          = 4;
+
+	private final String[] mFields;
+	/** The index of the aggregate read by the slot, -1 for a field. */
+	private final int[] mAggregateIndices;
+	private final int[] mViewIds;
+	private final TreeViewAggregates mAggregates;
+	/** The values of the placeholder rows, made on first use. */
+	private Values mPlaceholderValues;
+
+	TreeViewFieldBinding(String[] from, int[] to, TreeViewAggregates aggregates) {
+		int count = to.length;
+		mFields = new String[count];
+		mViewIds = new int[count];
+		mAggregateIndices = new int[count];
+		mAggregates = aggregates;
+		for (int i = 0; i < count; i++) {
+			mFields[i] = from[i];
+			mViewIds[i] = to[i];
+			mAggregateIndices[i] = aggregates == null ? -1 : aggregates.indexOf(from[i]);
+		}
+	}
+
+	int getCount() {
+		return mViewIds.length;
+	}
+
+	/**
+	 * Returns the values of the slots for the node, from the cache of the
+	 * node while it is valid.
+	 */
+	Values getValues(TreeViewNode node) {
+		Values values = node.getBoundValues();
+		if (values == null || values.binding != this) {
+			values = new Values(this);
+			node.setBoundValues(values);
+		}
+		if (!values.valid) {
+			for (int i = 0; i < mFields.length; i++) {
+				int aggregate = mAggregateIndices[i];
+				Object data = aggregate < 0 ? node.opt(mFields[i]) :
+					mAggregates.getValue(node, aggregate);
+				String text = data == null ? "" : data.toString();
+				values.data[i] = data;
+				values.text[i] = text == null ? "" : text;
+			}
+			values.valid = true;
+		}
+		return values;
+	}
+
+	/**
+	 * Finds the slot views in the row unless the row has them already.
+	 */
+	void attach(TreeRowLayout row) {
+		if (row.getBinding() == this)
+			return;
+		int count = mViewIds.length;
+		View[] views = new View[count];
+		int[] kinds = new int[count];
+		for (int i = 0; i < count; i++) {
+			View v = row.findViewById(mViewIds[i]);
+			views[i] = v;
+			if (v instanceof Checkable)
+				// Note: keep the instanceof TextView check at the bottom of these
+				// ifs since a lot of views are TextViews (e.g. CheckBoxes).
+				kinds[i] = v instanceof TextView ? VIEW_CHECKABLE_TEXT : VIEW_CHECKABLE;
+			else if (v instanceof TextView)
+				kinds[i] = VIEW_TEXT;
+			else if (v instanceof ImageView)
+				kinds[i] = VIEW_IMAGE;
+			else
+				kinds[i] = VIEW_OTHER;
+		}
+		row.setBinding(this, views, kinds);
+	}
+
+	/**
+	 * Returns the values of a placeholder row, all of them empty.
+	 */
+	Values getPlaceholderValues() {
+		if (mPlaceholderValues == null) {
+			Values values = new Values(this);
+			Arrays.fill(values.text, "");
+			values.valid = true;
+			mPlaceholderValues = values;
+		}
+		return mPlaceholderValues;
+	}
+
+	/**
+	 * The values of the slots for a node and their texts.
+	 */
+	static final class Values {
+		final TreeViewFieldBinding binding;
+		final Object[] data;
+		final String[] text;
+		/** False after the fields of the node have changed. */
+		boolean valid;
+
+		Values(TreeViewFieldBinding binding) {
+			this.binding = binding;
+			data = new Object[binding.getCount()];
+			text = new String[binding.getCount()];
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright © 2015 The Evvsoft TreeView Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evvsoft.treeview;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of the field names, strings and boxed numbers shared by the nodes
+ * made together, so equal values repeated over many items are kept once.
+ * A pool serves one build, used by its parts at the same time, or one
+ * batch of nodes created by the changes of the data or read back from the
+ * spill file, and is dropped with it.
+ */
+final class TreeViewInterner {
+
+	private final ConcurrentHashMap<Object, Object> mValues = new ConcurrentHashMap<Object, Object>();
+	private final AtomicInteger mInternedCount = new AtomicInteger();
+	private final AtomicLong mSavedBytes = new AtomicLong();
+
+	/**
+	 * Returns the pooled value equal to the value, the value itself if it
+	 * is the first one or is not a string or a boxed number.
+	 */
+	Object intern(Object value) {
+		if (!(value instanceof String || value instanceof Integer ||
+				value instanceof Long || value instanceof Double))
+			return value;
+		Object pooled = mValues.putIfAbsent(value, value);
+		if (pooled == null)
+			return value;
+		if (pooled != value) {
+			mInternedCount.incrementAndGet();
+			mSavedBytes.addAndGet(getSize(value));
+		}
+		return pooled;
+	}
+
+	String intern(String value) {
+		return (String) intern((Object) value);
+	}
+
+	/**
+	 * Returns the number of values replaced by the pooled ones.
+	 */
+	int getInternedCount() {
+		return mInternedCount.get();
+	}
+
+	/**
+	 * Returns the estimated size of the values replaced by the pooled ones.
+	 */
+	long getSavedBytes() {
+		return mSavedBytes.get();
+	}
+
+	/**
+	 * Estimates the heap size of the value: the object with its header,
+	 * and the characters of a string.
+	 */
+	private static long getSize(Object value) {
+		if (value instanceof String)
+			return 40 + 2L * ((String) value).length();
+		if (value instanceof Integer)
+			return 16;
+		return 24;
+	}
+
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright © 2015 The Evvsoft TreeView Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evvsoft.treeview;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonWriter;
+
+/**
+ * Streams a {@link TreeViewSnapshot} to a {@link Writer} through
+ * {@link JsonWriter}, or through the quoting of {@link JSONObject} below
+ * API 11 where there is no JsonWriter.
+ * <p>
+ * The snapshot does not change, so the text can be produced by
+ * {@link #write(Writer, boolean)} on any thread while the tree is modified,
+ * without building the whole document in memory.
+ */
+final class TreeViewJsonWriter {
+
+	private final TreeViewSnapshot.Node[] mNodes;
+	private final int[] mDepths;
+
+	TreeViewJsonWriter(TreeViewSnapshot snapshot) {
+		int count = snapshot.getNodeCount();
+		mNodes = new TreeViewSnapshot.Node[count];
+		mDepths = new int[count];
+		snapshot.collect(mNodes, mDepths);
+	}
+
+	/**
+	 * Returns the number of nodes captured.
+	 */
+	int size() {
+		return mNodes.length;
+	}
+
+	/**
+	 * Writes the captured tree.
+	 *
+	 * @param writer the destination, it is flushed but not closed
+	 * @param nested true for the nested shape with the children arrays,
+	 *            false for the flat shape with the references to the parents
+	 */
+	void write(Writer writer, boolean nested) throws IOException {
+		write(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB ?
+				new StreamOutput(writer) : new TextOutput(writer), nested);
+	}
+
+	void write(Output json, boolean nested) throws IOException {
+		json.beginArray();
+		if (nested)
+			writeNested(json);
+		else
+			writeFlat(json);
+		json.endArray();
+		json.flush();
+	}
+
+	private void writeFlat(Output json) throws IOException {
+		for (int i = 0; i < mNodes.length; i++) {
+			TreeViewSnapshot.Node node = mNodes[i];
+			TreeViewSnapshot.Fields fields = node.getFields();
+			json.beginObject();
+			writeFields(json, fields);
+			long idParent = node.getParentId();
+			if (idParent != TreeViewNode.BAD_ID)
+				json.name(fields.idParentName).value(idParent);
+			if (node.isGroupNode())
+				json.name(fields.isGroupName).value(1);
+			if (node.isExpanded())
+				json.name(fields.expandedName).value(1);
+			json.endObject();
+		}
+	}
+
+	private void writeNested(Output json) throws IOException {
+		int depth = 0;
+		for (int i = 0; i < mNodes.length; i++) {
+			for (; depth > mDepths[i]; depth--) {
+				json.endArray();
+				json.endObject();
+			}
+			TreeViewSnapshot.Fields fields = mNodes[i].getFields();
+			json.beginObject();
+			writeFields(json, fields);
+			if (i + 1 < mNodes.length && mDepths[i + 1] > depth) {
+				// Leave the object open until its children are written
+				json.name(fields.childrenArrayName).beginArray();
+				depth++;
+			} else
+				json.endObject();
+		}
+		for (; depth > 0; depth--) {
+			json.endArray();
+			json.endObject();
+		}
+	}
+
+	private static void writeFields(Output json, TreeViewSnapshot.Fields fields) throws IOException {
+		for (int i = 0; i < fields.names.length; i++) {
+			json.name(fields.names[i]);
+			writeValue(json, fields.values[i]);
+		}
+	}
+
+	/**
+	 * Writes a field value. Values of the nodes are usually flat,
+	 * so the nested objects and arrays are written recursively.
+	 */
+	private static void writeValue(Output json, Object value) throws IOException {
+		if (value == null || value == JSONObject.NULL)
+			json.nullValue();
+		else if (value instanceof String)
+			json.value((String) value);
+		else if (value instanceof Boolean)
+			json.value(((Boolean) value).booleanValue());
+		else if (value instanceof Number)
+			json.value((Number) value);
+		else if (value instanceof JSONObject) {
+			JSONObject object = (JSONObject) value;
+			JSONArray names = object.names();
+			json.beginObject();
+			if (names != null)
+				for (int i = 0; i < names.length(); i++) {
+					String name = names.optString(i, "");
+					json.name(name);
+					writeValue(json, object.opt(name));
+				}
+			json.endObject();
+		} else if (value instanceof JSONArray) {
+			JSONArray array = (JSONArray) value;
+			json.beginArray();
+			for (int i = 0; i < array.length(); i++)
+				writeValue(json, array.opt(i));
+			json.endArray();
+		} else
+			json.value(value.toString());
+	}
+
+	/**
+	 * The tokens of the JSON text, in the order of {@link JsonWriter}.
+	 */
+	static abstract class Output {
+
+		abstract Output beginArray() throws IOException;
+
+		abstract Output endArray() throws IOException;
+
+		abstract Output beginObject() throws IOException;
+
+		abstract Output endObject() throws IOException;
+
+		abstract Output name(String name) throws IOException;
+
+		abstract Output value(String value) throws IOException;
+
+		abstract Output value(boolean value) throws IOException;
+
+		abstract Output value(long value) throws IOException;
+
+		abstract Output value(Number value) throws IOException;
+
+		abstract Output nullValue() throws IOException;
+
+		abstract void flush() throws IOException;
+	}
+
+	/**
+	 * Passes the tokens to {@link JsonWriter}.
+	 */
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static final class StreamOutput extends Output {
+
+		private final JsonWriter mJson;
+
+		StreamOutput(Writer writer) {
+			mJson = new JsonWriter(writer);
+		}
+
+		@Override
+		Output beginArray() throws IOException {
+			mJson.beginArray();
+			return this;
+		}
+
+		@Override
+		Output endArray() throws IOException {
+			mJson.endArray();
+			return this;
+		}
+
+		@Override
+		Output beginObject() throws IOException {
+			mJson.beginObject();
+			return this;
+		}
+
+		@Override
+		Output endObject() throws IOException {
+			mJson.endObject();
+			return this;
+		}
+
+		@Override
+		Output name(String name) throws IOException {
+			mJson.name(name);
+			return this;
+		}
+
+		@Override
+		Output value(String value) throws IOException {
+			mJson.value(value);
+			return this;
+		}
+
+		@Override
+		Output value(boolean value) throws IOException {
+			mJson.value(value);
+			return this;
+		}
+
+		@Override
+		Output value(long value) throws IOException {
+			mJson.value(value);
+			return this;
+		}
+
+		@Override
+		Output value(Number value) throws IOException {
+			mJson.value(value);
+			return this;
+		}
+
+		@Override
+		Output nullValue() throws IOException {
+			mJson.nullValue();
+			return this;
+		}
+
+		@Override
+		void flush() throws IOException {
+			mJson.flush();
+		}
+	}
+
+	/**
+	 * Writes the tokens as text quoted by {@link JSONObject}, for the
+	 * versions without {@link JsonWriter}. The tokens are not checked
+	 * against the structure, the snapshot gives them in a valid order.
+	 */
+	static final class TextOutput extends Output {
+
+		private final Writer mWriter;
+		/** True when the next value or name follows another one. */
+		private boolean mComma;
+
+		TextOutput(Writer writer) {
+			mWriter = writer;
+		}
+
+		private Output open(char c) throws IOException {
+			if (mComma)
+				mWriter.write(',');
+			mWriter.write(c);
+			mComma = false;
+			return this;
+		}
+
+		private Output close(char c) throws IOException {
+			mWriter.write(c);
+			mComma = true;
+			return this;
+		}
+
+		private Output literal(String text) throws IOException {
+			if (mComma)
+				mWriter.write(',');
+			mWriter.write(text);
+			mComma = true;
+			return this;
+		}
+
+		@Override
+		Output beginArray() throws IOException {
+			return open('[');
+		}
+
+		@Override
+		Output endArray() throws IOException {
+			return close(']');
+		}
+
+		@Override
+		Output beginObject() throws IOException {
+			return open('{');
+		}
+
+		@Override
+		Output endObject() throws IOException {
+			return close('}');
+		}
+
+		@Override
+		Output name(String name) throws IOException {
+			literal(JSONObject.quote(name));
+			mWriter.write(':');
+			mComma = false;
+			return this;
+		}
+
+		@Override
+		Output value(String value) throws IOException {
+			return literal(JSONObject.quote(value));
+		}
+
+		@Override
+		Output value(boolean value) throws IOException {
+			return literal(value ? "true" : "false");
+		}
+
+		@Override
+		Output value(long value) throws IOException {
+			return literal(Long.toString(value));
+		}
+
+		@Override
+		Output value(Number value) throws IOException {
+			try {
+				return literal(JSONObject.numberToString(value));
+			} catch (JSONException e) {
+				// As JsonWriter does for NaN and infinities
+				throw new IllegalArgumentException(e.getMessage());
+			}
+		}
+
+		@Override
+		Output nullValue() throws IOException {
+			return literal("null");
+		}
+
+		@Override
+		void flush() throws IOException {
+			mWriter.flush();
+		}
+	}
+
+	/**
+	 * Counts the characters passed to the wrapped writer.
+	 */
+	static final class CountingWriter extends FilterWriter {
+
+		private long mCount;
+
+		CountingWriter(Writer out) {
+			super(out);
+		}
+
+		long getCount() {
+			return mCount;
+		}
+
+		@Override
+		public void write(int c) throws IOException {
+			out.write(c);
+			mCount++;
+		}
+
+		@Override
+		public void write(char[] buffer, int offset, int count) throws IOException {
+			out.write(buffer, offset, count);
+			mCount += count;
+		}
+
+		@Override
+		public void write(String str, int offset, int count) throws IOException {
+			out.write(str, offset, count);
+			mCount += count;
+		}
+	}
+
+}
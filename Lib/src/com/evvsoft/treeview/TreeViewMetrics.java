@@ -0,0 +1,75 @@
+/*
+ * Copyright © 2015 The Evvsoft TreeView Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evvsoft.treeview;
+
+/**
+ * Listener that receives timings of the work done by
+ * {@link SimpleJsonTreeViewAdapter} and {@link TreeView}.
+ * <p>
+ * Register it with {@link SimpleJsonTreeViewAdapter#setMetrics(TreeViewMetrics)}
+ * or {@link TreeView#setMetrics(TreeViewMetrics)}. While a listener is
+ * registered the same operations are also wrapped into
+ * {@link android.os.Trace} sections (API 18+), so they can be found in
+ * systrace. When no listener is registered nothing is measured and no
+ * sections are emitted.
+ * <p>
+ * All durations are in nanoseconds. The methods are called on the thread
+ * that did the work, which is usually the UI thread.
+ */
+public interface TreeViewMetrics {
+
+	/**
+	 * Called when the tree has been built from a flat JSON array.
+	 * If the tree was built before the listener was registered, this method
+	 * is called once at registration with the figures of that build.
+	 *
+	 * @param durationNanos time spent building the tree
+	 * @param nodeCount number of nodes attached to the tree
+	 */
+	void onBuild(long durationNanos, int nodeCount);
+
+	/**
+	 * Called after each row view has been provided to the list.
+	 *
+	 * @param position visible position of the row
+	 * @param inflateNanos time spent inflating a new row or preparing
+	 *            the recycled one
+	 * @param bindNanos time spent binding node data to the row
+	 * @param recycled true if the convert view was reused (recycle hit),
+	 *            false if a new view was inflated (recycle miss)
+	 */
+	void onGetView(int position, long inflateNanos, long bindNanos, boolean recycled);
+
+	/**
+	 * Called after a group has been expanded or collapsed and the
+	 * observers of the adapter have been notified.
+	 *
+	 * @param id ID of the group node
+	 * @param expanded the new state of the group
+	 * @param durationNanos time spent changing the state and notifying
+	 */
+	void onExpandedChanged(long id, boolean expanded, long durationNanos);
+
+	/**
+	 * Called after the tree has been serialized.
+	 *
+	 * @param durationNanos time spent serializing
+	 * @param length number of characters written
+	 */
+	void onSerialize(long durationNanos, long length);
+
+}
@@ -16,6 +16,9 @@
 
 package com.evvsoft.treeview;
 
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -29,19 +32,66 @@ public class TreeViewNode extends JSONObject {
 	public static final String DEFAULT_IS_GROUP_NAME  = "is_group";
 	public static final String DEFAULT_EXPANDED_NAME  = "expanded";
 	public static final String DEFAULT_CHILDREN_ARRAY_NAME = "TreeViewChildren";
-	private static final int DEFAULT_NAME_COUNT = 5;
+	public static final String DEFAULT_CHILD_COUNT_NAME = "child_count";
+	private static final int DEFAULT_NAME_COUNT = 6;
 
 	private String mIdFieldName;
 	private String mIdParentName;
 	private String mIsGroupName;
 	private String mExpandedName;
 	private String mChildrenArrayName;
+	private String mChildCountName;
 	private long mIdParent = BAD_ID;
+	private TreeViewNode mParent;
+	/** The array holding this node, the children of the parent or the root level. */
+	private TreeViewNodeArray mArray;
+	/** The index in mArray, valid while the visible offsets of mArray are. */
+	private int mArrayIndex = -1;
+	/** The pre-order number given by the selection of the adapter. */
+	private int mOrdinal = -1;
+	/** The subtree aggregates of the adapter over the descendants. */
+	private double[] mAggregates;
+	/** The fields kept by the node, null to keep all of them. */
+	private TreeViewProjection mProjection;
+	/** The fields dropped by the projection but kept aside, as JSON text. */
+	private String mDroppedJson;
+	/**
+	 * The fields dropped by the projection, parsed on use and cleared by the
+	 * collector under memory pressure, the text stays the only firm copy.
+	 */
+	private SoftReference<JSONObject> mDroppedFields;
+	/** The state few nodes need, null until one does. */
+	private volatile Extras mExtras;
 	private int mLevel = 0;
+	private int mLevelStamp = 0;
+	/** The level stamp of the tree holding the node, null until attached. */
+	private LevelStamp mLevelTree;
 	private Boolean mIsGroup = false;
+	/** The group flag given by the data, the node may be a group without children. */
+	private boolean mGroupFlag = false;
 	private Boolean mExpanded = false;
 	private Boolean mIsLast = false;
 
+	/**
+	 * The state of the node kept aside, since most nodes never need it: the
+	 * declared children and the slots, the eviction to the spill file, the
+	 * snapshot fields and the values of the bound row.
+	 */
+	private static final class Extras {
+		/** The number of the children declared by the data, -1 if not declared. */
+		int childCount = -1;
+		/** The slot among the declared children of the parent, -1 to follow the previous child. */
+		int slot = -1;
+		/** The values bound to the row of the node and their texts. */
+		TreeViewFieldBinding.Values boundValues;
+		/** The segment the children were evicted to, null while they are in memory. */
+		TreeViewSpill.Segment evicted;
+		/** The stamp of the last collapse, the groups collapsed the longest ago are evicted first. */
+		long collapseStamp;
+		/** The fields taken by the last snapshot, null if out of date. */
+		TreeViewSnapshot.Fields snapshotFields;
+	}
+
 	public TreeViewNode(JSONObject obj) throws JSONException {
 		this(obj, null);
 	}
@@ -53,7 +103,18 @@ public class TreeViewNode extends JSONObject {
 	 * @throws JSONException
 	 */
 	public TreeViewNode(JSONObject obj, String[] keyNames) throws JSONException {
+		this(obj, keyNames, null, null);
+	}
+
+	/**
+	 * @param interner the pool of the names and values shared with the
+	 *            other nodes of the build, can be null
+	 * @param projection the fields to keep, null to keep all the fields
+	 */
+	TreeViewNode(JSONObject obj, String[] keyNames, TreeViewInterner interner,
+			TreeViewProjection projection) throws JSONException {
 		super();
+		mProjection = projection;
 
 		int size = keyNames == null ? 0 : keyNames.length;
 		for (int i=0; i<DEFAULT_NAME_COUNT; i++) {
@@ -74,9 +135,13 @@ public class TreeViewNode extends JSONObject {
 			case 4:
 				mChildrenArrayName = key == null ? DEFAULT_CHILDREN_ARRAY_NAME : key;
 				break;
+			case 5:
+				mChildCountName = key == null ? DEFAULT_CHILD_COUNT_NAME : key;
+				break;
 			}
 		}
 
+		JSONObject dropped = null;
 		JSONArray names = obj.names();
 		for (int i=0; i < names.length(); i++) {
 			String name = names.optString(i, "");
@@ -85,16 +150,165 @@ public class TreeViewNode extends JSONObject {
 						"is bad name for children array.");
 			if (name.isEmpty() || name.equals(mIdParentName))
 				continue;
+			if (isDropped(name)) {
+				if (projection.keepsDropped()) {
+					if (dropped == null)
+						dropped = new JSONObject();
+					dropped.put(name, obj.opt(name));
+				}
+				continue;
+			}
 			if (name.equals(mIsGroupName)) {
-				mIsGroup = obj.optInt(mIsGroupName, 0) != 0;
+				mGroupFlag = obj.optInt(mIsGroupName, 0) != 0;
+				mIsGroup = mGroupFlag || getDeclaredChildCount() > 0;
 				continue;
 			}
 			if (name.equals(mExpandedName)) {
 				mExpanded = obj.optInt(mExpandedName, 0) != 0;
 				continue;
 			}
-			put(name, obj.opt(name));
+			if (name.equals(mChildCountName)) {
+				// The count stays a field of the node as well
+				setDeclaredChildCount(obj.optInt(mChildCountName, -1));
+				mIsGroup = mGroupFlag || getDeclaredChildCount() > 0;
+			}
+			if (interner == null)
+				put(name, obj.opt(name));
+			else
+				put(interner.intern(name), interner.intern(obj.opt(name)));
+		}
+		mDroppedJson = dropped == null ? null : dropped.toString();
+	}
+
+	/**
+	 * Returns true if the field is not kept by the projection of the node.
+	 * The ID, group, expanded and child count fields are always kept.
+	 */
+	private boolean isDropped(String name) {
+		return mProjection != null && !mProjection.keeps(name) &&
+				!name.equals(mIdFieldName) && !name.equals(mIsGroupName) &&
+				!name.equals(mExpandedName) && !name.equals(mChildCountName);
+	}
+
+	/**
+	 * Returns the value of the field, looking into the fields dropped by
+	 * the projection but kept aside if the node has no such field. The
+	 * fields kept by the projection are never looked for there.
+	 */
+	@Override
+	public Object opt(String name) {
+		Object value = super.opt(name);
+		if (value == null && mDroppedJson != null && name != null && isDropped(name)) {
+			JSONObject dropped = getDroppedFields();
+			if (dropped != null)
+				value = dropped.opt(name);
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the fields dropped by the projection but kept aside, null if none.
+	 */
+	JSONObject getDroppedFields() {
+		if (mDroppedJson == null)
+			return null;
+		JSONObject dropped = mDroppedFields == null ? null : mDroppedFields.get();
+		if (dropped == null)
+			try {
+				dropped = new JSONObject(mDroppedJson);
+				mDroppedFields = new SoftReference<JSONObject>(dropped);
+			} catch (JSONException e) {
+				e.printStackTrace();
+				mDroppedJson = null;
+			}
+		return dropped;
+	}
+
+	/**
+	 * Checks whether the fields of the node and its group flag are equal to
+	 * those of the object the node would be created from.
+	 */
+	boolean hasSameFields(JSONObject obj) {
+		if (mGroupFlag != (obj.optInt(mIsGroupName, 0) != 0))
+			return false;
+		int count = 0;
+		int droppedCount = 0;
+		JSONObject dropped = getDroppedFields();
+		JSONArray names = obj.names();
+		if (names != null)
+			for (int i=0; i < names.length(); i++) {
+				String name = names.optString(i, "");
+				if (name.isEmpty() || name.equals(mIdParentName) ||
+						name.equals(mIsGroupName) || name.equals(mExpandedName))
+					continue;
+				Object value;
+				if (isDropped(name)) {
+					if (!mProjection.keepsDropped())
+						continue;
+					value = dropped == null ? null : dropped.opt(name);
+					droppedCount++;
+				} else {
+					value = super.opt(name);
+					count++;
+				}
+				if (value == null || !value.equals(obj.opt(name)))
+					return false;
+			}
+		return count == length() - (has(mChildrenArrayName) ? 1 : 0) &&
+				droppedCount == (dropped == null ? 0 : dropped.length());
+	}
+
+	/**
+	 * Replaces the fields of the node by those of the object. The expanded
+	 * state and the children of the node are kept.
+	 * @throws JSONException
+	 */
+	void updateFields(JSONObject obj) throws JSONException {
+		JSONArray names = names();
+		if (names != null)
+			for (int i=0; i < names.length(); i++) {
+				String name = names.optString(i, "");
+				if (!name.equals(mChildrenArrayName) && !obj.has(name))
+					remove(name);
+			}
+		JSONObject dropped = null;
+		names = obj.names();
+		if (names != null)
+			for (int i=0; i < names.length(); i++) {
+				String name = names.optString(i, "");
+				if (name.equals(mChildrenArrayName))
+					throw new JSONException(mChildrenArrayName +
+							"is bad name for children array.");
+				if (name.isEmpty() || name.equals(mIdParentName) ||
+						name.equals(mIsGroupName) || name.equals(mExpandedName))
+					continue;
+				if (isDropped(name)) {
+					if (mProjection.keepsDropped()) {
+						if (dropped == null)
+							dropped = new JSONObject();
+						dropped.put(name, obj.opt(name));
+					}
+					continue;
+				}
+				put(name, obj.opt(name));
+			}
+		mDroppedJson = dropped == null ? null : dropped.toString();
+		mDroppedFields = null;
+		Extras extras = mExtras;
+		if (extras != null)
+			extras.snapshotFields = null;
+		mGroupFlag = obj.optInt(mIsGroupName, 0) != 0;
+		int childCount = obj.optInt(mChildCountName, -1);
+		if (childCount != getDeclaredChildCount()) {
+			setDeclaredChildCount(childCount);
+			TreeViewNodeArray children = getChildren();
+			if (children != null)
+				// The placeholder rows of the children have changed
+				children.invalidateVisibleOffsets();
 		}
+		mIsGroup = mGroupFlag || childCount > 0 || hasChildren() || getEvicted() != null;
+		invalidateArrays();
+		invalidateBoundValues();
 	}
 
 	public long getId() {
@@ -102,15 +316,10 @@ public class TreeViewNode extends JSONObject {
 	}
 
 	public TreeViewNode getNodeById(long id) {
-		try {
-			if (getLong(mIdFieldName) == id)
-				return this;
-			if (has(mChildrenArrayName))
-				return ((TreeViewNodeArray) getJSONArray(mChildrenArrayName)).getNodeById(id);
-		} catch (JSONException e) {
-			e.printStackTrace();
-		}
-		return null;
+		if (getId() == id)
+			return this;
+		TreeViewNodeArray children = getChildren();
+		return children == null ? null : children.getNodeById(id);
 	}
 
 	public TreeViewNode getNode(int position) {
@@ -132,6 +341,34 @@ public class TreeViewNode extends JSONObject {
 		return null;
 	}
 
+	/**
+	 * Returns the node this node is a child of.
+	 * @return the parent node or null for the node of the root level
+	 */
+	public TreeViewNode getParent() {
+		return mParent;
+	}
+
+	long getIdParent() {
+		return mIdParent;
+	}
+
+	String getIdParentName() {
+		return mIdParentName;
+	}
+
+	String getIsGroupName() {
+		return mIsGroupName;
+	}
+
+	String getExpandedName() {
+		return mExpandedName;
+	}
+
+	String getChildrenArrayName() {
+		return mChildrenArrayName;
+	}
+
 	/**
 	 * Add child node to this node
 	 * @param treeViewNode - added child node
@@ -144,33 +381,238 @@ public class TreeViewNode extends JSONObject {
 			put(mChildrenArrayName, children);
 		}
 		treeViewNode.mIdParent = optLong(mIdFieldName, BAD_ID);
-		treeViewNode.setLevel(mLevel + 1);
+		attach(treeViewNode, this, children);
 		treeViewNode.mIsLast = true;
 		if (children.length() > 0)
 			((TreeViewNode) children.getJSONObject(children.length()-1)).mIsLast = false;
 		mIsGroup = true;
 		children.put(treeViewNode);
+		children.invalidateSnapshot();
+		invalidateArrays();
 	}
 
-	public int getLevel() {
-		return mLevel;
+	/**
+	 * Replaces the children of this node, the nodes may come from
+	 * anywhere in the tree.
+	 * @param children new children, null or empty to make the node a leaf
+	 * (unless it is a group by the data)
+	 * @throws JSONException
+	 */
+	void setChildren(TreeViewNodeArray children) throws JSONException {
+		Extras extras = mExtras;
+		if (extras != null)
+			extras.evicted = null;
+		if (children == null || children.length() == 0) {
+			remove(mChildrenArrayName);
+			mIsGroup = mGroupFlag || getDeclaredChildCount() > 0;
+			invalidateArrays();
+			return;
+		}
+		long id = getId();
+		for (int i=0; i<children.length(); i++) {
+			TreeViewNode node = (TreeViewNode) children.get(i);
+			node.mIdParent = id;
+			node.mIsLast = i == children.length() - 1;
+			attach(node, this, children);
+		}
+		put(mChildrenArrayName, children);
+		mIsGroup = true;
+		children.invalidateSnapshot();
+		invalidateArrays();
 	}
 
-	private void setLevel(int level) {
-		mLevel = level;
-		TreeViewNodeArray children = getChildren();
-		if (children != null)
-			for (int i=0; i<children.length(); i++) {
-				try {
-					TreeViewNode node = (TreeViewNode) children.getJSONObject(i);
-					node.setLevel(mLevel + 1);
-				} catch (JSONException e) {
-					e.printStackTrace();
-				}
+	/**
+	 * Replaces the children of this group by the segment of the spill file
+	 * they were evicted to. The node stays a group and keeps the count of
+	 * its descendants.
+	 */
+	void setEvicted(TreeViewSpill.Segment segment) {
+		remove(mChildrenArrayName);
+		extras().evicted = segment;
+		mIsGroup = true;
+		invalidateArrays();
+	}
+
+	/**
+	 * Returns the segment the children of this group were evicted to.
+	 * @return the segment or null if the children are in memory
+	 */
+	TreeViewSpill.Segment getEvicted() {
+		Extras extras = mExtras;
+		return extras == null ? null : extras.evicted;
+	}
+
+	/**
+	 * Returns the number of the children the data declares for this group
+	 * by the child count field, the placeholder rows of those not loaded yet
+	 * are shown when the group is expanded.
+	 * @return the count or -1 if the data declares none
+	 */
+	public int getDeclaredChildCount() {
+		Extras extras = mExtras;
+		return extras == null ? -1 : extras.childCount;
+	}
+
+	private void setDeclaredChildCount(int count) {
+		if (count != -1 || mExtras != null)
+			extras().childCount = count;
+	}
+
+	int getSlot() {
+		Extras extras = mExtras;
+		return extras == null ? -1 : extras.slot;
+	}
+
+	void setSlot(int slot) {
+		if (slot != -1 || mExtras != null)
+			extras().slot = slot;
+	}
+
+	long getCollapseStamp() {
+		Extras extras = mExtras;
+		return extras == null ? 0 : extras.collapseStamp;
+	}
+
+	void setCollapseStamp(long stamp) {
+		extras().collapseStamp = stamp;
+	}
+
+	/**
+	 * Returns the state kept aside, made on first use. The snapshots make
+	 * it on their thread, so it is made under the lock of the node.
+	 */
+	private Extras extras() {
+		Extras extras = mExtras;
+		if (extras == null)
+			synchronized (this) {
+				if (mExtras == null)
+					mExtras = new Extras();
+				extras = mExtras;
 			}
+		return extras;
+	}
+
+	/**
+	 * Sets the parent ID and the last flag of a node read back from the
+	 * spill file, before it is attached to its group.
+	 */
+	void setPlace(long idParent, boolean last) {
+		mIdParent = idParent;
+		mIsLast = last;
+	}
+
+	/**
+	 * Makes the nodes the nodes of the root level.
+	 */
+	static void setRootLevel(TreeViewNodeArray nodes) throws JSONException {
+		for (int i=0; i<nodes.length(); i++) {
+			TreeViewNode node = (TreeViewNode) nodes.get(i);
+			node.mIdParent = BAD_ID;
+			node.mIsLast = false;
+			attach(node, null, nodes);
+		}
+	}
+
+	/**
+	 * Adds the node to the end of the root level.
+	 */
+	static void appendRoot(TreeViewNodeArray nodes, TreeViewNode node) {
+		node.mIdParent = BAD_ID;
+		node.mIsLast = false;
+		attach(node, null, nodes);
+		nodes.put(node);
+		nodes.invalidateVisibleOffsets();
+		nodes.invalidateSnapshot();
+	}
+
+	/**
+	 * Detaches the node from its parent before it is attached again,
+	 * possibly to another parent.
+	 */
+	void detach() {
+		mParent = null;
+		mArray = null;
+		// Recompute the level on attach even if the node goes to the root level
+		if (mLevelTree != null)
+			mLevelStamp = mLevelTree.value - 1;
+	}
+
+	private static void attach(TreeViewNode node, TreeViewNode parent, TreeViewNodeArray array) {
+		node.mArray = array;
+		array.setOwner(parent);
+		LevelStamp tree = parent == null ? array.getLevelTree() : parent.getLevelTree();
+		if (node.mLevelTree != tree)
+			// The subtree comes from another tree or from none
+			joinLevelTree(node, tree);
+		else if (node.mParent == parent && node.mLevelStamp == tree.value)
+			return;
+		else if (node.hasChildren())
+			// Levels of the whole subtree change, recompute them on demand
+			tree.value++;
+		node.mParent = parent;
+		node.mLevel = parent == null ? 0 : parent.getLevel() + 1;
+		node.mLevelStamp = tree.value;
+	}
+
+	/**
+	 * Returns the level stamp of the tree holding this node, a node never
+	 * attached starts a tree of its own.
+	 */
+	private LevelStamp getLevelTree() {
+		if (mLevelTree == null)
+			mLevelTree = new LevelStamp();
+		return mLevelTree;
+	}
+
+	/**
+	 * Moves the subtree to the level stamp of another tree. The levels
+	 * below the top are recomputed on demand.
+	 */
+	private static void joinLevelTree(TreeViewNode top, LevelStamp tree) {
+		ArrayList<TreeViewNode> stack = new ArrayList<TreeViewNode>();
+		stack.add(top);
+		while (!stack.isEmpty()) {
+			TreeViewNode node = stack.remove(stack.size() - 1);
+			node.mLevelTree = tree;
+			node.mLevelStamp = tree.value - 1;
+			TreeViewNodeArray children = node.getChildren();
+			if (children != null)
+				for (int i=0; i<children.length(); i++)
+					stack.add((TreeViewNode) children.opt(i));
+		}
+	}
+
+	public int getLevel() {
+		if (mLevelTree == null)
+			// Never attached
+			return 0;
+		final int stamp = mLevelTree.value;
+		if (mLevelStamp == stamp)
+			return mLevel;
+		// Walk up to the nearest node with a valid level or to the root level
+		int steps = 0;
+		TreeViewNode top = this;
+		while (top.mLevelStamp != stamp && top.mParent != null) {
+			top = top.mParent;
+			steps++;
+		}
+		if (top.mLevelStamp != stamp) {
+			top.mLevel = 0;
+			top.mLevelStamp = stamp;
+		}
+		// and cache the levels of the whole chain on the way back
+		int level = top.mLevel + steps;
+		for (TreeViewNode node = this; node != top; node = node.mParent) {
+			node.mLevel = level--;
+			node.mLevelStamp = stamp;
+		}
+		return mLevel;
 	}
 
 	public int getIndirectChildrenCount() {
+		TreeViewSpill.Segment evicted = getEvicted();
+		if (evicted != null)
+			return evicted.count;
 		int result = 0;
 		TreeViewNodeArray children = getChildren();
 		if (children != null)
@@ -184,10 +626,191 @@ public class TreeViewNode extends JSONObject {
 			TreeViewNodeArray children = getChildren();
 			if (children != null)
 				result += children.getVisibleCount();
+			else if (getDeclaredChildCount() > 0)
+				// The placeholder rows of the declared children
+				result += getDeclaredChildCount();
 		}
 		return result;
 	}
 
+	TreeViewNodeArray getArray() {
+		return mArray;
+	}
+
+	int getArrayIndex() {
+		return mArrayIndex;
+	}
+
+	void setArrayIndex(int index) {
+		mArrayIndex = index;
+	}
+
+	double[] getAggregates() {
+		return mAggregates;
+	}
+
+	void setAggregates(double[] aggregates) {
+		mAggregates = aggregates;
+		invalidateBoundValues();
+	}
+
+	TreeViewFieldBinding.Values getBoundValues() {
+		Extras extras = mExtras;
+		return extras == null ? null : extras.boundValues;
+	}
+
+	void setBoundValues(TreeViewFieldBinding.Values values) {
+		if (values != null || mExtras != null)
+			extras().boundValues = values;
+	}
+
+	@Override
+	public JSONObject put(String name, boolean value) throws JSONException {
+		super.put(name, value);
+		onFieldChanged(name);
+		return this;
+	}
+
+	@Override
+	public JSONObject put(String name, double value) throws JSONException {
+		super.put(name, value);
+		onFieldChanged(name);
+		return this;
+	}
+
+	@Override
+	public JSONObject put(String name, int value) throws JSONException {
+		super.put(name, value);
+		onFieldChanged(name);
+		return this;
+	}
+
+	@Override
+	public JSONObject put(String name, long value) throws JSONException {
+		super.put(name, value);
+		onFieldChanged(name);
+		return this;
+	}
+
+	@Override
+	public JSONObject put(String name, Object value) throws JSONException {
+		super.put(name, value);
+		onFieldChanged(name);
+		return this;
+	}
+
+	@Override
+	public JSONObject putOpt(String name, Object value) throws JSONException {
+		super.putOpt(name, value);
+		onFieldChanged(name);
+		return this;
+	}
+
+	@Override
+	public JSONObject accumulate(String name, Object value) throws JSONException {
+		super.accumulate(name, value);
+		onFieldChanged(name);
+		return this;
+	}
+
+	@Override
+	public Object remove(String name) {
+		Object result = super.remove(name);
+		if (result != null)
+			onFieldChanged(name);
+		return result;
+	}
+
+	/**
+	 * A field may have been changed by the application, the cached texts
+	 * of the row and the fields of the snapshots are out of date. The
+	 * children array is not a field.
+	 */
+	private void onFieldChanged(String name) {
+		if (name == null || name.equals(mChildrenArrayName))
+			return;
+		invalidateBoundValues();
+		Extras extras = mExtras;
+		if (extras == null || extras.snapshotFields == null)
+			return;
+		extras.snapshotFields = null;
+		for (TreeViewNode node = this; node != null; node = node.mParent)
+			if (node.mArray != null)
+				node.mArray.invalidateSnapshot();
+	}
+
+	/**
+	 * The fields of the node have changed, the texts of its row are out of date.
+	 */
+	void invalidateBoundValues() {
+		TreeViewFieldBinding.Values values = getBoundValues();
+		if (values != null)
+			values.valid = false;
+	}
+
+	int getOrdinal() {
+		return mOrdinal;
+	}
+
+	void setOrdinal(int ordinal) {
+		mOrdinal = ordinal;
+	}
+
+	/**
+	 * The visible rows or the state of this node have changed, and so have
+	 * the offsets and the snapshots of the arrays holding the node and its
+	 * ancestors.
+	 */
+	private void invalidateArrays() {
+		for (TreeViewNode node = this; node != null; node = node.mParent)
+			if (node.mArray != null) {
+				node.mArray.invalidateVisibleOffsets();
+				node.mArray.invalidateSnapshot();
+			}
+	}
+
+	/**
+	 * Returns the data fields of the node for a snapshot, the same object
+	 * until the fields change.
+	 */
+	TreeViewSnapshot.Fields getSnapshotFields() {
+		Extras extras = extras();
+		if (extras.snapshotFields != null)
+			return extras.snapshotFields;
+		JSONArray names = names();
+		JSONObject dropped = getDroppedFields();
+		JSONArray droppedNames = dropped == null ? null : dropped.names();
+		int count = (names == null ? 0 : names.length()) +
+				(droppedNames == null ? 0 : droppedNames.length());
+		String[] fieldNames = new String[count];
+		Object[] values = new Object[count];
+		int n = 0;
+		if (names != null)
+			for (int i=0; i < names.length(); i++) {
+				String name = names.optString(i, "");
+				if (name.equals(mChildrenArrayName))
+					continue;
+				fieldNames[n] = name;
+				values[n++] = super.opt(name);
+			}
+		if (droppedNames != null)
+			for (int i=0; i < droppedNames.length(); i++) {
+				String name = droppedNames.optString(i, "");
+				fieldNames[n] = name;
+				values[n++] = dropped.opt(name);
+			}
+		if (n < count) {
+			String[] trimmedNames = new String[n];
+			Object[] trimmedValues = new Object[n];
+			System.arraycopy(fieldNames, 0, trimmedNames, 0, n);
+			System.arraycopy(values, 0, trimmedValues, 0, n);
+			fieldNames = trimmedNames;
+			values = trimmedValues;
+		}
+		extras.snapshotFields = new TreeViewSnapshot.Fields(fieldNames, values, this);
+		return extras.snapshotFields;
+	}
+
 	public TreeViewNode getVisibleNode(int position) {
 		if (position < 0)
 			return null;
@@ -230,13 +853,28 @@ public class TreeViewNode extends JSONObject {
 	boolean setExpanded(boolean expanded) {
 		if (isGroupNode() && expanded != mExpanded) {
 			mExpanded = expanded;
+			invalidateArrays();
 			return true;
 		}
 		return false;
 	}
 
 	/**
-	 * Overrided method called from super.toString()
+	 * Shows only the first children of this group while it is expanded in
+	 * steps.
+	 * @param count the number of the children shown, -1 for all of them
+	 */
+	void setShownChildren(int count) {
+		TreeViewNodeArray children = getChildren();
+		if (children != null && children.getVisibleLimit() != count) {
+			children.setVisibleLimit(count);
+			invalidateArrays();
+		}
+	}
+
+	/**
+	 * Writes this node followed by all its descendants
+	 * as the flat list of objects.
 	 */
     void writeTo(JSONStringer stringer) throws JSONException {
         stringer.object();
@@ -248,15 +886,66 @@ public class TreeViewNode extends JSONObject {
 			children.writeBody(stringer);
     }
 
-    void writeBody(JSONStringer stringer) throws JSONException {
+    /**
+     * Writes the node with its children nested into the children array
+     * without recursion, see {@link TreeViewNodeArray#toString()}.
+     */
+    @Override
+    public String toString() {
+    	try {
+    		JSONStringer stringer = new JSONStringer();
+    		stringer.object();
+    		writeFields(stringer);
+    		TreeViewNodeArray children = getChildren();
+    		if (children != null) {
+    			stringer.key(mChildrenArrayName);
+    			TreeViewNodeArray.writeNested(stringer, children);
+    		}
+    		stringer.endObject();
+    		return stringer.toString();
+    	} catch (JSONException e) {
+    		return null;
+    	}
+    }
+
+    void writeFields(JSONStringer stringer) throws JSONException {
 		JSONArray names = names();
-		if (names != null) {
+		if (names != null)
 			for (int i=0; i < names.length(); i++) {
 				String name = names.optString(i, "");
 				if (name.equals(mChildrenArrayName))
 					continue;
 				stringer.key(name).value(opt(name));
 			}
+		JSONObject dropped = getDroppedFields();
+		if (dropped != null) {
+			names = dropped.names();
+			if (names != null)
+				for (int i=0; i < names.length(); i++) {
+					String name = names.optString(i, "");
+					stringer.key(name).value(dropped.opt(name));
+				}
+		}
+    }
+
+    /**
+     * Writes the node to the spill file: the fields, the parent ID, the
+     * group flag given by the data and the expanded state.
+     */
+    void writeEvicted(JSONStringer stringer) throws JSONException {
+		writeFields(stringer);
+		if (mIdParent != BAD_ID)
+			stringer.key(mIdParentName).value(mIdParent);
+		if (mGroupFlag)
+			stringer.key(mIsGroupName).value(1);
+		if (mExpanded)
+			stringer.key(mExpandedName).value(1);
+    }
+
+    void writeBody(JSONStringer stringer) throws JSONException {
+		JSONArray names = names();
+		if (names != null) {
+			writeFields(stringer);
 			if (mIdParent != BAD_ID)
 				stringer.key(mIdParentName).value(mIdParent);
 			if (mIsGroup)
@@ -266,4 +955,14 @@ public class TreeViewNode extends JSONObject {
 		}
     }
 
+	/**
+	 * The level stamp of one tree. Levels are cached per node and are valid
+	 * while the node's stamp equals the stamp of its tree. Moving a node
+	 * that has children increments it, so the levels of the moved subtree
+	 * are recomputed lazily on the next getLevel().
+	 */
+	static final class LevelStamp {
+		int value;
+	}
+
 }
@@ -16,83 +16,588 @@
 
 package com.evvsoft.treeview;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONStringer;
 
 public class TreeViewNodeArray extends JSONArray {
 
+	private static final int INITIAL_DEPTH = 16;
+
+	/**
+	 * The visible rows before each node followed by the visible rows in
+	 * total, null when out of date. Valid offsets of an array imply valid
+	 * offsets of the children of its expanded nodes.
+	 */
+	private int[] mVisibleOffsets;
+
+	/**
+	 * The nodes of the last snapshot, null when out of date. Valid nodes of
+	 * an array imply valid nodes of the children arrays of its nodes.
+	 */
+	private TreeViewSnapshot.Node[] mSnapshotNodes;
+
+	/** The node these are the children of, null for the root level. */
+	private TreeViewNode mOwner;
+
+	/**
+	 * The slots of the nodes among the children the owner declares, valid
+	 * with the visible offsets, null unless the owner declares its count.
+	 */
+	private int[] mSlots;
+
+	/** The number of the slots, those of the placeholder rows included. */
+	private int mSlotCount;
+
+	/**
+	 * The number of the first nodes shown while the owner is expanded in
+	 * steps, the others take no rows, -1 to show all the nodes.
+	 */
+	private int mVisibleLimit = -1;
+
+	/** The level stamp of the tree, kept by the root level only. */
+	private TreeViewNode.LevelStamp mLevelTree;
+
 	public TreeViewNode getNodeById(long id) {
-		for (int i=0; i<length(); i++)
-			try {
-				TreeViewNode node = ((TreeViewNode) get(i)).getNodeById(id);
-				if (node != null)
-					return node;
-			} catch (JSONException e) {
-				e.printStackTrace();
-			}
+		TreeViewNodeIterator it = new TreeViewNodeIterator(this, false);
+		for (TreeViewNode node = it.next(); node != null; node = it.next())
+			if (node.getId() == id)
+				return node;
 		return null;
 	}
 
 	public TreeViewNode getNode(int position) {
-		for (int i=0; i<length(); i++) {
-			TreeViewNode node;
-			try {
-				node = (TreeViewNode) getJSONObject(i);
-			} catch (JSONException e) {
-				e.printStackTrace();
-				continue;
-			}
-			if (position == 0)
+		if (position < 0)
+			return null;
+		TreeViewNodeIterator it = new TreeViewNodeIterator(this, false);
+		for (TreeViewNode node = it.next(); node != null; node = it.next())
+			if (position-- == 0)
 				return node;
-			position--;
-			int childCount = node.getIndirectChildrenCount();
-			if (childCount > position)
-				return node.getNode(position);
-			position -= childCount;
-		}
 		return null;
 	}
 	
+	/**
+	 * Returns the number of the nodes and their descendants, those evicted
+	 * to the spill file included.
+	 */
 	public int getIndirectChildrenCount() {
 		int result = 0;
-		for (int i=0; i<length(); i++)
-			try {
-				result++;
-				TreeViewNode node = (TreeViewNode) getJSONObject(i);
-				result += node.getIndirectChildrenCount();
-			} catch (JSONException e) {
-				e.printStackTrace();
-			}
+		TreeViewNodeIterator it = new TreeViewNodeIterator(this, false);
+		for (TreeViewNode node = it.next(); node != null; node = it.next()) {
+			result++;
+			TreeViewSpill.Segment evicted = node.getEvicted();
+			if (evicted != null)
+				result += evicted.count;
+		}
 		return result;
 	}
 
-	public int getVisibleCount() {
+	/**
+	 * Returns the number of the nodes and their descendants in memory.
+	 */
+	int getLoadedCount() {
 		int result = 0;
-		for (int i=0; i<length(); i++)
-			try {
-				TreeViewNode node = (TreeViewNode) getJSONObject(i);
-				result += node.getVisibleCount();
-			} catch (JSONException e) {
-				e.printStackTrace();
-			}
+		TreeViewNodeIterator it = new TreeViewNodeIterator(this, false);
+		while (it.next() != null)
+			result++;
 		return result;
 	}
 
+	public int getVisibleCount() {
+		return getVisibleOffsets()[length()];
+	}
+
+	/**
+	 * Returns the node at the visible position, found by a binary search
+	 * of the visible offsets on each level.
+	 */
 	public TreeViewNode getVisibleNode(int position) {
-		for (int i=0; i<length(); i++)
-			try {
-				TreeViewNode node = (TreeViewNode) getJSONObject(i);
-				int visCount = node.getVisibleCount();
-				if (visCount > position)
-					return node.getVisibleNode(position);
-				position -= visCount;
-			} catch (JSONException e) {
-				e.printStackTrace();
-			}
+		TreeViewNodeArray array = this;
+		while (array != null) {
+			int index = array.getVisibleIndex(position);
+			if (index < 0)
+				return null;
+			TreeViewNode node = (TreeViewNode) array.opt(index);
+			position -= array.mVisibleOffsets[index];
+			if (position == 0)
+				return node;
+			// A placeholder row after a collapsed node
+			if (node == null || !node.isExpanded())
+				return null;
+			position--;
+			array = node.getChildren();
+		}
 		return null;
 	}
 
+	/**
+	 * Returns the group whose placeholder row is at the visible position,
+	 * the row of a child the group declares but has not loaded yet.
+	 *
+	 * @param slot receives the slot of the row and the number of the slots
+	 *            of the group
+	 * @return the group or null if there is a node or no row at the position
+	 */
+	TreeViewNode getVisiblePlaceholder(int position, int[] slot) {
+		TreeViewNodeArray array = this;
+		TreeViewNode group = mOwner;
+		while (true) {
+			int[] offsets = array.getVisibleOffsets();
+			int count = array.length();
+			if (position < 0 || position >= offsets[count])
+				return null;
+			int index = array.getVisibleIndex(position);
+			if (index < 0) {
+				// Before the first node
+				slot[0] = position;
+				slot[1] = array.mSlotCount;
+				return group;
+			}
+			TreeViewNode node = (TreeViewNode) array.opt(index);
+			position -= offsets[index];
+			if (position == 0 || node == null)
+				return null;
+			int rows = node.getVisibleCount();
+			if (position >= rows) {
+				// After the rows of the node
+				slot[0] = array.getSlot(index) + position - rows + 1;
+				slot[1] = array.mSlotCount;
+				return group;
+			}
+			position--;
+			TreeViewNodeArray children = node.getChildren();
+			if (children == null) {
+				slot[0] = position;
+				slot[1] = node.getDeclaredChildCount();
+				return node;
+			}
+			array = children;
+			group = node;
+		}
+	}
+
+	/**
+	 * Returns the slot of the node at the index among the children the
+	 * owner declares, the index itself if the owner declares no count.
+	 */
+	int getSlot(int index) {
+		getVisibleOffsets();
+		return mSlots == null ? index : mSlots[index];
+	}
+
+	/**
+	 * Checks whether no placeholder rows follow the node in this array.
+	 */
+	boolean isLastSlot(TreeViewNode node) {
+		getVisibleOffsets();
+		if (mSlots == null)
+			return true;
+		int index = indexOf(node);
+		return index < 0 || mSlots[index] >= mSlotCount - 1;
+	}
+
+	int getVisibleLimit() {
+		return mVisibleLimit;
+	}
+
+	void setVisibleLimit(int limit) {
+		mVisibleLimit = limit;
+		mVisibleOffsets = null;
+	}
+
+	/**
+	 * Returns the level stamp of the tree this array is the root level of.
+	 */
+	TreeViewNode.LevelStamp getLevelTree() {
+		if (mLevelTree == null)
+			mLevelTree = new TreeViewNode.LevelStamp();
+		return mLevelTree;
+	}
+
+	/**
+	 * Makes this array the root level of the same tree as the given one,
+	 * so the nodes moved between them keep their cached levels.
+	 */
+	void shareLevelTree(TreeViewNodeArray root) {
+		mLevelTree = root.getLevelTree();
+	}
+
+	void setOwner(TreeViewNode owner) {
+		if (mOwner != owner) {
+			mOwner = owner;
+			mVisibleOffsets = null;
+		}
+	}
+
+	/**
+	 * Returns the index of the node of this array whose visible rows, its
+	 * own and those of its descendants, hold the position.
+	 * @return the index or -1 if the position is out of the rows
+	 */
+	int getVisibleIndex(int position) {
+		int[] offsets = getVisibleOffsets();
+		if (position < 0 || position >= offsets[length()])
+			return -1;
+		// The last node starting at or before the position
+		int low = 0;
+		int high = length() - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (offsets[middle] <= position)
+				low = middle;
+			else
+				high = middle - 1;
+		}
+		// Placeholder rows may come before the first node
+		return offsets[low] <= position ? low : -1;
+	}
+
+	/**
+	 * Returns the visible position of the node in the tree of this array,
+	 * adding up the offsets of the node and its ancestors up to this array,
+	 * which may be the children of any node.
+	 * @return the position or -1 if the node is in a collapsed group or
+	 *         is not in the tree
+	 */
+	int getVisiblePosition(TreeViewNode node) {
+		getVisibleOffsets();
+		int position = 0;
+		for (TreeViewNode current = node; current != null; ) {
+			TreeViewNodeArray array = current.getArray();
+			TreeViewNode parent = current.getParent();
+			if (array == null)
+				return -1;
+			if (array != this && (parent == null ||
+					!parent.isExpanded() || parent.getChildren() != array))
+				return -1;
+			int[] offsets = array.getVisibleOffsets();
+			int index = array.indexOf(current);
+			if (index < 0 || array.mVisibleLimit >= 0 && index >= array.mVisibleLimit)
+				return -1;
+			position += offsets[index];
+			if (array == this)
+				return position;
+			position++;
+			current = parent;
+		}
+		return -1;
+	}
+
+	private int indexOf(TreeViewNode node) {
+		int index = node.getArrayIndex();
+		if (index >= 0 && index < length() && opt(index) == node)
+			return index;
+		for (int i = 0; i < length(); i++)
+			if (opt(i) == node) {
+				node.setArrayIndex(i);
+				return i;
+			}
+		return -1;
+	}
+
+	void invalidateVisibleOffsets() {
+		mVisibleOffsets = null;
+	}
+
+	boolean hasVisibleOffsets() {
+		return mVisibleOffsets != null && mVisibleOffsets.length == length() + 1;
+	}
+
+	/**
+	 * Returns the visible rows before each node followed by the visible
+	 * rows in total. The offsets out of date are computed children first,
+	 * with an explicit stack instead of recursion.
+	 */
+	int[] getVisibleOffsets() {
+		if (!hasVisibleOffsets())
+			updateVisibleOffsets(Long.MAX_VALUE);
+		return mVisibleOffsets;
+	}
+
+	/**
+	 * Computes the offsets out of date, see {@link #getVisibleOffsets()},
+	 * until the deadline. The arrays computed by then keep their offsets,
+	 * so the next call goes on where this one stopped.
+	 *
+	 * @param deadline the {@link System#nanoTime()} to stop at,
+	 *            Long.MAX_VALUE for none
+	 * @return true if the offsets of this array are valid
+	 */
+	boolean updateVisibleOffsets(long deadline) {
+		if (hasVisibleOffsets())
+			return true;
+		TreeViewNodeArray[] arrays = new TreeViewNodeArray[INITIAL_DEPTH];
+		int[] indices = new int[INITIAL_DEPTH];
+		arrays[0] = this;
+		int depth = 1;
+		while (depth > 0) {
+			int top = depth - 1;
+			TreeViewNodeArray array = arrays[top];
+			int i = indices[top];
+			TreeViewNodeArray pending = null;
+			int limit = array.mVisibleLimit < 0 ? array.length() : array.mVisibleLimit;
+			for (; i < limit && pending == null; i++) {
+				TreeViewNode node = (TreeViewNode) array.opt(i);
+				if (node != null && node.isExpanded()) {
+					TreeViewNodeArray children = node.getChildren();
+					if (children != null && !children.hasVisibleOffsets())
+						pending = children;
+				}
+			}
+			indices[top] = i;
+			if (pending == null) {
+				array.computeVisibleOffsets();
+				arrays[top] = null;
+				indices[top] = 0;
+				depth--;
+				if (depth > 0 && deadline != Long.MAX_VALUE && System.nanoTime() > deadline)
+					return false;
+				continue;
+			}
+			if (depth == arrays.length) {
+				TreeViewNodeArray[] grownArrays = new TreeViewNodeArray[depth * 2];
+				int[] grownIndices = new int[depth * 2];
+				System.arraycopy(arrays, 0, grownArrays, 0, depth);
+				System.arraycopy(indices, 0, grownIndices, 0, depth);
+				arrays = grownArrays;
+				indices = grownIndices;
+			}
+			arrays[depth] = pending;
+			indices[depth] = 0;
+			depth++;
+		}
+		return true;
+	}
+
+	void invalidateSnapshot() {
+		mSnapshotNodes = null;
+	}
+
+	/**
+	 * Returns the nodes of this array for a snapshot. The nodes out of date
+	 * are made children first, the way {@link #getVisibleOffsets()} computes
+	 * the offsets, and the valid ones are shared with the previous snapshot.
+	 */
+	TreeViewSnapshot.Node[] getSnapshotNodes() {
+		if (mSnapshotNodes != null)
+			return mSnapshotNodes;
+		TreeViewNodeArray[] arrays = new TreeViewNodeArray[INITIAL_DEPTH];
+		int[] indices = new int[INITIAL_DEPTH];
+		arrays[0] = this;
+		int depth = 1;
+		while (depth > 0) {
+			int top = depth - 1;
+			TreeViewNodeArray array = arrays[top];
+			int i = indices[top];
+			TreeViewNodeArray pending = null;
+			for (; i < array.length() && pending == null; i++) {
+				TreeViewNode node = (TreeViewNode) array.opt(i);
+				TreeViewNodeArray children = node == null ? null : node.getChildren();
+				if (children != null && children.mSnapshotNodes == null)
+					pending = children;
+			}
+			indices[top] = i;
+			if (pending == null) {
+				array.makeSnapshotNodes();
+				arrays[top] = null;
+				indices[top] = 0;
+				depth--;
+				continue;
+			}
+			if (depth == arrays.length) {
+				TreeViewNodeArray[] grownArrays = new TreeViewNodeArray[depth * 2];
+				int[] grownIndices = new int[depth * 2];
+				System.arraycopy(arrays, 0, grownArrays, 0, depth);
+				System.arraycopy(indices, 0, grownIndices, 0, depth);
+				arrays = grownArrays;
+				indices = grownIndices;
+			}
+			arrays[depth] = pending;
+			indices[depth] = 0;
+			depth++;
+		}
+		return mSnapshotNodes;
+	}
+
+	/**
+	 * Makes the nodes of the arrays out of date for the next snapshot the
+	 * way {@link #getSnapshotNodes()} does, but holding the lock of the tree
+	 * for one array at a time, so a change of the tree waits for one array
+	 * at most. An array whose children went out of date while the lock was
+	 * released is looked at again. The arrays holding evicted subtrees not
+	 * read yet are left out of date, the caller reads the subtrees without
+	 * the lock and calls again.
+	 *
+	 * @param lock the lock of the tree
+	 * @param unread gets the evicted subtrees to read
+	 */
+	void updateSnapshotNodes(Object lock, List<TreeViewSpill.Segment> unread) {
+		// The arrays left out of date for the unread subtrees within them
+		HashSet<TreeViewNodeArray> blocked = new HashSet<TreeViewNodeArray>();
+		TreeViewNodeArray[] arrays = new TreeViewNodeArray[INITIAL_DEPTH];
+		int[] indices = new int[INITIAL_DEPTH];
+		arrays[0] = this;
+		int depth = 1;
+		while (depth > 0) {
+			TreeViewNodeArray pending = null;
+			synchronized (lock) {
+				int top = depth - 1;
+				TreeViewNodeArray array = arrays[top];
+				if (array.mSnapshotNodes == null) {
+					int i = indices[top];
+					for (; i < array.length() && pending == null; i++) {
+						TreeViewNode node = (TreeViewNode) array.opt(i);
+						if (node == null)
+							continue;
+						TreeViewSpill.Segment evicted = node.getEvicted();
+						TreeViewNodeArray children = node.getChildren();
+						if (evicted != null) {
+							if (!evicted.hasSnapshotNodes()) {
+								unread.add(evicted);
+								blocked.add(array);
+							}
+						} else if (children != null && children.mSnapshotNodes == null) {
+							if (blocked.contains(children))
+								blocked.add(array);
+							else
+								pending = children;
+						}
+					}
+					indices[top] = i;
+					if (pending == null && !blocked.contains(array)) {
+						if (!array.hasSnapshotChildren()) {
+							indices[top] = 0;
+							continue;
+						}
+						array.makeSnapshotNodes();
+					}
+				}
+				if (pending == null) {
+					arrays[top] = null;
+					indices[top] = 0;
+					depth--;
+					continue;
+				}
+			}
+			if (depth == arrays.length) {
+				TreeViewNodeArray[] grownArrays = new TreeViewNodeArray[depth * 2];
+				int[] grownIndices = new int[depth * 2];
+				System.arraycopy(arrays, 0, grownArrays, 0, depth);
+				System.arraycopy(indices, 0, grownIndices, 0, depth);
+				arrays = grownArrays;
+				indices = grownIndices;
+			}
+			arrays[depth] = pending;
+			indices[depth] = 0;
+			depth++;
+		}
+	}
+
+	boolean hasSnapshotNodes() {
+		return mSnapshotNodes != null;
+	}
+
+	/**
+	 * Checks whether the nodes of the snapshot of every child can be had
+	 * without reading the spill file.
+	 */
+	private boolean hasSnapshotChildren() {
+		for (int i = 0; i < length(); i++) {
+			TreeViewNode node = (TreeViewNode) opt(i);
+			if (node == null)
+				continue;
+			TreeViewSpill.Segment evicted = node.getEvicted();
+			TreeViewNodeArray children = node.getChildren();
+			if (evicted != null ? !evicted.hasSnapshotNodes() :
+					children != null && children.mSnapshotNodes == null)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Makes the nodes of the snapshot, the children arrays must have valid
+	 * snapshot nodes.
+	 */
+	private void makeSnapshotNodes() {
+		int count = length();
+		TreeViewSnapshot.Node[] nodes = new TreeViewSnapshot.Node[count];
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			TreeViewNode node = (TreeViewNode) opt(i);
+			if (node == null)
+				continue;
+			TreeViewNodeArray children = node.getChildren();
+			TreeViewSpill.Segment evicted = node.getEvicted();
+			nodes[n++] = new TreeViewSnapshot.Node(node, node.getSnapshotFields(),
+					evicted != null ? evicted.getSnapshotNodes() :
+					children == null ? null : children.mSnapshotNodes);
+		}
+		if (n < count) {
+			TreeViewSnapshot.Node[] trimmed = new TreeViewSnapshot.Node[n];
+			System.arraycopy(nodes, 0, trimmed, 0, n);
+			nodes = trimmed;
+		}
+		mSnapshotNodes = nodes;
+	}
+
+	/**
+	 * Computes the offsets from the visible rows of the nodes,
+	 * the children of the expanded nodes must have valid offsets. If the
+	 * owner declares the count of its children, the slots not loaded yet
+	 * take a placeholder row each. The nodes over the visible limit take
+	 * no rows.
+	 */
+	private void computeVisibleOffsets() {
+		int count = length();
+		int limit = mVisibleLimit < 0 ? count : Math.min(mVisibleLimit, count);
+		int declared = mOwner == null ? -1 : mOwner.getDeclaredChildCount();
+		int[] offsets = new int[count + 1];
+		int[] slots = declared < 0 ? null : new int[count];
+		int slot = -1;
+		int position = 0;
+		for (int i = 0; i < count; i++) {
+			TreeViewNode node = (TreeViewNode) opt(i);
+			int rows = 0;
+			if (node != null) {
+				node.setArrayIndex(i);
+				if (slots != null) {
+					int next = Math.max(node.getSlot(), slot + 1);
+					if (i < limit)
+						// The placeholder rows of the slots before the node
+						position += next - slot - 1;
+					slot = next;
+				}
+				if (i < limit) {
+					rows = 1;
+					if (node.isExpanded()) {
+						TreeViewNodeArray children = node.getChildren();
+						if (children != null)
+							rows += children.mVisibleOffsets[children.length()];
+						else
+							rows += Math.max(0, node.getDeclaredChildCount());
+					}
+				}
+			}
+			if (slots != null)
+				slots[i] = slot;
+			offsets[i] = position;
+			position += rows;
+		}
+		if (slots != null && limit == count && declared > slot + 1) {
+			position += declared - slot - 1;
+			slot = declared - 1;
+		}
+		offsets[count] = position;
+		mSlots = slots;
+		mSlotCount = slots == null ? count : slot + 1;
+		mVisibleOffsets = offsets;
+	}
+
 	public long getVisibleNodeId(int position) {
 		TreeViewNode node = getVisibleNode(position);
 		if (node != null)
@@ -104,10 +609,73 @@ public class TreeViewNodeArray extends JSONArray {
 	 * Method is called from TreeViewNode.writeTo(JSONStringer)
 	 * to add a children to the current level.
 	 * The current level is the root level.
+	 * All the descendants are written one after another in pre-order.
 	 */
     void writeBody(JSONStringer stringer) throws JSONException {
-        for (int i=0; i<length(); i++)
-            stringer.value(get(i));
+    	TreeViewNodeIterator it = new TreeViewNodeIterator(this, false);
+    	for (TreeViewNode node = it.next(); node != null; node = it.next()) {
+    		stringer.object();
+    		node.writeBody(stringer);
+    		stringer.endObject();
+    	}
+    }
+
+    /**
+     * Writes the nodes with their children nested into the children arrays,
+     * the same shape as {@link JSONArray#toString()} gives, but without
+     * recursion.
+     */
+    static void writeNested(JSONStringer stringer, TreeViewNodeArray array) throws JSONException {
+    	stringer.array();
+    	int depth = 1;
+    	TreeViewNodeArray[] arrays = new TreeViewNodeArray[INITIAL_DEPTH];
+    	int[] indices = new int[INITIAL_DEPTH];
+    	arrays[0] = array;
+    	while (depth > 0) {
+    		int top = depth - 1;
+    		TreeViewNodeArray current = arrays[top];
+    		int i = indices[top];
+    		if (i >= current.length()) {
+    			arrays[top] = null;
+    			stringer.endArray();
+    			if (--depth > 0)
+    				// Close the node that owns the finished children array
+    				stringer.endObject();
+    			continue;
+    		}
+    		indices[top] = i + 1;
+    		TreeViewNode node = (TreeViewNode) current.get(i);
+    		stringer.object();
+    		node.writeFields(stringer);
+    		TreeViewNodeArray children = node.getChildren();
+    		if (children == null) {
+    			stringer.endObject();
+    			continue;
+    		}
+    		stringer.key(node.getChildrenArrayName()).array();
+    		if (depth == arrays.length) {
+    			TreeViewNodeArray[] grownArrays = new TreeViewNodeArray[depth * 2];
+    			int[] grownIndices = new int[depth * 2];
+    			System.arraycopy(arrays, 0, grownArrays, 0, depth);
+    			System.arraycopy(indices, 0, grownIndices, 0, depth);
+    			arrays = grownArrays;
+    			indices = grownIndices;
+    		}
+    		arrays[depth] = children;
+    		indices[depth] = 0;
+    		depth++;
+    	}
+    }
+
+    @Override
+    public String toString() {
+    	try {
+    		JSONStringer stringer = new JSONStringer();
+    		writeNested(stringer, this);
+    		return stringer.toString();
+    	} catch (JSONException e) {
+    		return null;
+    	}
     }
 
 }
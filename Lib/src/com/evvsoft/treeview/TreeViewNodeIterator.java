@@ -0,0 +1,95 @@
+/*
+ * Copyright © 2015 The Evvsoft TreeView Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evvsoft.treeview;
+
+/**
+ * Pre-order iterator over the nodes of a {@link TreeViewNodeArray} and all
+ * their descendants. It keeps its own stack of child arrays instead of
+ * recursing, so the depth of the tree is limited only by the heap.
+ */
+final class TreeViewNodeIterator {
+
+	private static final int INITIAL_DEPTH = 16;
+
+	private final boolean mVisibleOnly;
+	private TreeViewNodeArray[] mArrays = new TreeViewNodeArray[INITIAL_DEPTH];
+	private int[] mIndices = new int[INITIAL_DEPTH];
+	private int mDepth;
+	private int mNodeDepth;
+
+	/**
+	 * @param array the nodes to start with
+	 * @param visibleOnly if true, children of collapsed groups are skipped
+	 */
+	TreeViewNodeIterator(TreeViewNodeArray array, boolean visibleOnly) {
+		mVisibleOnly = visibleOnly;
+		mArrays[0] = array;
+		mDepth = array == null ? 0 : 1;
+	}
+
+	/**
+	 * Returns the next node in pre-order or null when all nodes were visited.
+	 */
+	TreeViewNode next() {
+		while (mDepth > 0) {
+			int top = mDepth - 1;
+			TreeViewNodeArray array = mArrays[top];
+			int i = mIndices[top];
+			if (i >= array.length()) {
+				mArrays[top] = null;
+				mIndices[top] = 0;
+				mDepth--;
+				continue;
+			}
+			mIndices[top] = i + 1;
+			TreeViewNode node = (TreeViewNode) array.opt(i);
+			if (node == null)
+				continue;
+			mNodeDepth = top;
+			if (!mVisibleOnly || node.isExpanded()) {
+				TreeViewNodeArray children = node.getChildren();
+				if (children != null && children.length() > 0)
+					push(children);
+			}
+			return node;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the depth of the node returned by the last call to
+	 * {@link #next()}, 0 for the nodes of the starting array.
+	 */
+	int depth() {
+		return mNodeDepth;
+	}
+
+	private void push(TreeViewNodeArray children) {
+		if (mDepth == mArrays.length) {
+			TreeViewNodeArray[] arrays = new TreeViewNodeArray[mDepth * 2];
+			int[] indices = new int[mDepth * 2];
+			System.arraycopy(mArrays, 0, arrays, 0, mDepth);
+			System.arraycopy(mIndices, 0, indices, 0, mDepth);
+			mArrays = arrays;
+			mIndices = indices;
+		}
+		mArrays[mDepth] = children;
+		mIndices[mDepth] = 0;
+		mDepth++;
+	}
+
+}
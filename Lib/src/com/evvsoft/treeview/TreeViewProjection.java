@@ -0,0 +1,61 @@
+/*
+ * Copyright © 2015 The Evvsoft TreeView Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evvsoft.treeview;
+
+import java.util.Collection;
+import java.util.HashSet;
+
+/**
+ * The fields the nodes keep when the build is projected: the key fields,
+ * the fields bound to the views, the fields of the aggregates and the
+ * allowed ones. The other fields are dropped, or kept by the node as
+ * JSON text parsed when one of them is asked for.
+ */
+final class TreeViewProjection {
+
+	private final HashSet<String> mFields = new HashSet<String>();
+	private final boolean mKeepDropped;
+
+	TreeViewProjection(boolean keepDropped) {
+		mKeepDropped = keepDropped;
+	}
+
+	void addFields(String[] fields) {
+		if (fields != null)
+			for (String field : fields)
+				if (field != null)
+					mFields.add(field);
+	}
+
+	void addFields(Collection<String> fields) {
+		for (String field : fields)
+			if (field != null)
+				mFields.add(field);
+	}
+
+	boolean keeps(String field) {
+		return mFields.contains(field);
+	}
+
+	/**
+	 * Returns true if the dropped fields are kept aside.
+	 */
+	boolean keepsDropped() {
+		return mKeepDropped;
+	}
+
+}
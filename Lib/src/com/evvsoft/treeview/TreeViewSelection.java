@@ -0,0 +1,172 @@
+/*
+ * Copyright © 2015 The Evvsoft TreeView Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evvsoft.treeview;
+
+import java.util.BitSet;
+
+/**
+ * Checked nodes of a tree kept as a bitset by node ordinal. The ordinals
+ * number all the nodes in pre-order, so the subtree of a node is a range
+ * of ordinals and checking a group is a range operation. Each node counts
+ * its checked descendants, a node with children is checked when all its
+ * descendants are, so the states of the ancestors are updated along the
+ * path to the root only.
+ * <p>
+ * The ordinals are assigned on first use and again after the tree has
+ * changed, keeping the nodes that were checked.
+ */
+final class TreeViewSelection {
+
+	private static final int[] EMPTY = {};
+
+	private TreeViewNode[] mNodes = new TreeViewNode[0];
+	/** Ordinal of the parent, -1 for the root level. */
+	private int[] mParents = EMPTY;
+	/** Number of nodes in the subtree, the node itself included. */
+	private int[] mSizes = EMPTY;
+	private int[] mCheckedDescendants = EMPTY;
+	private BitSet mChecked = new BitSet();
+	private boolean mValid;
+
+	/**
+	 * The tree has changed, the ordinals are assigned again on next use.
+	 */
+	void invalidate() {
+		mValid = false;
+	}
+
+	int getState(TreeViewNodeArray root, TreeViewNode node) {
+		int ordinal = getOrdinal(root, node);
+		if (ordinal < 0 || mCheckedDescendants[ordinal] == 0 && !mChecked.get(ordinal))
+			return SimpleJsonTreeViewAdapter.CHECK_STATE_UNCHECKED;
+		return mChecked.get(ordinal) ? SimpleJsonTreeViewAdapter.CHECK_STATE_CHECKED :
+			SimpleJsonTreeViewAdapter.CHECK_STATE_PARTIAL;
+	}
+
+	/**
+	 * Checks or unchecks the node with all its descendants.
+	 * @return false if the node is not in the tree or its state is unchanged
+	 */
+	boolean setChecked(TreeViewNodeArray root, TreeViewNode node, boolean checked) {
+		int ordinal = getOrdinal(root, node);
+		if (ordinal < 0)
+			return false;
+		int size = mSizes[ordinal];
+		int before = mCheckedDescendants[ordinal] + (mChecked.get(ordinal) ? 1 : 0);
+		int after = checked ? size : 0;
+		if (before == after)
+			return false;
+		mChecked.set(ordinal, ordinal + size, checked);
+		for (int i = ordinal; i < ordinal + size; i++)
+			mCheckedDescendants[i] = checked ? mSizes[i] - 1 : 0;
+		int delta = after - before;
+		for (int parent = mParents[ordinal]; parent >= 0 && delta != 0; parent = mParents[parent]) {
+			mCheckedDescendants[parent] += delta;
+			boolean full = mCheckedDescendants[parent] == mSizes[parent] - 1;
+			if (full != mChecked.get(parent)) {
+				mChecked.set(parent, full);
+				delta += full ? 1 : -1;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return false if nothing was checked
+	 */
+	boolean clear() {
+		if (mChecked.isEmpty())
+			return false;
+		mChecked.clear();
+		for (int i = 0; i < mCheckedDescendants.length; i++)
+			mCheckedDescendants[i] = 0;
+		return true;
+	}
+
+	/**
+	 * Returns the IDs of the checked nodes in pre-order.
+	 */
+	long[] getCheckedIds(TreeViewNodeArray root) {
+		validate(root);
+		long[] ids = new long[mChecked.cardinality()];
+		int count = 0;
+		for (int i = mChecked.nextSetBit(0); i >= 0; i = mChecked.nextSetBit(i + 1))
+			ids[count++] = mNodes[i].getId();
+		return ids;
+	}
+
+	private int getOrdinal(TreeViewNodeArray root, TreeViewNode node) {
+		validate(root);
+		int ordinal = node.getOrdinal();
+		return ordinal >= 0 && ordinal < mNodes.length && mNodes[ordinal] == node ? ordinal : -1;
+	}
+
+	/**
+	 * Numbers the nodes in pre-order and recounts the checked descendants.
+	 * The nodes checked before that are still in the tree stay checked,
+	 * the nodes with children then get the state of their descendants.
+	 */
+	private void validate(TreeViewNodeArray root) {
+		if (mValid)
+			return;
+		mValid = true;
+		int count = root.getLoadedCount();
+		TreeViewNode[] nodes = new TreeViewNode[count];
+		int[] parents = new int[count];
+		int[] sizes = new int[count];
+		int[] path = new int[16];
+		TreeViewNodeIterator it = new TreeViewNodeIterator(root, false);
+		int ordinal = 0;
+		for (TreeViewNode node = it.next(); node != null; node = it.next(), ordinal++) {
+			int depth = it.depth();
+			if (depth == path.length) {
+				int[] grown = new int[depth * 2];
+				System.arraycopy(path, 0, grown, 0, depth);
+				path = grown;
+			}
+			path[depth] = ordinal;
+			parents[ordinal] = depth == 0 ? -1 : path[depth - 1];
+			sizes[ordinal] = 1;
+			nodes[ordinal] = node;
+			node.setOrdinal(ordinal);
+		}
+		BitSet checked = new BitSet(count);
+		for (int i = mChecked.nextSetBit(0); i >= 0; i = mChecked.nextSetBit(i + 1)) {
+			TreeViewNode node = mNodes[i];
+			int newOrdinal = node.getOrdinal();
+			if (newOrdinal < count && nodes[newOrdinal] == node)
+				checked.set(newOrdinal);
+		}
+		int[] checkedDescendants = new int[count];
+		for (int i = count - 1; i >= 0; i--) {
+			if (sizes[i] > 1)
+				// All the descendants have been counted by now
+				checked.set(i, checkedDescendants[i] == sizes[i] - 1);
+			int parent = parents[i];
+			if (parent >= 0) {
+				sizes[parent] += sizes[i];
+				checkedDescendants[parent] += checkedDescendants[i] + (checked.get(i) ? 1 : 0);
+			}
+		}
+		mNodes = nodes;
+		mParents = parents;
+		mSizes = sizes;
+		mCheckedDescendants = checkedDescendants;
+		mChecked = checked;
+	}
+
+}
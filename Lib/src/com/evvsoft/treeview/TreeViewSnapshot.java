@@ -0,0 +1,273 @@
+/*
+ * Copyright © 2015 The Evvsoft TreeView Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evvsoft.treeview;
+
+import org.json.JSONObject;
+
+/**
+ * An immutable copy of the tree taken by
+ * {@link SimpleJsonTreeViewAdapter#snapshot()}.
+ * <p>
+ * A snapshot does not change when the tree does, so it can be read on any
+ * thread without locks, while the user keeps expanding and collapsing
+ * groups or new data are applied. Snapshots share structure: a change of
+ * the tree copies only the levels on the path from the changed node to the
+ * root, the other levels and the fields of the unchanged nodes are shared
+ * with the previous snapshot.
+ * <p>
+ * The field values are those of the nodes, nested JSON objects and arrays
+ * among them must not be modified.
+ */
+public final class TreeViewSnapshot {
+
+	private static final int FLAG_GROUP    = 1;
+	private static final int FLAG_EXPANDED = 2;
+	private static final int FLAG_LAST     = 4;
+
+	private static final Node[] NO_NODES = new Node[0];
+
+	private final Node[] mRoots;
+	/** Counted on demand, -1 until then. */
+	private int mNodeCount = -1;
+
+	TreeViewSnapshot(Node[] roots) {
+		mRoots = roots == null ? NO_NODES : roots;
+	}
+
+	public int getRootCount() {
+		return mRoots.length;
+	}
+
+	public Node getRoot(int index) {
+		return mRoots[index];
+	}
+
+	/**
+	 * Returns the number of the nodes in the snapshot, collapsed or not.
+	 */
+	public int getNodeCount() {
+		int count = mNodeCount;
+		if (count < 0) {
+			count = collect(null, null);
+			mNodeCount = count;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the node with the given ID, walking the nodes in the tree order.
+	 * @return the node or null if there is no such node in the snapshot
+	 */
+	public Node getNodeById(long id) {
+		Node[][] levels = new Node[8][];
+		int[] indices = new int[levels.length];
+		levels[0] = mRoots;
+		int depth = 1;
+		while (depth > 0) {
+			int top = depth - 1;
+			Node[] level = levels[top];
+			int i = indices[top];
+			if (i >= level.length) {
+				levels[top] = null;
+				depth--;
+				continue;
+			}
+			indices[top] = i + 1;
+			Node node = level[i];
+			if (node.mId == id)
+				return node;
+			if (node.mChildren == null)
+				continue;
+			if (depth == levels.length) {
+				Node[][] grownLevels = new Node[depth * 2][];
+				int[] grownIndices = new int[depth * 2];
+				System.arraycopy(levels, 0, grownLevels, 0, depth);
+				System.arraycopy(indices, 0, grownIndices, 0, depth);
+				levels = grownLevels;
+				indices = grownIndices;
+			}
+			levels[depth] = node.mChildren;
+			indices[depth] = 0;
+			depth++;
+		}
+		return null;
+	}
+
+	/**
+	 * Lists the nodes in the tree order with their depths.
+	 * @param nodes receives the nodes, null to count them only
+	 * @param depths receives the depths, can be null
+	 * @return the number of the nodes
+	 */
+	int collect(Node[] nodes, int[] depths) {
+		Node[][] levels = new Node[8][];
+		int[] indices = new int[levels.length];
+		levels[0] = mRoots;
+		int depth = 1;
+		int count = 0;
+		while (depth > 0) {
+			int top = depth - 1;
+			Node[] level = levels[top];
+			int i = indices[top];
+			if (i >= level.length) {
+				levels[top] = null;
+				depth--;
+				continue;
+			}
+			indices[top] = i + 1;
+			Node node = level[i];
+			if (nodes != null)
+				nodes[count] = node;
+			if (depths != null)
+				depths[count] = top;
+			count++;
+			if (node.mChildren == null)
+				continue;
+			if (depth == levels.length) {
+				Node[][] grownLevels = new Node[depth * 2][];
+				int[] grownIndices = new int[depth * 2];
+				System.arraycopy(levels, 0, grownLevels, 0, depth);
+				System.arraycopy(indices, 0, grownIndices, 0, depth);
+				levels = grownLevels;
+				indices = grownIndices;
+			}
+			levels[depth] = node.mChildren;
+			indices[depth] = 0;
+			depth++;
+		}
+		return count;
+	}
+
+	/**
+	 * A node of the snapshot. Its children are the children of the node at
+	 * the moment of the snapshot, whether the node is expanded or not.
+	 */
+	public static final class Node {
+
+		private final Fields mFields;
+		private final long mId;
+		private final long mIdParent;
+		private final int mFlags;
+		private final Node[] mChildren;
+
+		Node(TreeViewNode node, Fields fields, Node[] children) {
+			mFields = fields;
+			mId = node.getId();
+			mIdParent = node.getIdParent();
+			mFlags = (node.isGroupNode() ? FLAG_GROUP : 0) |
+					(node.isExpanded() ? FLAG_EXPANDED : 0) |
+					(node.isLast() ? FLAG_LAST : 0);
+			mChildren = children != null && children.length > 0 ? children : null;
+		}
+
+		public long getId() {
+			return mId;
+		}
+
+		/**
+		 * Returns the ID of the parent, {@link TreeViewNode#BAD_ID} for the
+		 * nodes of the root level.
+		 */
+		public long getParentId() {
+			return mIdParent;
+		}
+
+		public boolean isGroupNode() {
+			return (mFlags & FLAG_GROUP) != 0;
+		}
+
+		public boolean isExpanded() {
+			return (mFlags & FLAG_EXPANDED) != 0;
+		}
+
+		public boolean isLast() {
+			return (mFlags & FLAG_LAST) != 0;
+		}
+
+		public int getChildCount() {
+			return mChildren == null ? 0 : mChildren.length;
+		}
+
+		public Node getChild(int index) {
+			return mChildren[index];
+		}
+
+		/**
+		 * Returns the number of the data fields, the ID field among them,
+		 * but not the parent ID, group, expanded and children fields.
+		 */
+		public int getFieldCount() {
+			return mFields.names.length;
+		}
+
+		public String getFieldName(int index) {
+			return mFields.names[index];
+		}
+
+		public Object getFieldValue(int index) {
+			return mFields.values[index];
+		}
+
+		/**
+		 * Returns the value of the field, null if the node has no such field.
+		 */
+		public Object opt(String name) {
+			String[] names = mFields.names;
+			for (int i = 0; i < names.length; i++)
+				if (names[i].equals(name))
+					return mFields.values[i];
+			return null;
+		}
+
+		/**
+		 * Returns the value of the field as text, an empty string if the node
+		 * has no such field or its value is null.
+		 */
+		public String optString(String name) {
+			Object value = opt(name);
+			return value == null || value == JSONObject.NULL ? "" : value.toString();
+		}
+
+		Fields getFields() {
+			return mFields;
+		}
+	}
+
+	/**
+	 * The data fields of a node, shared by the snapshots until the fields
+	 * of the node change.
+	 */
+	static final class Fields {
+
+		final String[] names;
+		final Object[] values;
+		final String idParentName;
+		final String isGroupName;
+		final String expandedName;
+		final String childrenArrayName;
+
+		Fields(String[] names, Object[] values, TreeViewNode node) {
+			this.names = names;
+			this.values = values;
+			idParentName = node.getIdParentName();
+			isGroupName = node.getIsGroupName();
+			expandedName = node.getExpandedName();
+			childrenArrayName = node.getChildrenArrayName();
+		}
+	}
+
+}
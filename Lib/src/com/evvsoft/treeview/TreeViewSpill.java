@@ -0,0 +1,401 @@
+/*
+ * Copyright © 2015 The Evvsoft TreeView Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evvsoft.treeview;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONStringer;
+
+import android.content.Context;
+
+/**
+ * The file the collapsed subtrees of an adapter are evicted to under
+ * memory pressure. Each evicted subtree is a segment of the file: the flat
+ * JSON array of its nodes in pre-order and the array of their slots,
+ * deflated. The segments are written
+ * and read back on the background worker, in the order they were asked
+ * for, and also read on the calling thread when a subtree is needed at
+ * once. The file is emptied when the last segment is released, and
+ * compacted on the worker when the released segments take more room in it
+ * than the live ones.
+ */
+final class TreeViewSpill {
+
+	private static final String DIRECTORY = "treeview-spill";
+	private static final int BUFFER_SIZE = 8192;
+	/** The file is not compacted for less dead room than this. */
+	private static final long MIN_COMPACT_BYTES = 64 * 1024;
+
+	/** The files left by the earlier processes are deleted once. */
+	private static boolean sCleared;
+
+	/**
+	 * The subtree evicted from a group: the children of the group until
+	 * they are written, then the place of the segment in the file.
+	 */
+	static final class Segment {
+
+		private final TreeViewSpill mSpill;
+		/** The evicted children, null once they are written to the file. */
+		private TreeViewNodeArray mChildren;
+		private long mOffset = -1;
+		private int mLength;
+		private boolean mReleased;
+		/** The ID of the group. */
+		final long id;
+		/** The nodes of the last snapshot, dropped under memory pressure. */
+		private SoftReference<TreeViewSnapshot.Node[]> mSnapshotNodes;
+		/** The number of the evicted descendants, those of the nested segments included. */
+		final int count;
+		/** The aggregates of the group, kept for the group evicted within another one. */
+		final double[] aggregates;
+		/** The segments of the groups within the subtree that were evicted before, by their IDs. */
+		final HashMap<Long, Segment> nested;
+		/** Set by the adapter while the segment is read back in the background. */
+		boolean restoring;
+		/** Set by the adapter to expand the group once it is restored. */
+		boolean expand;
+		/** Set by the adapter to the IDs of the nodes held, those of the nested segments not included. */
+		long[] ids;
+
+		Segment(TreeViewSpill spill, long id, TreeViewNodeArray children, int count,
+				double[] aggregates, HashMap<Long, Segment> nested) {
+			mSpill = spill;
+			this.id = id;
+			mChildren = children;
+			this.count = count;
+			this.aggregates = aggregates;
+			this.nested = nested;
+		}
+
+		/**
+		 * Returns the nodes of the subtree for a snapshot, read from the
+		 * file unless the last ones are still at hand. The nodes read are
+		 * not part of the tree. A subtree that cannot be read has no nodes.
+		 */
+		TreeViewSnapshot.Node[] getSnapshotNodes() {
+			SoftReference<TreeViewSnapshot.Node[]> reference = mSnapshotNodes;
+			TreeViewSnapshot.Node[] nodes = reference == null ? null : reference.get();
+			if (nodes != null)
+				return nodes;
+			try {
+				nodes = mSpill.read(this).getSnapshotNodes();
+			} catch (IOException e) {
+				e.printStackTrace();
+				nodes = new TreeViewSnapshot.Node[0];
+			} catch (JSONException e) {
+				e.printStackTrace();
+				nodes = new TreeViewSnapshot.Node[0];
+			}
+			if (!mReleased)
+				mSnapshotNodes = new SoftReference<TreeViewSnapshot.Node[]>(nodes);
+			return nodes;
+		}
+
+		/**
+		 * Tells whether the nodes of the last snapshot are still at hand,
+		 * so that {@link #getSnapshotNodes()} reads nothing.
+		 */
+		boolean hasSnapshotNodes() {
+			SoftReference<TreeViewSnapshot.Node[]> reference = mSnapshotNodes;
+			return reference != null && reference.get() != null;
+		}
+	}
+
+	private final Context mContext;
+	private final String[] mKeys;
+	private final boolean mInterning;
+	private final TreeViewProjection mProjection;
+	private final TreeViewAggregates mAggregates;
+	private File mPath;
+	private RandomAccessFile mFile;
+	private long mEnd;
+	private int mLiveCount;
+	/** The segments in the file, in the order of their offsets. */
+	private final LinkedHashSet<Segment> mWritten = new LinkedHashSet<Segment>();
+	/** The room of the released segments in the file. */
+	private long mDeadBytes;
+	private boolean mCompactPosted;
+
+	/**
+	 * @param context the context whose cache directory holds the file
+	 * @param keys the key names the nodes are created with
+	 * @param interning true to share the values among the nodes read back together
+	 * @param projection the fields the nodes keep, null to keep all of them
+	 * @param aggregates the aggregates computed for the nodes read back, can be null
+	 */
+	TreeViewSpill(Context context, String[] keys, boolean interning,
+			TreeViewProjection projection, TreeViewAggregates aggregates) {
+		mContext = context;
+		mKeys = keys;
+		mInterning = interning;
+		mProjection = projection;
+		mAggregates = aggregates;
+	}
+
+	/**
+	 * Makes the segment of the children evicted from a group.
+	 */
+	synchronized Segment newSegment(long id, TreeViewNodeArray children, int count,
+			double[] aggregates, HashMap<Long, Segment> nested) {
+		mLiveCount++;
+		return new Segment(this, id, children, count, aggregates, nested);
+	}
+
+	/**
+	 * Writes the children of the segment to the file and lets them go.
+	 * If the file cannot be written, the children are kept in memory.
+	 */
+	synchronized void write(Segment segment) {
+		if (segment.mReleased || segment.mChildren == null)
+			return;
+		try {
+			byte[] bytes = deflate(serialize(segment.mChildren));
+			RandomAccessFile file = open();
+			file.seek(mEnd);
+			file.write(bytes);
+			segment.mOffset = mEnd;
+			segment.mLength = bytes.length;
+			mEnd += bytes.length;
+			mWritten.add(segment);
+			segment.mChildren = null;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns the children of the segment, read from the file and made into
+	 * new nodes with the nested segments attached, unless they have not
+	 * been written yet.
+	 */
+	synchronized TreeViewNodeArray read(Segment segment) throws IOException, JSONException {
+		if (segment.mChildren != null)
+			return segment.mChildren;
+		if (segment.mReleased || mFile == null)
+			throw new IOException("The segment is not in the file");
+		byte[] bytes = new byte[segment.mLength];
+		mFile.seek(segment.mOffset);
+		mFile.readFully(bytes);
+		JSONArray data = new JSONArray(inflate(bytes));
+		return build(data.getJSONArray(0), data.getJSONArray(1), segment);
+	}
+
+	/**
+	 * Forgets the segment, its nested segments are not released. The file
+	 * is emptied when no segments are left, and compacted on the worker when
+	 * the released segments take more than half of it.
+	 */
+	synchronized void release(Segment segment) {
+		if (segment.mReleased)
+			return;
+		segment.mReleased = true;
+		segment.mChildren = null;
+		segment.mSnapshotNodes = null;
+		if (mWritten.remove(segment))
+			mDeadBytes += segment.mLength;
+		if (--mLiveCount > 0 || mFile == null) {
+			if (mDeadBytes >= MIN_COMPACT_BYTES && mDeadBytes * 2 > mEnd && !mCompactPosted) {
+				mCompactPosted = true;
+				TreeViewExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						compact();
+					}
+				});
+			}
+			return;
+		}
+		try {
+			mFile.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		mPath.delete();
+		mFile = null;
+		mPath = null;
+		mEnd = 0;
+		mDeadBytes = 0;
+	}
+
+	/**
+	 * Moves the live segments down over the room of the released ones and
+	 * cuts the file after the last of them. The segments keep their order
+	 * and each one takes its new offset once it is moved whole.
+	 */
+	private synchronized void compact() {
+		mCompactPosted = false;
+		if (mFile == null || mDeadBytes * 2 <= mEnd)
+			return;
+		try {
+			long end = 0;
+			for (Segment segment : mWritten) {
+				if (segment.mOffset != end) {
+					byte[] bytes = new byte[segment.mLength];
+					mFile.seek(segment.mOffset);
+					mFile.readFully(bytes);
+					mFile.seek(end);
+					mFile.write(bytes);
+					segment.mOffset = end;
+				}
+				end += segment.mLength;
+			}
+			mFile.setLength(end);
+			mEnd = end;
+			mDeadBytes = 0;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private RandomAccessFile open() throws IOException {
+		if (mFile != null)
+			return mFile;
+		File directory = new File(mContext.getCacheDir(), DIRECTORY);
+		synchronized (TreeViewSpill.class) {
+			if (!sCleared) {
+				sCleared = true;
+				File[] files = directory.listFiles();
+				if (files != null)
+					for (File file : files)
+						file.delete();
+			}
+		}
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create " + directory);
+		mPath = File.createTempFile("tree", ".spill", directory);
+		mFile = new RandomAccessFile(mPath, "rw");
+		mEnd = 0;
+		mDeadBytes = 0;
+		mWritten.clear();
+		return mFile;
+	}
+
+	/**
+	 * Writes the nodes in pre-order with the ID of the parent, the group
+	 * flag given by the data and the expanded state of each node, then
+	 * their slots apart from the fields, -1 for the nodes without one.
+	 */
+	private static String serialize(TreeViewNodeArray children) throws JSONException {
+		JSONStringer stringer = new JSONStringer();
+		stringer.array().array();
+		ArrayList<Integer> slots = new ArrayList<Integer>();
+		TreeViewNodeIterator it = new TreeViewNodeIterator(children, false);
+		for (TreeViewNode node = it.next(); node != null; node = it.next()) {
+			stringer.object();
+			node.writeEvicted(stringer);
+			stringer.endObject();
+			slots.add(node.getSlot());
+		}
+		stringer.endArray().array();
+		for (Integer slot : slots)
+			stringer.value(slot.intValue());
+		stringer.endArray().endArray();
+		return stringer.toString();
+	}
+
+	/**
+	 * Makes the nodes back into the children of the group, the parents
+	 * come before their children.
+	 */
+	private TreeViewNodeArray build(JSONArray data, JSONArray slots, Segment segment)
+			throws JSONException {
+		HashMap<Long, TreeViewNode> nodes = new HashMap<Long, TreeViewNode>();
+		TreeViewNodeArray children = new TreeViewNodeArray();
+		TreeViewInterner interner = mInterning ? new TreeViewInterner() : null;
+		for (int i=0; i<data.length(); i++) {
+			JSONObject obj = data.getJSONObject(i);
+			TreeViewNode node = new TreeViewNode(obj, mKeys, interner, mProjection);
+			node.setSlot(slots.optInt(i, -1));
+			long id = node.getId();
+			TreeViewNode parent = nodes.get(obj.optLong(node.getIdParentName(), TreeViewNode.BAD_ID));
+			if (parent == null)
+				children.put(node);
+			else
+				parent.putChild(node);
+			nodes.put(id, node);
+			Segment nested = segment.nested == null ? null : segment.nested.get(id);
+			if (nested != null) {
+				node.setEvicted(nested);
+				node.setAggregates(nested.aggregates);
+			}
+		}
+		for (int i=0; i<children.length(); i++)
+			((TreeViewNode) children.opt(i)).setPlace(segment.id, i == children.length() - 1);
+		if (mAggregates != null)
+			mAggregates.computeAll(children);
+		return children;
+	}
+
+	private static byte[] deflate(String text) {
+		byte[] input;
+		try {
+			input = text.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(input);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 4 + 64);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (!deflater.finished())
+				out.write(buffer, 0, deflater.deflate(buffer));
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static String inflate(byte[] bytes) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(bytes);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (!inflater.finished()) {
+				int count = inflater.inflate(buffer);
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new IOException("The segment is truncated");
+				out.write(buffer, 0, count);
+			}
+			return out.toString("UTF-8");
+		} catch (DataFormatException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright © 2015 The Evvsoft TreeView Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evvsoft.treeview;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Names of the {@link Trace} sections emitted while a {@link TreeViewMetrics}
+ * listener is registered. Before API 18 the sections are not emitted.
+ */
+final class TreeViewTrace {
+
+	static final String BUILD     = "TreeView:build";
+	static final String INFLATE   = "TreeView:inflate";
+	static final String BIND      = "TreeView:bind";
+	static final String EXPAND    = "TreeView:expand";
+	static final String COLLAPSE  = "TreeView:collapse";
+	static final String SERIALIZE = "TreeView:serialize";
+
+	private static final boolean ENABLED =
+			Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+
+	private TreeViewTrace() {
+	}
+
+	static void beginSection(String name) {
+		if (ENABLED)
+			Trace.beginSection(name);
+	}
+
+	static void endSection() {
+		if (ENABLED)
+			Trace.endSection();
+	}
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright © 2015 The Evvsoft TreeView Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evvsoft.treeview;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashMap;
+
+import org.json.JSONArray;
+import org.junit.Test;
+
+/**
+ * Runs on the JVM with JUnit 4 and org.json on the classpath.
+ */
+public class TreeViewBuilderTest {
+
+	private static TreeViewBuilder newBuilder(boolean validate) {
+		return new TreeViewBuilder(null, TreeViewNode.DEFAULT_ID_PARENT_NAME, validate, null, null);
+	}
+
+	@Test
+	public void itemsWithoutIdsStayOnTheRootLevel() throws Exception {
+		JSONArray data = new JSONArray("[{\"name\":\"a\"},{\"name\":\"b\"}]");
+		HashMap<Long, TreeViewNode> index = new HashMap<Long, TreeViewNode>();
+		TreeViewBuilder builder = newBuilder(true);
+		TreeViewNodeArray root = builder.build(data, 1, index);
+		assertEquals(2, root.length());
+		assertEquals("a", root.getNode(0).optString("name"));
+		assertEquals("b", root.getNode(1).optString("name"));
+		assertNull(root.getNode(0).getChildren());
+		assertEquals(2, builder.getNodeCount());
+		assertEquals(0, index.size());
+		assertEquals(true, builder.getReport().isValid());
+	}
+
+	@Test
+	public void childrenWithoutIdsGoToTheirParent() throws Exception {
+		JSONArray data = new JSONArray("[{\"id\":1},{\"id_parent\":1},{\"id_parent\":1}]");
+		HashMap<Long, TreeViewNode> index = new HashMap<Long, TreeViewNode>();
+		TreeViewBuilder builder = newBuilder(true);
+		TreeViewNodeArray root = builder.build(data, 1, index);
+		assertEquals(1, root.length());
+		TreeViewNode parent = root.getNode(0);
+		assertEquals(2, parent.getChildren().length());
+		assertEquals(3, builder.getNodeCount());
+		assertSame(parent, index.get(1L));
+		assertEquals(1, index.size());
+		assertEquals(true, builder.getReport().isValid());
+	}
+
+	@Test
+	public void orphansWithoutIdsAreReported() throws Exception {
+		JSONArray data = new JSONArray("[{\"id\":1},{\"id_parent\":2},{\"id\":3,\"id_parent\":4}]");
+		TreeViewBuilder builder = newBuilder(true);
+		TreeViewNodeArray root = builder.build(data, 1, new HashMap<Long, TreeViewNode>());
+		assertEquals(1, root.length());
+		TreeViewBuildReport report = builder.getReport();
+		assertArrayEquals(new long[] { TreeViewNode.BAD_ID, 3 }, report.getOrphanIds());
+		assertArrayEquals(new long[0], report.getDuplicateIds());
+	}
+
+	@Test
+	public void partsSkipItemsWithoutIds() throws Exception {
+		JSONArray data = new JSONArray();
+		for (int i=0; i<10000; i++)
+			data.put(new org.json.JSONObject().put("name", "n" + i).put("id_parent", i % 2 == 0 ? -1L : 0L));
+		data.put(new org.json.JSONObject().put("id", 0L));
+		TreeViewBuilder builder = newBuilder(true);
+		TreeViewNodeArray root = builder.build(data, 4, new HashMap<Long, TreeViewNode>());
+		assertEquals(5001, root.length());
+		assertEquals(5000, root.getNode(5000).getChildren().length());
+		assertArrayEquals(new long[0], builder.getReport().getDuplicateIds());
+	}
+
+}
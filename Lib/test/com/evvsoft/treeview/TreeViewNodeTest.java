@@ -0,0 +1,113 @@
+/*
+ * Copyright © 2015 The Evvsoft TreeView Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evvsoft.treeview;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONStringer;
+import org.junit.Test;
+
+/**
+ * Runs on the JVM with JUnit 4 and org.json on the classpath, with the
+ * default thread stack, so a recursive walk of the deep chain overflows.
+ */
+public class TreeViewNodeTest {
+
+	private static final int DEPTH = 100000;
+
+	/**
+	 * Builds the chain of expanded nodes, each the only child of the former.
+	 */
+	private static TreeViewNodeArray buildChain(int depth) throws Exception {
+		JSONArray data = new JSONArray();
+		for (int i=0; i<depth; i++) {
+			JSONObject item = new JSONObject().put("id", (long) i).put("expanded", 1);
+			if (i > 0)
+				item.put("id_parent", (long) (i - 1));
+			data.put(item);
+		}
+		return new TreeViewBuilder(null, TreeViewNode.DEFAULT_ID_PARENT_NAME, false, null, null)
+				.build(data, 1, new HashMap<Long, TreeViewNode>());
+	}
+
+	@Test
+	public void deepChain() throws Exception {
+		TreeViewNodeArray root = buildChain(DEPTH);
+		assertEquals(1, root.length());
+		assertEquals(DEPTH, root.getVisibleCount());
+		assertEquals(DEPTH, root.getIndirectChildrenCount());
+		assertEquals(DEPTH - 1, root.getNode(0).getIndirectChildrenCount());
+
+		TreeViewNode last = root.getVisibleNode(DEPTH - 1);
+		assertEquals(DEPTH - 1, last.getId());
+		assertEquals(DEPTH - 1, last.getLevel());
+		assertNull(root.getVisibleNode(DEPTH));
+		assertSame(last, root.getNodeById(DEPTH - 1));
+		assertEquals(DEPTH / 2, root.getVisibleNode(DEPTH / 2).getLevel());
+
+		JSONStringer stringer = new JSONStringer();
+		stringer.array();
+		root.getNode(0).writeTo(stringer);
+		stringer.endArray();
+		JSONArray written = new JSONArray(stringer.toString());
+		assertEquals(DEPTH, written.length());
+		assertEquals(DEPTH - 2, written.getJSONObject(DEPTH - 1).optLong("id_parent"));
+	}
+
+	@Test
+	public void movingNodesKeepsTheLevelsOfOtherTrees() throws Exception {
+		TreeViewNodeArray first = buildChain(100);
+		TreeViewNodeArray second = buildChain(100);
+		TreeViewNode deepest = first.getNodeById(99);
+		assertEquals(99, deepest.getLevel());
+		int stamp = first.getLevelTree().value;
+
+		// Moves a subtree within the second tree
+		TreeViewNode moved = second.getNodeById(50);
+		TreeViewNode target = second.getNodeById(10);
+		moved.detach();
+		TreeViewNodeArray children = new TreeViewNodeArray();
+		children.put(moved);
+		target.setChildren(children);
+		assertEquals(11, moved.getLevel());
+		assertEquals(60, second.getNodeById(99).getLevel());
+
+		assertEquals(stamp, first.getLevelTree().value);
+		assertEquals(99, deepest.getLevel());
+	}
+
+	@Test
+	public void subtreeJoiningAnotherTreeGetsItsLevels() throws Exception {
+		TreeViewNodeArray first = buildChain(10);
+		TreeViewNodeArray second = buildChain(10);
+		TreeViewNode moved = second.getNodeById(5);
+		assertEquals(9, second.getNodeById(9).getLevel());
+		moved.detach();
+		TreeViewNodeArray children = new TreeViewNodeArray();
+		children.put(moved);
+		first.getNodeById(0).setChildren(children);
+		assertEquals(1, moved.getLevel());
+		assertEquals(5, moved.getNodeById(9).getLevel());
+	}
+
+}